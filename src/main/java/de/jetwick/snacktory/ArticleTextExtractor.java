@@ -1,5 +1,9 @@
 package de.jetwick.snacktory;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -8,6 +12,7 @@ import java.util.Comparator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.regex.Pattern;
@@ -16,11 +21,14 @@ import java.util.Date;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.parser.Parser;
 import org.jsoup.select.Elements;
-import org.jsoup.select.Selector.SelectorParseException;
+import org.jsoup.select.NodeFilter;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.NodeVisitor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.apache.commons.lang.time.*;
 
 /**
  * This class is thread safe.
@@ -47,6 +55,12 @@ public class ArticleTextExtractor {
     // Most likely negative candidates
     private String negativeStr;
     private Pattern NEGATIVE;
+    // classifies class names and ids against the four patterns above
+    private TokenClassifier classifier;
+    private static final int HIGHLY_POSITIVE_BIT = 1;
+    private static final int POSITIVE_BIT = 1 << 1;
+    private static final int UNLIKELY_BIT = 1 << 2;
+    private static final int NEGATIVE_BIT = 1 << 3;
     private static final Pattern NEGATIVE_STYLE =
             Pattern.compile("hidden|display: ?none|font-size: ?small");
     private static final Pattern IGNORE_AUTHOR_PARTS =
@@ -94,6 +108,7 @@ public class ArticleTextExtractor {
     public ArticleTextExtractor setUnlikely(String unlikelyStr) {
         this.unlikelyStr = unlikelyStr;
         UNLIKELY = Pattern.compile(unlikelyStr);
+        updateClassifier();
         return this;
     }
 
@@ -104,12 +119,14 @@ public class ArticleTextExtractor {
     public ArticleTextExtractor setPositive(String positiveStr) {
         this.positiveStr = positiveStr;
         POSITIVE = Pattern.compile(positiveStr);
+        updateClassifier();
         return this;
     }
 
     public ArticleTextExtractor setHighlyPositive(String highlyPositiveStr) {
         this.highlyPositiveStr = highlyPositiveStr;
         HIGHLY_POSITIVE = Pattern.compile(highlyPositiveStr);
+        updateClassifier();
         return this;
     }
 
@@ -120,9 +137,19 @@ public class ArticleTextExtractor {
     public ArticleTextExtractor setNegative(String negativeStr) {
         this.negativeStr = negativeStr;
         NEGATIVE = Pattern.compile(negativeStr);
+        updateClassifier();
         return this;
     }
 
+    private void updateClassifier() {
+        if (HIGHLY_POSITIVE != null && POSITIVE != null && UNLIKELY != null && NEGATIVE != null)
+            classifier = new TokenClassifier(HIGHLY_POSITIVE, POSITIVE, UNLIKELY, NEGATIVE);
+    }
+
+    private boolean isNegative(Element e) {
+        return ((classifier.classify(e.id()) | classifier.classify(e.className())) & NEGATIVE_BIT) != 0;
+    }
+
     public ArticleTextExtractor addNegative(String neg) {
         setNegative(negativeStr + "|" + neg);
         return this;
@@ -133,15 +160,15 @@ public class ArticleTextExtractor {
     }
 
     public JResult extractContent(Document doc) throws Exception {
-        return extractContent(new JResult(), doc, formatter, true, true, true, 0);
+        return extractContent(new JResult(), doc, formatter, ExtractionOptions.DEFAULT);
     }
 
     public JResult extractContent(Document doc, OutputFormatter formatter) throws Exception {
-        return extractContent(new JResult(), doc, formatter, true, true, true, 0);
+        return extractContent(new JResult(), doc, formatter, ExtractionOptions.DEFAULT);
     }
 
     public JResult extractContent(JResult res, Document doc, OutputFormatter formatter) throws Exception {
-        return extractContent(res, doc, formatter, true, true, true, 0);
+        return extractContent(res, doc, formatter, ExtractionOptions.DEFAULT);
     }
 
     /**
@@ -154,25 +181,189 @@ public class ArticleTextExtractor {
     }
 
     public JResult extractContent(String html, int maxContentSize) throws Exception {
-        return extractContent(new JResult(), html, formatter, true, true, true, maxContentSize);
+        return extractContent(new JResult(), html, formatter,
+                ExtractionOptions.DEFAULT.withMaxContentSize(maxContentSize));
     }
 
     public JResult extractContent(JResult res, String html, int maxContentSize) throws Exception {
-        return extractContent(res, html, formatter, true, true, true, maxContentSize);
+        return extractContent(res, html, formatter,
+                ExtractionOptions.DEFAULT.withMaxContentSize(maxContentSize));
+    }
+
+    /**
+     * @param options the parts of the result which should be extracted
+     */
+    public JResult extractContent(JResult res, String html, ExtractionOptions options) throws Exception {
+        return extractContent(res, html, formatter, options);
     }
 
     public JResult extractContent(JResult res, String html, OutputFormatter formatter, 
                                   boolean extractImages, boolean extractAuthor, boolean extractDate,
                                   int maxContentSize) throws Exception {
+        return extractContent(res, html, formatter,
+                ExtractionOptions.of(extractImages, extractAuthor, extractDate, maxContentSize));
+    }
+
+    public JResult extractContent(JResult res, String html, OutputFormatter formatter,
+                                  ExtractionOptions options) throws Exception {
         if (html.isEmpty())
             throw new IllegalArgumentException("html string is empty!?");
 
         // http://jsoup.org/cookbook/extracting-data/selector-syntax
-        return extractContent(res, Jsoup.parse(html), formatter, extractImages, extractAuthor, extractDate, maxContentSize);
+        return extractContent(res, Jsoup.parse(html), formatter, options);
+    }
+
+    /**
+     * Same as extractContent(res, html, options) but the bytes are parsed
+     * directly, so no string of the whole html is created.
+     *
+     * @param charset the charset from the http header or null, a charset in
+     * the html overrides it
+     * @param baseUri the url to resolve relative links or null
+     */
+    public JResult extractContent(JResult res, byte[] html, String charset, String baseUri,
+                                  ExtractionOptions options) throws Exception {
+        if (html.length == 0)
+            throw new IllegalArgumentException("html bytes are empty!?");
+
+        // one byte more than the array, so it is read completely without the maxBytes warning
+        return extractContent(res, new ByteArrayInputStream(html), charset, baseUri, html.length + 1, options);
+    }
+
+    /**
+     * Same as extractContent(res, html, options) but the stream is decoded
+     * while it is parsed. The stream is closed afterwards. Like
+     * Converter.streamToString at most Converter.DEFAULT_MAX_BYTES are read,
+     * the rest of a larger page is ignored.
+     *
+     * @param charset the charset from the http header or null, a charset in
+     * the html overrides it
+     * @param baseUri the url to resolve relative links or null
+     */
+    public JResult extractContent(JResult res, InputStream is, String charset, String baseUri,
+                                  ExtractionOptions options) throws Exception {
+        return extractContent(res, is, charset, baseUri, Converter.DEFAULT_MAX_BYTES, options);
+    }
+
+    /**
+     * Same as extractContent(res, is, charset, baseUri, options) but reads at
+     * most maxBytes of the stream.
+     */
+    public JResult extractContent(JResult res, InputStream is, String charset, String baseUri,
+                                  int maxBytes, ExtractionOptions options) throws Exception {
+        Reader reader = new Converter(res.getUrl()).setMaxBytes(maxBytes).streamToReader(is, charset);
+        return extractContent(res, parse(reader, baseUri), formatter, options);
+    }
+
+    private static Document parse(Reader reader, String baseUri) throws IOException {
+        try {
+            return Parser.htmlParser().parseInput(reader, baseUri == null ? "" : baseUri);
+        } catch (org.jsoup.UncheckedIOException ex) {
+            // the read error of the reader, e.g. a timeout
+            throw ex.ioException();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Extracts only the metadata: title, description, canonical url, image,
+     * favicon, site name, type, language, keywords, rss and video url. Only the
+     * html before the body tag is parsed. If the head has no title or no image
+     * the whole html is extracted with extractContent instead.
+     */
+    public JResult extractMetadata(String html) throws Exception {
+        return extractMetadata(new JResult(), html, ExtractionOptions.DEFAULT);
+    }
+
+    public JResult extractMetadata(JResult res, String html) throws Exception {
+        return extractMetadata(res, html, ExtractionOptions.DEFAULT);
+    }
+
+    /**
+     * Same as extractMetadata(res, html) but only the requested fields are
+     * filled. The whole html is extracted only if the title or a requested
+     * image is missing in the head, so a link preview which can do without
+     * an image from the body should not request IMAGES.
+     */
+    public JResult extractMetadata(JResult res, String html, ExtractionOptions options) throws Exception {
+        if (html.isEmpty())
+            throw new IllegalArgumentException("html string is empty!?");
+
+        int bodyIndex = SHelper.indexOfBody(html);
+        if (bodyIndex >= 0
+                && extractHeadMetadata(res, Jsoup.parse(html.substring(0, bodyIndex), res.getUrl()), options))
+            return res;
+
+        return extractContent(res, Jsoup.parse(html, res.getUrl()), formatter, options);
+    }
+
+    /**
+     * Same as extractMetadata(res, html) but reads the stream only until the
+     * body starts. The rest is read only if the fallback is needed. The stream
+     * is closed afterwards.
+     *
+     * @param encoding the encoding from the http header or null
+     */
+    public JResult extractMetadata(JResult res, InputStream is, String encoding) throws Exception {
+        return extractMetadata(res, is, encoding, ExtractionOptions.DEFAULT);
+    }
+
+    /**
+     * Same as extractMetadata(res, is, encoding) with the fallback of
+     * extractMetadata(res, html, options).
+     *
+     * @throws IOException if the stream can't be read
+     */
+    public JResult extractMetadata(JResult res, InputStream is, String encoding, ExtractionOptions options)
+            throws Exception {
+        Converter converter = new Converter(res.getUrl());
+        String head = converter.streamToHead(is, encoding);
+        // a very long head is parsed with the whole page from the reader
+        if (head != null && extractHeadMetadata(res, Jsoup.parse(head, res.getUrl()), options)) {
+            converter.close();
+            return res;
+        }
+
+        return extractContent(res, parse(converter.streamToReader(), res.getUrl()), formatter, options);
+    }
+
+    /**
+     * Fills the requested metadata from the head only.
+     *
+     * @return false if the title or a requested image is missing, which
+     * extractContent could still find in the body
+     */
+    private boolean extractHeadMetadata(JResult res, Document head, ExtractionOptions options) {
+        final MetadataIndex meta = new MetadataIndex(head);
+        String title = extractTitle(meta);
+        boolean images = options.has(ExtractionOptions.IMAGES);
+        String imageUrl = images ? extractImageUrl(meta) : "";
+        if (imageUrl.length() > MAX_IMAGE_LENGTH)
+            imageUrl = "";
+        if (title.isEmpty() || images && imageUrl.isEmpty())
+            return false;
+
+        res.setTitle(title);
+        res.setImageUrl(imageUrl);
+        res.setDescription(extractDescription(meta));
+        res.setCanonicalUrl(extractCanonicalUrl(meta));
+        res.setSitename(extractSitename(meta));
+        res.setType(extractType(meta));
+        res.setLanguage(extractLanguage(meta));
+        if (options.has(ExtractionOptions.FAVICON))
+            res.setFaviconUrl(extractFaviconUrl(meta));
+        if (options.has(ExtractionOptions.KEYWORDS))
+            res.setKeywords(extractKeywords(meta));
+        if (options.has(ExtractionOptions.RSS))
+            res.setRssUrl(extractRssUrl(meta));
+        if (options.has(ExtractionOptions.VIDEO))
+            res.setVideoUrl(extractVideoUrl(meta));
+        return true;
     }
 
     // Returns the best node match based on the weights (see getWeight for strategy)
-	private Element getBestMatchElement(Collection<Element> nodes){
+	private Element getBestMatchElement(Collection<Element> nodes, ExtractionContext context){
 		int maxWeight = -200;        // why -200 now instead of 0?
 		Element bestMatchElement = null;
 		
@@ -181,7 +372,7 @@ public class ArticleTextExtractor {
             LogEntries entries = null;
             if (DEBUG_WEIGHTS)
                 entries = new LogEntries();
-            int currentWeight = getWeight(entry, false, entries);
+            int currentWeight = getWeight(entry, false, entries, context);
             if (DEBUG_WEIGHTS){
                 if(currentWeight>MIN_WEIGHT_TO_SHOW_IN_LOG){
                     System.out.println("");
@@ -231,38 +422,79 @@ public class ArticleTextExtractor {
         return bestMatchElement;
     }
 
+    /**
+     * Returns the best node of the document body. Same result as
+     * getBestMatchElement(getNodes(doc)) but all candidates are weighted with
+     * a single post-order traversal instead of re-walking the children and
+     * grandchildren of every candidate.
+     */
+    private Element getBestMatchElement(Document doc, ExtractionContext context) {
+        Element body = doc.body();
+        if (body == null)
+            return null;
+
+        WeightingPass pass = new WeightingPass(context);
+        NodeTraversor.filter(pass, body);
+        return pass.bestMatchElement;
+    }
+
     public JResult extractContent(JResult res, Document doc, OutputFormatter formatter, 
                                   boolean extractImages, boolean extractAuthor, boolean extractDate,
                                   int maxContentSize) throws Exception {
-        Document origDoc = doc.clone();
-        JResult result = extractContent(res, doc, formatter, extractImages, extractAuthor, extractDate, maxContentSize, true);
+        return extractContent(res, doc, formatter,
+                ExtractionOptions.of(extractImages, extractAuthor, extractDate, maxContentSize));
+    }
+
+    /**
+     * The document is not modified, so if skipping the scripts and styles
+     * yields no text the second try can run on the same document.
+     *
+     * @param options the parts of the result which should be extracted, the
+     * work for all other parts is skipped
+     */
+    public JResult extractContent(JResult res, Document doc, OutputFormatter formatter,
+                                  ExtractionOptions options) throws Exception {
+        JResult result = extractContent(res, doc, formatter, options, true);
         //System.out.println("result.getText().length()="+result.getText().length());
         if (result.getText().length() == 0) {
-            result = extractContent(res, origDoc, formatter, extractImages, extractAuthor, extractDate, maxContentSize, false);
+            result = extractContent(res, doc, formatter, options, false);
         }
         return result;
     }
 
-
-    // main workhorse
     public JResult extractContent(JResult res, Document doc, OutputFormatter formatter, 
                                   boolean extractImages, boolean extractAuthor, boolean extractDate,
                                   int maxContentSize, boolean cleanScripts) throws Exception {
+        return extractContent(res, doc, formatter,
+                ExtractionOptions.of(extractImages, extractAuthor, extractDate, maxContentSize), cleanScripts);
+    }
+
+    /**
+     * Main workhorse. The document is not modified: scores are kept in an
+     * ExtractionContext and, if cleanScripts is true, scripts, styles and
+     * noscript nodes are skipped instead of removed.
+     */
+    public JResult extractContent(JResult res, Document doc, OutputFormatter formatter,
+                                  ExtractionOptions options, boolean cleanScripts) throws Exception {
         if (doc == null)
             throw new NullPointerException("missing document");
 
+        final ExtractionContext context = new ExtractionContext(cleanScripts);
+        // all metadata lookups below use this index instead of a selector query each
+        final MetadataIndex meta = new MetadataIndex(doc);
+
         // get the easy stuff
-        res.setTitle(extractTitle(doc));
-        res.setDescription(extractDescription(doc));
-        res.setCanonicalUrl(extractCanonicalUrl(doc));
-        res.setType(extractType(doc));
-        res.setSitename(extractSitename(doc));
-        res.setLanguage(extractLanguage(doc));
+        res.setTitle(extractTitle(meta));
+        res.setDescription(extractDescription(meta));
+        res.setCanonicalUrl(extractCanonicalUrl(meta));
+        res.setType(extractType(meta));
+        res.setSitename(extractSitename(meta));
+        res.setLanguage(extractLanguage(meta));
 
         // get author information
-        if (extractAuthor) {
-            res.setAuthorName(extractAuthorName(doc));
-            res.setAuthorDescription(extractAuthorDescription(doc, res.getAuthorName()));
+        if (options.has(ExtractionOptions.AUTHOR)) {
+            res.setAuthorName(extractAuthorName(doc, meta, context));
+            res.setAuthorDescription(extractAuthorDescription(doc, meta, res.getAuthorName()));
         }
 
         // add extra selection gravity to any element containing author name
@@ -276,8 +508,8 @@ public class ArticleTextExtractor {
         */
 
         // get date from document, if not present, extract from URL if possible
-        if (extractDate) {
-            Date docdate = extractDate(doc);
+        if (options.has(ExtractionOptions.DATE)) {
+            Date docdate = extractDate(meta);
             if (docdate == null) {
                 String dateStr = SHelper.estimateDate(res.getUrl());
                 docdate = parseDate(dateStr);
@@ -286,14 +518,9 @@ public class ArticleTextExtractor {
                 res.setDate(docdate);
             }}
 
-        // now remove the clutter 
-        if (cleanScripts) {
-            prepareDocument(doc);
-        }
-
-        // init elements and get the one with highest weight (see getWeight for strategy)
-        final Collection<Element> nodes = getNodes(doc);
-        final Element bestMatchElement = getBestMatchElement(nodes);
+        // weight all candidates in one pass and get the one with highest weight
+        // (see getWeight for strategy), the clutter is skipped
+        final Element bestMatchElement = getBestMatchElement(doc, context);
 
         // do extraction from the best element
         if (bestMatchElement != null) {
@@ -308,11 +535,11 @@ public class ArticleTextExtractor {
                 System.out.println(outerHtml);
             }
 
-            if (extractImages) {
-                final String metadataImageUrl = extractImageUrl(doc);
+            if (options.has(ExtractionOptions.IMAGES)) {
+                final String metadataImageUrl = extractImageUrl(meta);
                 if (metadataImageUrl.isEmpty()) {
                     final List<ImageResult> images = new ArrayList<ImageResult>();
-                    final Element imgEl = determineImageSource(bestMatchElement, images);
+                    final Element imgEl = determineImageSource(bestMatchElement, images, context);
                     if (imgEl != null) {
                         res.setImageUrl(SHelper.replaceSpaces(imgEl.attr("src")));
                         // TODO remove parent container of image if it is contained in bestMatchElement
@@ -325,11 +552,14 @@ public class ArticleTextExtractor {
                 }
             }
 
-            // clean before grabbing text
-            String text = formatter.getFormattedText(bestMatchElement);
+            // clean before grabbing text, removed nodes are only marked in the context
+            // the text list is collected together with the text
+            String text = formatter.getFormattedText(bestMatchElement, context,
+                    options.has(ExtractionOptions.TEXT_LIST) ? res : null);
             text = removeTitleFromText(text, res.getTitle());
             // this fails for short facebook post and probably tweets: text.length() > res.getDescription().length()
             if (text.length() > res.getTitle().length()) {
+                int maxContentSize = options.getMaxContentSize();
                 if (maxContentSize > 0){
                     if (text.length() > maxContentSize){
                         text = utf8truncate(text, maxContentSize);
@@ -339,23 +569,22 @@ public class ArticleTextExtractor {
                 //                print("best element:", bestMatchElement);
             }
 
-            // extract links from the same best element
-            final String fullhtml = bestMatchElement.toString();
-            final Elements children = bestMatchElement.select("a[href]"); // a with href = link
-            int lastlinkpos = 0;
-            for (Element child : children) {
-                final String linkstr = child.toString();
-                final int linkpos = fullhtml.indexOf(linkstr, lastlinkpos);
-                res.addLink(child.attr("abs:href"), child.text(), linkpos);
-                lastlinkpos = linkpos;
+            if (options.has(ExtractionOptions.LINKS)) {
+                // extract links from the same best element without the skipped nodes
+                final Element linkNode = context.hasSkipped(bestMatchElement)
+                        ? copyWithoutSkipped(doc, bestMatchElement, context) : bestMatchElement;
+                addLinks(res, linkNode);
             }
-            res.setTextList(formatter.getTextList(bestMatchElement));
         }
 
-        res.setRssUrl(extractRssUrl(doc));
-        res.setVideoUrl(extractVideoUrl(doc));
-        res.setFaviconUrl(extractFaviconUrl(doc));
-        res.setKeywords(extractKeywords(doc));
+        if (options.has(ExtractionOptions.RSS))
+            res.setRssUrl(extractRssUrl(meta));
+        if (options.has(ExtractionOptions.VIDEO))
+            res.setVideoUrl(extractVideoUrl(meta));
+        if (options.has(ExtractionOptions.FAVICON))
+            res.setFaviconUrl(extractFaviconUrl(meta));
+        if (options.has(ExtractionOptions.KEYWORDS))
+            res.setKeywords(extractKeywords(meta));
 
         // Sanity checks in author
         if (res.getAuthorName().length() > MAX_AUTHOR_NAME_LENGTH){
@@ -382,6 +611,45 @@ public class ArticleTextExtractor {
         return res;
     }
 
+    /**
+     * Adds the links of the element with their offset in its html: the first
+     * position at or after the previous offset where the html of the link
+     * occurs, or -1. The html is serialized once and, as a link starts with
+     * "<a ", the links are only compared at these positions instead of being
+     * searched in the whole html.
+     */
+    private static void addLinks(JResult res, Element linkNode) {
+        final Elements children = linkNode.select("a[href]"); // a with href = link
+        if (children.isEmpty())
+            return;
+
+        final String fullhtml = linkNode.toString();
+        int[] tagPositions = new int[children.size() + 8];
+        int tagCount = 0;
+        for (int pos = fullhtml.indexOf("<a "); pos >= 0; pos = fullhtml.indexOf("<a ", pos + 3)) {
+            if (tagCount == tagPositions.length)
+                tagPositions = Arrays.copyOf(tagPositions, tagCount * 2);
+            tagPositions[tagCount++] = pos;
+        }
+
+        // index of the first tag position at or after the previous offset
+        int from = 0;
+        for (Element child : children) {
+            final String linkstr = child.toString();
+            int linkpos = -1;
+            int i = from;
+            for (; i < tagCount; i++) {
+                if (fullhtml.startsWith(linkstr, tagPositions[i])) {
+                    linkpos = tagPositions[i];
+                    break;
+                }
+            }
+            // a missing link restarts the search at the beginning
+            from = linkpos < 0 ? 0 : i;
+            res.addLink(child.attr("abs:href"), child.text(), linkpos);
+        }
+    }
+
     private static String getSnippet(String data){
         if (data.length() < 50)
             return data;
@@ -397,22 +665,26 @@ public class ArticleTextExtractor {
     }
 
     protected String extractTitle(Document doc) {
+        return extractTitle(new MetadataIndex(doc));
+    }
+
+    protected String extractTitle(MetadataIndex meta) {
         // Let's first pick a reasonable candidate among explicit HTML tags
-        String title = SHelper.innerTrim(doc.select("head meta[property=og:title]").attr("content"));
+        String title = SHelper.innerTrim(meta.getHeadMeta("property", "og:title"));
         if (title.isEmpty()) {
-            title = SHelper.innerTrim(doc.select("head meta[name=twitter:title]").attr("content"));
+            title = SHelper.innerTrim(meta.getHeadMeta("name", "twitter:title"));
         }
         if (title.isEmpty()) {
-            title = cleanTitle(doc.title());
+            title = cleanTitle(meta.getTitle());
         }
         if (title.isEmpty()) {
-            title = SHelper.innerTrim(doc.select("head title").text());
+            title = SHelper.innerTrim(meta.getHeadTitleText());
         }
 
         // Some of those reasonable candidates still have prefixes: websites, names, project and such
         // But those prefixes aren't present within the pages, in particular they aren't in the headers tags like h1
         // Let's try to see if we have a long match with the earlier titles
-        String h1 = safeFirstText(doc.select("h1").first());
+        String h1 = safeFirstText(meta.getFirstH1());
         // But for that we need at least one candidate title to compare it to
         if (!title.isEmpty()) {
             if (!h1.isEmpty() && title.toLowerCase().startsWith(h1.toLowerCase())) {
@@ -423,7 +695,7 @@ public class ArticleTextExtractor {
         }
 
         // At this point we resort to heuristics since everything else failed
-        title = SHelper.innerTrim(doc.select("head meta[name=title]").attr("content"));
+        title = SHelper.innerTrim(meta.getHeadMeta("name", "title"));
         if (!title.isEmpty()) {
             return title;
         }
@@ -432,22 +704,30 @@ public class ArticleTextExtractor {
     }
 
     protected String extractCanonicalUrl(Document doc) {
-        String url = SHelper.replaceSpaces(doc.select("head link[rel=canonical]").attr("href"));
+        return extractCanonicalUrl(new MetadataIndex(doc));
+    }
+
+    protected String extractCanonicalUrl(MetadataIndex meta) {
+        String url = SHelper.replaceSpaces(meta.getHeadLink("canonical"));
         if (url.isEmpty()) {
-            url = SHelper.replaceSpaces(doc.select("head meta[property=og:url]").attr("content"));
+            url = SHelper.replaceSpaces(meta.getHeadMeta("property", "og:url"));
             if (url.isEmpty()) {
-                url = SHelper.replaceSpaces(doc.select("head meta[name=twitter:url]").attr("content"));
+                url = SHelper.replaceSpaces(meta.getHeadMeta("name", "twitter:url"));
             }
         }
         return url;
     }
 
     protected String extractDescription(Document doc) {
-        String description = SHelper.innerTrim(doc.select("head meta[name=description]").attr("content"));
+        return extractDescription(new MetadataIndex(doc));
+    }
+
+    protected String extractDescription(MetadataIndex meta) {
+        String description = SHelper.innerTrim(meta.getHeadMeta("name", "description"));
         if (description.isEmpty()) {
-            description = SHelper.innerTrim(doc.select("head meta[property=og:description]").attr("content"));
+            description = SHelper.innerTrim(meta.getHeadMeta("property", "og:description"));
             if (description.isEmpty()) {
-                description = SHelper.innerTrim(doc.select("head meta[name=twitter:description]").attr("content"));
+                description = SHelper.innerTrim(meta.getHeadMeta("name", "twitter:description"));
             }
         }
         return description;
@@ -455,10 +735,14 @@ public class ArticleTextExtractor {
 
     // Returns the publication Date or null
 	protected Date extractDate(Document doc) {
+        return extractDate(new MetadataIndex(doc));
+    }
+
+	protected Date extractDate(MetadataIndex meta) {
 		String dateStr = "";
 
         // try some locations that nytimes uses
-        Element elem = doc.select("meta[name=ptime]").first();
+        Element elem = meta.first("name", "ptime", "meta");
 		if (elem != null) {
             dateStr = SHelper.innerTrim(elem.attr("content"));
             //            elem.attr("extragravityscore", Integer.toString(100));
@@ -466,13 +750,13 @@ public class ArticleTextExtractor {
         }
 
 		if (dateStr == "") {
-            dateStr = SHelper.innerTrim(doc.select("meta[name=utime]").attr("content"));
+            dateStr = SHelper.innerTrim(meta.getMeta("name", "utime"));
         }
 		if (dateStr == "") {
-            dateStr = SHelper.innerTrim(doc.select("meta[name=pdate]").attr("content"));
+            dateStr = SHelper.innerTrim(meta.getMeta("name", "pdate"));
         }
 		if (dateStr == "") {
-            dateStr = SHelper.innerTrim(doc.select("meta[property=article:published]").attr("content"));
+            dateStr = SHelper.innerTrim(meta.getMeta("property", "article:published"));
         }
 		if (dateStr != "") {
             return parseDate(dateStr);
@@ -480,9 +764,8 @@ public class ArticleTextExtractor {
 
         // taking this stuff directly from Juicer (and converted to Java)
         // opengraph (?)
-        Elements elems = doc.select("meta[property=article:published_time]");
-        if (elems.size() > 0) {
-            Element el = elems.get(0);
+        Element el = meta.first("property", "article:published_time", "meta");
+        if (el != null) {
             if (el.hasAttr("content")) {
                 dateStr = el.attr("content");
                 try {
@@ -501,9 +784,8 @@ public class ArticleTextExtractor {
         } 
 
         // rnews 
-        elems = doc.select("meta[property=dateCreated], span[property=dateCreated]");
-        if (elems.size() > 0) {
-            Element el = elems.get(0);
+        el = meta.first("property", "dateCreated", "meta", "span");
+        if (el != null) {
             if (el.hasAttr("content")) {
                 dateStr = el.attr("content");
                 
@@ -514,9 +796,8 @@ public class ArticleTextExtractor {
         }
 
         // schema.org creativework
-        elems = doc.select("meta[itemprop=datePublished], span[itemprop=datePublished]");
-        if (elems.size() > 0) {
-            Element el = elems.get(0);
+        el = meta.first("itemprop", "datePublished", "meta", "span");
+        if (el != null) {
             if (el.hasAttr("content")) {
                 dateStr = el.attr("content");
                 
@@ -546,9 +827,8 @@ public class ArticleTextExtractor {
         */
       
         // BBC
-        elems = doc.select("meta[name=OriginalPublicationDate]");
-        if (elems.size() > 0) {
-            Element el = elems.get(0);
+        el = meta.first("name", "OriginalPublicationDate", "meta");
+        if (el != null) {
             if (el.hasAttr("content")) {
                 dateStr = el.attr("content");
                 return parseDate(dateStr);
@@ -556,9 +836,8 @@ public class ArticleTextExtractor {
         }
 
         // wired
-        elems = doc.select("meta[name=DisplayDate]");
-        if (elems.size() > 0) {
-            Element el = elems.get(0);
+        el = meta.first("name", "DisplayDate", "meta");
+        if (el != null) {
             if (el.hasAttr("content")) {
                 dateStr = el.attr("content");
                 return parseDate(dateStr);
@@ -566,9 +845,14 @@ public class ArticleTextExtractor {
         }
 
         // wildcard
-        elems = doc.select("meta[name*=date]");
-        if (elems.size() > 0) {
-            Element el = elems.get(0);
+        el = null;
+        for (Element metaEl : meta.getMetas()) {
+            if (metaEl.hasAttr("name") && metaEl.attr("name").toLowerCase(Locale.ENGLISH).contains("date")) {
+                el = metaEl;
+                break;
+            }
+        }
+        if (el != null) {
             if (el.hasAttr("content")) {
                 dateStr = el.attr("content");
                 Date parsedDate = parseDate(dateStr);
@@ -579,17 +863,15 @@ public class ArticleTextExtractor {
         }
 
         // blogger
-        elems = doc.select(".date-header");
-        if (elems.size() > 0) {
-            Element el = elems.get(0);
+        el = meta.getFirstDateHeader();
+        if (el != null) {
             dateStr = el.text();
             return parseDate(dateStr);
         }
 
         // naturebox.com
-        elems = doc.select("time[class=published]");
-        if (elems.size() > 0) {
-            Element el = elems.get(0);
+        el = meta.getFirstPublishedTime();
+        if (el != null) {
             dateStr = el.text();
             return parseDate(dateStr);
         }
@@ -597,61 +879,62 @@ public class ArticleTextExtractor {
         return null;
     }
 
+    static final String[] DATE_PATTERNS = {
+        "yyyy-MM-dd'T'HH:mm:ssz", 
+        "yyyy-MM-dd HH:mm:ss", 
+        "yyyy/MM/dd HH:mm:ss", 
+        "yyyy-MM-dd HH:mm",
+        "yyyy/MM/dd HH:mm",
+        "yyyy-MM-dd", 
+        "yyyy/MM/dd",
+        "MM/dd/yyyy HH:mm:ss",
+        "MM-dd-yyyy HH:mm:ss",
+        "MM/dd/yyyy HH:mm",
+        "MM-dd-yyyy HH:mm",
+        "MM/dd/yyyy",
+        "MM-dd-yyyy",
+        "EEE, MMM dd, yyyy",
+        "MM/dd/yyyy hh:mm:ss a",
+        "MM-dd-yyyy hh:mm:ss a",
+        "MM/dd/yyyy hh:mm a",
+        "MM-dd-yyyy hh:mm a",
+        "yyyy-MM-dd hh:mm:ss a", 
+        "yyyy/MM/dd hh:mm:ss a ", 
+        "yyyy-MM-dd hh:mm a",
+        "yyyy/MM/dd hh:mm ",
+        "dd MMM yyyy",
+        "dd MMMM yyyy",
+        "yyyyMMddHHmm",
+        "yyyyMMdd HHmm",
+        "dd-MM-yyyy HH:mm:ss",
+        "dd/MM/yyyy HH:mm:ss",
+        "dd MMM yyyy HH:mm:ss",
+        "dd MMMM yyyy HH:mm:ss",
+        "dd-MM-yyyy HH:mm",
+        "dd/MM/yyyy HH:mm",
+        "dd MMM yyyy HH:mm",
+        "dd MMMM yyyy HH:mm",
+        "yyyyMMddHHmmss",
+        "yyyyMMdd HHmmss",
+        "yyyyMMdd",
+        "MMM dd, yyyy",
+    };
+    private static final DateParser DATE_PARSER = new DateParser(DATE_PATTERNS);
+
     private Date parseDate(String dateStr) {
-        String[] parsePatterns = {
-            "yyyy-MM-dd'T'HH:mm:ssz", 
-            "yyyy-MM-dd HH:mm:ss", 
-            "yyyy/MM/dd HH:mm:ss", 
-            "yyyy-MM-dd HH:mm",
-            "yyyy/MM/dd HH:mm",
-            "yyyy-MM-dd", 
-            "yyyy/MM/dd",
-            "MM/dd/yyyy HH:mm:ss",
-            "MM-dd-yyyy HH:mm:ss",
-            "MM/dd/yyyy HH:mm",
-            "MM-dd-yyyy HH:mm",
-            "MM/dd/yyyy",
-            "MM-dd-yyyy",
-            "EEE, MMM dd, yyyy",
-            "MM/dd/yyyy hh:mm:ss a",
-            "MM-dd-yyyy hh:mm:ss a",
-            "MM/dd/yyyy hh:mm a",
-            "MM-dd-yyyy hh:mm a",
-            "yyyy-MM-dd hh:mm:ss a", 
-            "yyyy/MM/dd hh:mm:ss a ", 
-            "yyyy-MM-dd hh:mm a",
-            "yyyy/MM/dd hh:mm ",
-            "dd MMM yyyy",
-            "dd MMMM yyyy",
-            "yyyyMMddHHmm",
-            "yyyyMMdd HHmm",
-            "dd-MM-yyyy HH:mm:ss",
-            "dd/MM/yyyy HH:mm:ss",
-            "dd MMM yyyy HH:mm:ss",
-            "dd MMMM yyyy HH:mm:ss",
-            "dd-MM-yyyy HH:mm",
-            "dd/MM/yyyy HH:mm",
-            "dd MMM yyyy HH:mm",
-            "dd MMMM yyyy HH:mm",
-            "yyyyMMddHHmmss",
-            "yyyyMMdd HHmmss",
-            "yyyyMMdd",
-            "MMM dd, yyyy",
-        };
-
-      try {
-          return DateUtils.parseDateStrictly(dateStr, parsePatterns);
-      } catch (Exception ex) {
-          return null;
-      }
+        return DATE_PARSER.parse(dateStr);
     }
 
     // Returns the author name or null
 	protected String extractAuthorName(Document doc) {
+        return extractAuthorName(doc, new MetadataIndex(doc), new ExtractionContext(false));
+    }
+
+	protected String extractAuthorName(Document doc, MetadataIndex meta, ExtractionContext context) {
 		String authorName = "";
 		
         // first try the Google Author tag
-		Element result = doc.select("body [rel*=author]").first();
+		Element result = meta.getFirstBodyAuthorRel();
 		if (result != null)
 			authorName = SHelper.innerTrim(result.ownText());
 
@@ -659,19 +942,19 @@ public class ArticleTextExtractor {
 		if (authorName.isEmpty()) {
 
             // meta tag approaches, get content
-            result = doc.select("head meta[name=author]").first();
+            result = meta.firstHeadMeta("name", "author");
             if (result != null) {
                 authorName = SHelper.innerTrim(result.attr("content"));
             }
 
             if (authorName.isEmpty()) {  // for "opengraph"
-                authorName = SHelper.innerTrim(doc.select("head meta[property=article:author]").attr("content"));
+                authorName = SHelper.innerTrim(meta.getHeadMeta("property", "article:author"));
             }
             if (authorName.isEmpty()) { // OpenGraph twitter:creator tag
-            	authorName = SHelper.innerTrim(doc.select("head meta[property=twitter:creator]").attr("content"));
+            	authorName = SHelper.innerTrim(meta.getHeadMeta("property", "twitter:creator"));
             }
             if (authorName.isEmpty()) {  // for "schema.org creativework"
-                authorName = SHelper.innerTrim(doc.select("meta[itemprop=author], span[itemprop=author]").attr("content"));
+                authorName = SHelper.innerTrim(meta.attr("itemprop", "author", "content", "meta", "span"));
             }
 
             // other hacks
@@ -701,7 +984,7 @@ public class ArticleTextExtractor {
 
                     // select the best element from them
 					if(matches != null){
-						Element bestMatch = getBestMatchElement(matches);
+						Element bestMatch = getBestMatchElement(matches, context);
 
 						if(!(bestMatch == null))
 						{
@@ -738,6 +1021,10 @@ public class ArticleTextExtractor {
 
     // Returns the author description or null
     protected String extractAuthorDescription(Document doc, String authorName){
+        return extractAuthorDescription(doc, new MetadataIndex(doc), authorName);
+    }
+
+    protected String extractAuthorDescription(Document doc, MetadataIndex meta, String authorName){
 
         String authorDesc = "";
 
@@ -760,20 +1047,39 @@ public class ArticleTextExtractor {
             return authorDesc;
         }
 
-        try {
-            Elements nodes = doc.select(":containsOwn(" + authorName + ")");
-            Element bestMatch = getBestMatchElement(nodes);
-            if (bestMatch != null)
-                authorDesc = bestMatch.text();
-        } catch(SelectorParseException se){
-            // Avoid error when selector is invalid
-        }
+        // the author name is looked up in the own text index, no selector is built from it
+        List<Element> nodes = meta.getElementsContainingOwnText(authorName);
+        Element bestMatch = getBestAuthorElement(nodes);
+        if (bestMatch != null)
+            authorDesc = bestMatch.text();
 
         return authorDesc;
     }
 
+    /**
+     * Lightweight version of getBestMatchElement for the few elements which
+     * contain the author name: only the class/id weight and the own text
+     * weight are used, the children are not weighted.
+     */
+    private Element getBestAuthorElement(List<Element> nodes) {
+        int maxWeight = -200;
+        Element bestMatchElement = null;
+        for (Element entry : nodes) {
+            int weight = calcWeight(entry) + (int) Math.round(entry.ownText().length() / 100.0 * 10);
+            if (weight > maxWeight) {
+                maxWeight = weight;
+                bestMatchElement = entry;
+            }
+        }
+        return bestMatchElement;
+    }
+
     protected Collection<String> extractKeywords(Document doc) {
-        String content = SHelper.innerTrim(doc.select("head meta[name=keywords]").attr("content"));
+        return extractKeywords(new MetadataIndex(doc));
+    }
+
+    protected Collection<String> extractKeywords(MetadataIndex meta) {
+        String content = SHelper.innerTrim(meta.getHeadMeta("name", "keywords"));
 
         if (content != null) {
             if (content.startsWith("[") && content.endsWith("]"))
@@ -792,15 +1098,19 @@ public class ArticleTextExtractor {
      * @return image url or empty str
      */
     protected String extractImageUrl(Document doc) {
+        return extractImageUrl(new MetadataIndex(doc));
+    }
+
+    protected String extractImageUrl(MetadataIndex meta) {
         // use open graph tag to get image
-        String imageUrl = SHelper.replaceSpaces(doc.select("head meta[property=og:image]").attr("content"));
+        String imageUrl = SHelper.replaceSpaces(meta.getHeadMeta("property", "og:image"));
         if (imageUrl.isEmpty()) {
-            imageUrl = SHelper.replaceSpaces(doc.select("head meta[name=twitter:image]").attr("content"));
+            imageUrl = SHelper.replaceSpaces(meta.getHeadMeta("name", "twitter:image"));
             if (imageUrl.isEmpty()) {
                 // prefer link over thumbnail-meta if empty
-                imageUrl = SHelper.replaceSpaces(doc.select("link[rel=image_src]").attr("href"));
+                imageUrl = SHelper.replaceSpaces(meta.getLink("image_src"));
                 if (imageUrl.isEmpty()) {
-                    imageUrl = SHelper.replaceSpaces(doc.select("head meta[name=thumbnail]").attr("content"));
+                    imageUrl = SHelper.replaceSpaces(meta.getHeadMeta("name", "thumbnail"));
                 }
             }
         }
@@ -808,44 +1118,77 @@ public class ArticleTextExtractor {
     }
 
     protected String extractRssUrl(Document doc) {
-        return SHelper.replaceSpaces(doc.select("link[rel=alternate]").select("link[type=application/rss+xml]").attr("href"));
+        return extractRssUrl(new MetadataIndex(doc));
+    }
+
+    protected String extractRssUrl(MetadataIndex meta) {
+        for (Element link : meta.get("rel", "alternate")) {
+            if (link.tagName().equals("link") && link.hasAttr("href")
+                    && link.attr("type").trim().equalsIgnoreCase("application/rss+xml"))
+                return SHelper.replaceSpaces(link.attr("href"));
+        }
+        return "";
     }
 
     protected String extractVideoUrl(Document doc) {
-        return SHelper.replaceSpaces(doc.select("head meta[property=og:video]").attr("content"));
+        return extractVideoUrl(new MetadataIndex(doc));
+    }
+
+    protected String extractVideoUrl(MetadataIndex meta) {
+        return SHelper.replaceSpaces(meta.getHeadMeta("property", "og:video"));
     }
 
     protected String extractFaviconUrl(Document doc) {
-        String faviconUrl = SHelper.replaceSpaces(doc.select("head link[rel=icon]").attr("href"));
+        return extractFaviconUrl(new MetadataIndex(doc));
+    }
+
+    protected String extractFaviconUrl(MetadataIndex meta) {
+        String faviconUrl = SHelper.replaceSpaces(meta.getHeadLink("icon"));
         if (faviconUrl.isEmpty()) {
-            faviconUrl = SHelper.replaceSpaces(doc.select("head link[rel^=shortcut],link[rel$=icon]").attr("href"));
+            // same as "head link[rel^=shortcut],link[rel$=icon]"
+            for (Element link : meta.getLinks()) {
+                if (!link.hasAttr("rel") || !link.hasAttr("href"))
+                    continue;
+                String rel = link.attr("rel").toLowerCase(Locale.ENGLISH);
+                if (rel.endsWith("icon") || (rel.startsWith("shortcut") && meta.isInHead(link))) {
+                    faviconUrl = SHelper.replaceSpaces(link.attr("href"));
+                    break;
+                }
+            }
         }
         return faviconUrl;
     }
     	
     protected String extractType(Document doc) {
-        String type = cleanTitle(doc.title());
-        type = SHelper.innerTrim(doc.select("head meta[property=og:type]").attr("content"));
-        return type;
+        return extractType(new MetadataIndex(doc));
+    }
+
+    protected String extractType(MetadataIndex meta) {
+        return SHelper.innerTrim(meta.getHeadMeta("property", "og:type"));
     }
 
     protected String extractSitename(Document doc) {
-        String sitename = SHelper.innerTrim(doc.select("head meta[property=og:site_name]").attr("content"));
+        return extractSitename(new MetadataIndex(doc));
+    }
+
+    protected String extractSitename(MetadataIndex meta) {
+        String sitename = SHelper.innerTrim(meta.getHeadMeta("property", "og:site_name"));
         if (sitename.isEmpty()) {
-        	sitename = SHelper.innerTrim(doc.select("head meta[name=twitter:site]").attr("content"));
+        	sitename = SHelper.innerTrim(meta.getHeadMeta("name", "twitter:site"));
         }
-		if (sitename.isEmpty()) {
-			sitename = SHelper.innerTrim(doc.select("head meta[property=og:site_name]").attr("content"));
-		}
         return sitename;
     }
 
 	protected String extractLanguage(Document doc) {
-		String language = SHelper.innerTrim(doc.select("head meta[property=language]").attr("content"));
+        return extractLanguage(new MetadataIndex(doc));
+    }
+
+	protected String extractLanguage(MetadataIndex meta) {
+		String language = SHelper.innerTrim(meta.getHeadMeta("property", "language"));
 	    if (language.isEmpty()) {
-	    	language = SHelper.innerTrim(doc.select("html").attr("lang"));
+	    	language = SHelper.innerTrim(meta.getLang());
 	    	if (language.isEmpty()) {
-				language = SHelper.innerTrim(doc.select("head meta[property=og:locale]").attr("content"));
+				language = SHelper.innerTrim(meta.getHeadMeta("property", "og:locale"));
 	    	}
 	    }
 	    if (!language.isEmpty()) {
@@ -865,12 +1208,16 @@ public class ArticleTextExtractor {
      * @param e Element to weight, along with child nodes
      */
     protected int getWeight(Element e, boolean checkextra, LogEntries logEntries) {
+        return getWeight(e, checkextra, logEntries, new ExtractionContext(false));
+    }
+
+    protected int getWeight(Element e, boolean checkextra, LogEntries logEntries, ExtractionContext context) {
         int weight = calcWeight(e);
         if(logEntries!=null) logEntries.add("       ======>     BASE WEIGHT:" + String.format("%3d", weight));
-        int ownTextWeight = (int) Math.round(e.ownText().length() / 100.0 * 10);
+        int ownTextWeight = (int) Math.round(context.ownTextLength(e) / 100.0 * 10);
         weight+=ownTextWeight;
         if(logEntries!=null) logEntries.add("       ======> OWN TEXT WEIGHT:" + String.format("%3d", ownTextWeight));
-        int childrenWeight = (int) Math.round(weightChildNodes(e, logEntries) * 0.9);
+        int childrenWeight = (int) Math.round(weightChildNodes(e, logEntries, context) * 0.9);
         weight+=childrenWeight;
         if(logEntries!=null) logEntries.add("       ======> CHILDREN WEIGHT:" + String.format("%3d", childrenWeight));
 
@@ -900,17 +1247,18 @@ public class ArticleTextExtractor {
      * @param rootEl Element, who's child nodes will be weighted
      */
     protected int weightChildNodes(Element rootEl, LogEntries logEntries) {
+        return weightChildNodes(rootEl, logEntries, new ExtractionContext(false));
+    }
+
+    protected int weightChildNodes(Element rootEl, LogEntries logEntries, ExtractionContext context) {
         int weight = 0;
         Element caption = null;
         List<Element> pEls = new ArrayList<Element>(5);
 
         for (Element child : rootEl.children()) {
-            String ownText = child.ownText();
-
             // if you are on a paragraph, grab all the text including that surrounded by additional formatting.
-            if (child.tagName().equals("p")) ownText = child.text();
-
-            int ownTextLength = ownText.length();
+            boolean isP = child.tagName().equals("p");
+            int ownTextLength = isP ? context.textLength(child) : context.ownTextLength(child);
             if (ownTextLength < 20)
                 continue;
 
@@ -934,8 +1282,9 @@ public class ArticleTextExtractor {
                 if(logEntries!=null)
                     logEntries.add("\t   H1/H2 WEIGHT:" 
                                    + String.format("%3d", h2h1Weight));
-            } else if (child.tagName().equals("div") || child.tagName().equals("p")) {
-                int calcChildWeight = calcWeightForChild(child, ownText);
+            } else if (child.tagName().equals("div") || isP) {
+                String ownText = isP ? context.text(child) : child.ownText();
+                int calcChildWeight = calcWeightForChild(child, ownText, context);
                 weight+=calcChildWeight;
                 if(logEntries!=null)
                     logEntries.add("\t   CHILD WEIGHT:" 
@@ -969,8 +1318,7 @@ public class ArticleTextExtractor {
             // If the node looks negative don't include it in the weights
             // instead penalize the grandparent. This is done to try to 
             // avoid giving weigths to navigation nodes, etc.
-            if (NEGATIVE.matcher(child2.id()).find() || 
-                NEGATIVE.matcher(child2.className()).find()){
+            if (isNegative(child2)){
                 if(logEntries!=null){
                     logEntries.add("\t  CHILD DISCARDED");
                 }
@@ -980,8 +1328,7 @@ public class ArticleTextExtractor {
 
             for (Element grandchild : child2.children()) {
                 int grandchildWeight = 0;
-                String ownText = grandchild.ownText();
-                int ownTextLength = ownText.length();
+                int ownTextLength = context.ownTextLength(grandchild);
                 if (ownTextLength < 20)
                     continue;
 
@@ -1006,7 +1353,7 @@ public class ArticleTextExtractor {
                         logEntries.add("   GRANDCHILD H1/H2 WEIGHT:" 
                                        + String.format("%3d", h2h1Weight));
                 } else if (grandchild.tagName().equals("div") || grandchild.tagName().equals("p")) {
-                    int calcChildWeight = calcWeightForChild(grandchild, ownText);
+                    int calcChildWeight = calcWeightForChild(grandchild, grandchild.ownText(), context);
                     grandchildWeight+=calcChildWeight;
                     if(logEntries!=null)
                         logEntries.add("   GRANDCHILD CHILD WEIGHT:" 
@@ -1050,88 +1397,77 @@ public class ArticleTextExtractor {
                                        + String.format("%3d", h1h2h3Weight));
                     // headerEls.add(subEl);
                 } else if ("table;li;td;th".contains(subEl.tagName())) {
-                    addScore(subEl, -30);
+                    context.addScore(subEl, -30);
                 }
 
                 if ("p".contains(subEl.tagName()))
-                    addScore(subEl, 30);
+                    context.addScore(subEl, 30);
             }
         }
         return weight;
     }
 
-    public void addScore(Element el, int score) {
-        int old = getScore(el);
-        setScore(el, score + old);
-    }
-
-    public int getScore(Element el) {
-        int old = 0;
-        try {
-            old = Integer.parseInt(el.attr("gravityScore"));
-        } catch (Exception ex) {
-        }
-        return old;
-    }
-
-    public void setScore(Element el, int score) {
-        el.attr("gravityScore", Integer.toString(score));
+    private int calcWeightForChild(Element child, String ownText, ExtractionContext context) {
+        int val = calcWeightForChildText(ownText);
+        context.addScore(child, val);
+        return val;
     }
 
-    private int calcWeightForChild(Element child, String ownText) {
-        int c = SHelper.count(ownText, "&quot;");
-        c += SHelper.count(ownText, "&lt;");
-        c += SHelper.count(ownText, "&gt;");
-        c += SHelper.count(ownText, "px");
-        int val;
+    private static int calcWeightForChildText(String ownText) {
+        int c = SHelper.countAll(ownText, "&quot;", "&lt;", "&gt;", "px");
         if (c > 5)
-            val = -30;
+            return -30;
         else
-            val = (int) Math.round(ownText.length() / 35.0);
+            return (int) Math.round(ownText.length() / 35.0);
+    }
 
-        addScore(child, val);
-        return val;
+    private static int calcChildTextWeight(int ownTextLength) {
+        if (ownTextLength > 200)
+            return Math.max(50, ownTextLength / 10);
+        return 0;
     }
 
     private int calcWeight(Element e) {
         int weight = 0;
+        int className = classifier.classify(e.className());
+        int id = classifier.classify(e.id());
 
-        if (HIGHLY_POSITIVE.matcher(e.className()).find()){
+        if ((className & HIGHLY_POSITIVE_BIT) != 0){
             weight += 200;
             if (DEBUG_BASE_WEIGHTS) { System.out.println("+200"); }
         }
 
-        if (HIGHLY_POSITIVE.matcher(e.id()).find()) {
+        if ((id & HIGHLY_POSITIVE_BIT) != 0) {
             weight += 90;
             if (DEBUG_BASE_WEIGHTS) { System.out.println("+90"); }
         }
 
-        if (POSITIVE.matcher(e.className()).find()){
+        if ((className & POSITIVE_BIT) != 0){
             weight += 35;
             if (DEBUG_BASE_WEIGHTS) { System.out.println("+35"); }
         }
 
-        if (POSITIVE.matcher(e.id()).find()){
+        if ((id & POSITIVE_BIT) != 0){
             weight += 45;
             if (DEBUG_BASE_WEIGHTS) { System.out.println("+45"); }
         }
 
-        if (UNLIKELY.matcher(e.className()).find()){
+        if ((className & UNLIKELY_BIT) != 0){
             weight -= 20;
             if (DEBUG_BASE_WEIGHTS) { System.out.println("-20"); }
         }
 
-        if (UNLIKELY.matcher(e.id()).find()){
+        if ((id & UNLIKELY_BIT) != 0){
             weight -= 20;
             if (DEBUG_BASE_WEIGHTS) { System.out.println("-20"); }
         }
 
-        if (NEGATIVE.matcher(e.className()).find()){
+        if ((className & NEGATIVE_BIT) != 0){
             weight -= 50;
             if (DEBUG_BASE_WEIGHTS) { System.out.println("-50"); }
         }
 
-        if (NEGATIVE.matcher(e.id()).find()){
+        if ((id & NEGATIVE_BIT) != 0){
             weight -= 50;
             if (DEBUG_BASE_WEIGHTS) { System.out.println("-50"); }
         }
@@ -1143,7 +1479,7 @@ public class ArticleTextExtractor {
         }
 
         String itemprop = e.attr("itemprop");
-        if (itemprop != null && !itemprop.isEmpty() && POSITIVE.matcher(itemprop).find()){
+        if (itemprop != null && !itemprop.isEmpty() && (classifier.classify(itemprop) & POSITIVE_BIT) != 0){
             weight += 100;
             if (DEBUG_BASE_WEIGHTS) { System.out.println("+100"); }
         }
@@ -1152,12 +1488,19 @@ public class ArticleTextExtractor {
     }
 
     public Element determineImageSource(Element el, List<ImageResult> images) {
+        return determineImageSource(el, images, new ExtractionContext(false));
+    }
+
+    public Element determineImageSource(Element el, List<ImageResult> images, ExtractionContext context) {
         int maxWeight = Integer.MIN_VALUE;
         Element maxNode = null;
-        Elements els = el.select("img");
-        if (els.isEmpty())
-            els = el.parent().select("img");        
-        
+        Element root = el;
+        Elements els = context.select(el, "img");
+        if (els.isEmpty()) {
+            root = el.parent();
+            els = context.select(root, "img");
+        }
+
         double score = 1;
         for (Element e : els) {
             String sourceUrl = e.attr("src");
@@ -1216,6 +1559,71 @@ public class ArticleTextExtractor {
         return maxNode;
     }
 
+    /**
+     * Creates a detached copy of the best element without the ignored and
+     * removed nodes, serialized like the original document.
+     */
+    private Element copyWithoutSkipped(Document doc, Element bestMatchElement, final ExtractionContext context) {
+        final Element copy = bestMatchElement.clone();
+        final List<Node> copies = new ArrayList<Node>();
+        NodeTraversor.traverse(new NodeVisitor() {
+            @Override
+            public void head(Node node, int depth) {
+                copies.add(node);
+            }
+
+            @Override
+            public void tail(Node node, int depth) {
+            }
+        }, copy);
+
+        // the clone has the same structure, so the i-th node of a pre-order
+        // walk over the original is the original of the i-th copy
+        final List<Node> skipped = new ArrayList<Node>();
+        NodeTraversor.filter(new NodeFilter() {
+            int index = 0;
+
+            @Override
+            public FilterResult head(Node node, int depth) {
+                if (depth > 0 && context.isSkipped(node)) {
+                    skipped.add(copies.get(index));
+                    index += countNodes(node);
+                    return FilterResult.SKIP_ENTIRELY;
+                }
+                index++;
+                return FilterResult.CONTINUE;
+            }
+
+            @Override
+            public FilterResult tail(Node node, int depth) {
+                return FilterResult.CONTINUE;
+            }
+        }, bestMatchElement);
+        for (Node node : skipped) {
+            node.remove();
+        }
+
+        Document shell = Document.createShell(doc.baseUri());
+        shell.outputSettings(doc.outputSettings().clone());
+        shell.body().appendChild(copy);
+        return copy;
+    }
+
+    private static int countNodes(Node root) {
+        final int[] count = new int[1];
+        NodeTraversor.traverse(new NodeVisitor() {
+            @Override
+            public void head(Node node, int depth) {
+                count[0]++;
+            }
+
+            @Override
+            public void tail(Node node, int depth) {
+            }
+        }, root);
+        return count[0];
+    }
+
     /**
      * Prepares document. Currently only stipping unlikely candidates, since
      * from time to time they're getting more score than good ones especially in
@@ -1240,8 +1648,7 @@ public class ArticleTextExtractor {
             String className = child.className().toLowerCase();
             String id = child.id().toLowerCase();
 
-            if (NEGATIVE.matcher(className).find()
-                    || NEGATIVE.matcher(id).find()) {
+            if (((classifier.classify(className) | classifier.classify(id)) & NEGATIVE_BIT) != 0) {
 //                print("REMOVE:", child);
                 child.remove();
             }
@@ -1332,12 +1739,20 @@ public class ArticleTextExtractor {
      * @return a set of all important nodes
      */
     public Collection<Element> getNodes(Document doc) {
+        return getNodes(doc, new ExtractionContext(false));
+    }
+
+    /**
+     * @return a set of all important nodes, their initial scores are stored
+     * in the context
+     */
+    public Collection<Element> getNodes(Document doc, ExtractionContext context) {
         Map<Element, Object> nodes = new LinkedHashMap<Element, Object>(64);
         int score = 100;
         for (Element el : doc.select("body").select("*")) {
             if (NODES.matcher(el.tagName()).matches()) {
                 nodes.put(el, null);
-                setScore(el, score);
+                context.setScore(el, score);
                 score = score / 2;
             }
         }
@@ -1366,7 +1781,7 @@ public class ArticleTextExtractor {
             counter++;
         }
 
-        return SHelper.innerTrim(res.toString());
+        return SHelper.innerTrim(res);
     }
 
     /**
@@ -1421,6 +1836,212 @@ public class ArticleTextExtractor {
     }
 
 
+    /**
+     * Aggregates of one element, collected while the weighting pass is inside
+     * of it. Frames are reused per depth to avoid allocating one per element.
+     */
+    private static class WeightFrame {
+
+        Element element;
+        boolean candidate;
+        boolean negative;
+        int index;
+        // sum of the weights of the children, see weightChildNodes
+        int childrenWeight;
+        // sum of the weights of the children when weighted as grandchildren
+        int childrenAsGrandchildrenWeight;
+        // sum of childrenAsGrandchildrenWeight of the children
+        int grandChildrenWeight;
+        int pCount;
+        int headerCount;
+        boolean caption;
+
+        void reset(Element el, int index) {
+            this.element = el;
+            this.index = index;
+            candidate = false;
+            negative = false;
+            childrenWeight = 0;
+            childrenAsGrandchildrenWeight = 0;
+            grandChildrenWeight = 0;
+            pCount = 0;
+            headerCount = 0;
+            caption = false;
+        }
+    }
+
+    /**
+     * Computes the same weights as getWeight for all candidate nodes but with
+     * one post-order traversal: when an element is left its own text is
+     * measured once and folded into the frames of its parent and grandparent,
+     * so a candidate's weight is known as soon as the traversal leaves it.
+     * Scores are added to the same elements as in weightChildNodes.
+     */
+    private class WeightingPass implements NodeFilter {
+
+        private final ExtractionContext context;
+        private WeightFrame[] frames = new WeightFrame[32];
+        private int elementIndex = 0;
+        private int score = 100;
+        private int maxWeight = -200;
+        private int bestIndex = Integer.MAX_VALUE;
+        Element bestMatchElement;
+
+        WeightingPass(ExtractionContext context) {
+            this.context = context;
+        }
+
+        @Override
+        public FilterResult head(Node node, int depth) {
+            if (!(node instanceof Element))
+                return FilterResult.CONTINUE;
+
+            // skip the clutter like it would have been removed
+            if (context.isIgnored(node))
+                return FilterResult.SKIP_ENTIRELY;
+
+            Element el = (Element) node;
+            if (depth >= frames.length)
+                frames = Arrays.copyOf(frames, frames.length * 2);
+            WeightFrame frame = frames[depth];
+            if (frame == null)
+                frame = frames[depth] = new WeightFrame();
+
+            frame.reset(el, elementIndex++);
+            if (NODES.matcher(el.tagName()).matches()) {
+                frame.candidate = true;
+                // same initial score as in getNodes
+                context.setScore(el, score);
+                score = score / 2;
+            }
+            // only needed when weighting the children of a candidate
+            if (depth > 0 && frames[depth - 1].candidate)
+                frame.negative = isNegative(el);
+            return FilterResult.CONTINUE;
+        }
+
+        @Override
+        public FilterResult tail(Node node, int depth) {
+            if (!(node instanceof Element))
+                return FilterResult.CONTINUE;
+
+            WeightFrame frame = frames[depth];
+            WeightFrame parent = depth > 0 ? frames[depth - 1] : null;
+            WeightFrame grandParent = depth > 1 ? frames[depth - 2] : null;
+            boolean weightAsChild = parent != null && parent.candidate;
+            boolean weightAsGrandchild = grandParent != null && grandParent.candidate
+                    && !parent.negative;
+            Element el = frame.element;
+            String tagName = el.tagName();
+            boolean isP = tagName.equals("p");
+            // the own text itself is only needed for the weight of a div or p
+            int ownTextLength = 0;
+            String ownText = null;
+            if (frame.candidate || weightAsGrandchild || (weightAsChild && !isP))
+                ownTextLength = context.ownTextLength(el);
+
+            if (frame.candidate)
+                weightCandidate(frame, ownTextLength);
+
+            if (weightAsChild) {
+                if ("h1;h2;h3;h4;h5;h6".contains(tagName))
+                    parent.headerCount++;
+
+                // if you are on a paragraph, grab all the text including
+                // that surrounded by additional formatting.
+                int childTextLength = isP ? context.textLength(el) : ownTextLength;
+                if (childTextLength >= 20) {
+                    int weight = calcChildTextWeight(childTextLength);
+                    if (tagName.equals("h1") || tagName.equals("h2")) {
+                        weight += 30;
+                    } else if (tagName.equals("div") || isP) {
+                        String childText;
+                        if (isP) {
+                            childText = context.text(el);
+                        } else {
+                            ownText = el.ownText();
+                            childText = ownText;
+                        }
+                        int childWeight = calcWeightForChildText(childText);
+                        context.addScore(el, childWeight);
+                        weight += childWeight;
+                        if (isP && childTextLength > 50)
+                            parent.pCount++;
+                        if (el.className().equalsIgnoreCase("caption"))
+                            parent.caption = true;
+                    } else if (tagName.equalsIgnoreCase("strong")) {
+                        weight -= 100;
+                    }
+                    parent.childrenWeight += weight;
+                }
+
+                // negative children don't pass the weights of their children
+                // to the candidate but penalize it instead
+                if (frame.negative)
+                    parent.grandChildrenWeight -= 30;
+                else
+                    parent.grandChildrenWeight += frame.childrenAsGrandchildrenWeight;
+            }
+
+            if (weightAsGrandchild && ownTextLength >= 20) {
+                int weight = calcChildTextWeight(ownTextLength);
+                if (tagName.equals("h1") || tagName.equals("h2")) {
+                    weight += 30;
+                } else if (tagName.equals("div") || isP) {
+                    if (ownText == null)
+                        ownText = el.ownText();
+                    int grandchildWeight = calcWeightForChildText(ownText);
+                    context.addScore(el, grandchildWeight);
+                    weight += grandchildWeight;
+                }
+                parent.childrenAsGrandchildrenWeight += weight;
+            }
+            return FilterResult.CONTINUE;
+        }
+
+        private void weightCandidate(WeightFrame frame, int ownTextLength) {
+            Element el = frame.element;
+            int childrenWeight = frame.childrenWeight + frame.grandChildrenWeight / 3;
+            if (frame.caption)
+                childrenWeight += 30;
+
+            if (frame.pCount >= 2) {
+                childrenWeight += 20 * frame.headerCount;
+                for (Element subEl : el.children()) {
+                    if (context.isIgnored(subEl))
+                        continue;
+                    if (!"h1;h2;h3;h4;h5;h6".contains(subEl.tagName())
+                            && "table;li;td;th".contains(subEl.tagName()))
+                        context.addScore(subEl, -30);
+
+                    if ("p".contains(subEl.tagName()))
+                        context.addScore(subEl, 30);
+                }
+            }
+
+            int weight = calcWeight(el);
+            weight += (int) Math.round(ownTextLength / 100.0 * 10);
+            weight += (int) Math.round(childrenWeight * 0.9);
+
+            if (DEBUG_WEIGHTS && weight > MIN_WEIGHT_TO_SHOW_IN_LOG) {
+                System.out.println("");
+                System.out.println("-------------------------------------------");
+                System.out.println("         TAG: " + el.tagName());
+                System.out.println("                  TOTAL WEIGHT:"
+                                    + String.format("%3d", weight));
+            }
+
+            // the traversal is post-order, so for equal weights prefer the
+            // element that comes first in the document like getBestMatchElement
+            if (weight > maxWeight
+                    || (weight == maxWeight && bestMatchElement != null && frame.index < bestIndex)) {
+                maxWeight = weight;
+                bestIndex = frame.index;
+                bestMatchElement = el;
+            }
+        }
+    }
+
     /**
     *   Helper class to keep track of log entries.
     */
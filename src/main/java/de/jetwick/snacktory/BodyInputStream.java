@@ -0,0 +1,165 @@
+package de.jetwick.snacktory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A response body as a blocking InputStream like BodySubscribers.ofInputStream,
+ * but the whole body must be read before a deadline. Otherwise a read throws
+ * an HttpTimeoutException and the request is cancelled, so a server which
+ * sends the body very slowly can't block the reading thread for long.
+ */
+final class BodyInputStream extends InputStream implements HttpResponse.BodySubscriber<InputStream> {
+
+    // a marker of the end, no other list is the same instance
+    private static final List<ByteBuffer> LAST = Collections.unmodifiableList(new ArrayList<ByteBuffer>());
+    // at most one list is requested at a time
+    private final BlockingQueue<List<ByteBuffer>> queue = new LinkedBlockingQueue<List<ByteBuffer>>();
+    private final long deadlineNanos;
+    private volatile Flow.Subscription subscription;
+    private volatile Throwable failure;
+    private volatile boolean closed = false;
+    private Iterator<ByteBuffer> buffers = Collections.<ByteBuffer>emptyList().iterator();
+    private ByteBuffer current;
+    private boolean eof = false;
+
+    /**
+     * @param timeout the milliseconds from now until the body must be read
+     */
+    BodyInputStream(long timeout) {
+        this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    }
+
+    /**
+     * @return a handler which creates a stream with the timeout when the
+     * headers arrive
+     */
+    static HttpResponse.BodyHandler<InputStream> handler(final long timeout) {
+        return new HttpResponse.BodyHandler<InputStream>() {
+            @Override
+            public HttpResponse.BodySubscriber<InputStream> apply(HttpResponse.ResponseInfo info) {
+                return new BodyInputStream(timeout);
+            }
+        };
+    }
+
+    @Override
+    public CompletionStage<InputStream> getBody() {
+        return CompletableFuture.completedFuture(this);
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        if (closed)
+            subscription.cancel();
+        else
+            subscription.request(1);
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> item) {
+        queue.add(item);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        failure = throwable;
+        queue.add(LAST);
+    }
+
+    @Override
+    public void onComplete() {
+        queue.add(LAST);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (!nextBuffer())
+            return -1;
+
+        int n = Math.min(len, current.remaining());
+        current.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current == null ? 0 : current.remaining();
+    }
+
+    /**
+     * Waits for the next bytes until the deadline.
+     *
+     * @return false at the end of the body
+     */
+    private boolean nextBuffer() throws IOException {
+        while (current == null || !current.hasRemaining()) {
+            if (buffers.hasNext()) {
+                current = buffers.next();
+                continue;
+            }
+            if (closed)
+                throw new IOException("closed");
+            if (eof)
+                return false;
+
+            List<ByteBuffer> list;
+            try {
+                long wait = deadlineNanos - System.nanoTime();
+                list = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new IOException("interrupted while reading the body", ex);
+            }
+            if (list == null) {
+                close();
+                throw new HttpTimeoutException("Timed out reading the body");
+            }
+            if (list == LAST) {
+                eof = true;
+                if (failure != null)
+                    throw failure instanceof IOException ? (IOException) failure : new IOException(failure);
+                continue;
+            }
+            buffers = list.iterator();
+            subscription.request(1);
+        }
+        return true;
+    }
+
+    /**
+     * Cancels the request if the body was not read completely.
+     */
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        Flow.Subscription s = subscription;
+        if (s != null && !eof)
+            s.cancel();
+    }
+}
@@ -0,0 +1,185 @@
+package de.jetwick.snacktory;
+
+/**
+ * Finds the body start tag of an html like the tree builder sees it: a
+ * &lt;body inside a comment, an attribute value or the content of script,
+ * style, noscript, title and the other raw text elements doesn't count.
+ *
+ * The scan can be continued when more of the html is available, e.g. while
+ * a stream is read, so every char is looked at about once. This class is
+ * not thread safe.
+ */
+final class BodyTagFinder {
+
+    // elements whose content is no markup, as far as the body tag is concerned
+    private static final String[] RAW_TEXT = {"script", "style", "noscript", "title", "textarea", "xmp",
+        "iframe", "noembed", "noframes", "template"};
+    private int pos = 0;
+    // the end tag which ends the current raw text, e.g. "</script", or null
+    private String rawTextEnd;
+
+    /**
+     * @param html the html read so far, previous calls must have seen the
+     * same chars
+     * @param length the number of chars of html which are available
+     * @return the index of the body tag or -1 if it is not within length
+     */
+    int find(CharSequence html, int length) {
+        while (pos < length) {
+            if (rawTextEnd != null) {
+                int end = indexOfEndTag(html, length, rawTextEnd);
+                if (end < 0)
+                    return -1;
+                rawTextEnd = null;
+                pos = end;
+            }
+
+            if (html.charAt(pos) != '<') {
+                pos++;
+                continue;
+            }
+            // a tag which is not complete yet is scanned again with more chars
+            if (startsWith(html, length, pos, "<!--")) {
+                // <!--> and <!---> are comments too
+                int end = indexOf(html, length, pos + 2, "-->");
+                if (end < 0)
+                    return -1;
+                pos = end + 3;
+            } else if (pos + 2 < length && html.charAt(pos + 1) == '/' && isLetter(html.charAt(pos + 2))) {
+                int end = indexOf(html, length, pos + 2, ">");
+                if (end < 0)
+                    return -1;
+                pos = end + 1;
+            } else if (pos + 1 < length && isLetter(html.charAt(pos + 1))) {
+                int nameEnd = pos + 1;
+                while (nameEnd < length && !isTagNameEnd(html.charAt(nameEnd))) {
+                    nameEnd++;
+                }
+                if (nameEnd == length)
+                    return -1;
+                if (nameEnd - pos == 5 && startsWithIgnoreCase(html, length, pos + 1, "body"))
+                    return pos;
+
+                int end = indexOfTagEnd(html, length, nameEnd);
+                if (end < 0)
+                    return -1;
+                rawTextEnd = rawTextEnd(html, pos + 1, nameEnd);
+                pos = end + 1;
+            } else if (pos + 1 < length && (html.charAt(pos + 1) == '!' || html.charAt(pos + 1) == '/'
+                    || html.charAt(pos + 1) == '?')) {
+                // bogus comment, e.g. a doctype
+                int end = indexOf(html, length, pos + 2, ">");
+                if (end < 0)
+                    return -1;
+                pos = end + 1;
+            } else if (pos + 1 < length) {
+                pos++;
+            } else {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index of the end tag or -1, pos is moved to where the search
+     * continues
+     */
+    private int indexOfEndTag(CharSequence html, int length, String endTag) {
+        for (int i = pos; i < length; i++) {
+            if (html.charAt(i) != '<')
+                continue;
+            if (i + endTag.length() >= length) {
+                pos = i;
+                return -1;
+            }
+            if (startsWithIgnoreCase(html, length, i, endTag) && isTagNameEnd(html.charAt(i + endTag.length())))
+                return i;
+        }
+        pos = length;
+        return -1;
+    }
+
+    /**
+     * @return the index of the closing &gt; after the attributes or -1
+     */
+    private static int indexOfTagEnd(CharSequence html, int length, int from) {
+        for (int i = from; i < length; i++) {
+            char c = html.charAt(i);
+            if (c == '>')
+                return i;
+            if (c != '=')
+                continue;
+
+            i++;
+            while (i < length && isWhitespace(html.charAt(i))) {
+                i++;
+            }
+            if (i == length)
+                return -1;
+            char quote = html.charAt(i);
+            if (quote == '"' || quote == '\'') {
+                i = indexOf(html, length, i + 1, String.valueOf(quote));
+                if (i < 0)
+                    return -1;
+            } else {
+                i--;
+            }
+        }
+        return -1;
+    }
+
+    private static String rawTextEnd(CharSequence html, int from, int to) {
+        for (String name : RAW_TEXT) {
+            if (to - from == name.length() && startsWithIgnoreCase(html, to, from, name))
+                return "</" + name;
+        }
+        return null;
+    }
+
+    private static int indexOf(CharSequence html, int length, int from, String str) {
+        for (int i = from; i + str.length() <= length; i++) {
+            if (startsWith(html, length, i, str))
+                return i;
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(CharSequence html, int length, int from, String str) {
+        if (from + str.length() > length)
+            return false;
+        for (int i = 0; i < str.length(); i++) {
+            if (html.charAt(from + i) != str.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param str must be lower case
+     */
+    private static boolean startsWithIgnoreCase(CharSequence html, int length, int from, String str) {
+        if (from + str.length() > length)
+            return false;
+        for (int i = 0; i < str.length(); i++) {
+            char c = html.charAt(from + i);
+            if (c >= 'A' && c <= 'Z')
+                c += 'a' - 'A';
+            if (c != str.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isLetter(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+    }
+
+    private static boolean isTagNameEnd(char c) {
+        return c == '>' || c == '/' || isWhitespace(c);
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+}
@@ -0,0 +1,86 @@
+package de.jetwick.snacktory;
+
+/**
+ * A snapshot of the counters of a MemoryCache. The bytes are the estimated
+ * bytes the cached results retain.
+ */
+public final class CacheStats {
+
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long expirations;
+    private final long evictedBytes;
+    private final int size;
+    private final long bytes;
+    private final long maxBytes;
+
+    CacheStats(long hits, long misses, long evictions, long expirations, long evictedBytes, int size,
+            long bytes, long maxBytes) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.expirations = expirations;
+        this.evictedBytes = evictedBytes;
+        this.size = size;
+        this.bytes = bytes;
+        this.maxBytes = maxBytes;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of gets without a result, including the expired ones
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the fraction of the gets which returned a result
+     */
+    public double getHitRate() {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    /**
+     * @return the number of results which were removed or not admitted
+     * because of the size
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return the number of results which were removed because their ttl was
+     * over
+     */
+    public long getExpirations() {
+        return expirations;
+    }
+
+    public long getEvictedBytes() {
+        return evictedBytes;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "hits:" + hits + " misses:" + misses + " hitRate:" + getHitRate() + " evictions:" + evictions
+                + " expirations:" + expirations + " size:" + size + " bytes:" + bytes + "/" + maxBytes;
+    }
+}
@@ -0,0 +1,429 @@
+package de.jetwick.snacktory;
+
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+
+/**
+ * Determines the charset of a page from its first bytes without decoding
+ * them: a byte order mark, the meta tags (charset attribute or http-equiv
+ * content-type) found by the prescan algorithm of HTML5 and, if there is no
+ * such meta tag, an XML declaration. All of this is ascii, so it works for
+ * every ascii compatible encoding.
+ *
+ * The result contains where the decision was made, e.g. to skip the byte
+ * order mark. This class is immutable.
+ */
+public final class CharsetSniffer {
+
+    /** the charset is taken from a byte order mark */
+    public static final int BOM = 1;
+    /** the charset is taken from a meta tag */
+    public static final int META = 2;
+    /** the charset is taken from the encoding of the XML declaration */
+    public static final int XML = 3;
+    private final String charset;
+    private final int source;
+    private final int start;
+    private final int end;
+
+    private CharsetSniffer(String charset, int source, int start, int end) {
+        this.charset = charset;
+        this.source = source;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * @return the charset label, lower cased if it is from a meta tag, e.g.
+     * "shift_jis"
+     */
+    public String getCharset() {
+        return charset;
+    }
+
+    /**
+     * @return BOM, META or XML
+     */
+    public int getSource() {
+        return source;
+    }
+
+    /**
+     * @return the index of the first byte of the byte order mark, the meta tag
+     * or the XML declaration
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * @return the index after the byte order mark, the meta tag or the XML
+     * declaration
+     */
+    public int getEnd() {
+        return end;
+    }
+
+    /**
+     * @return the charset of the bytes between from and to or null if no
+     * supported charset was found. A tag which is not finished before to is
+     * ignored.
+     */
+    public static CharsetSniffer sniff(byte[] bytes, int from, int to) {
+        CharsetSniffer result = sniffBom(bytes, from, to);
+        if (result == null)
+            result = new Prescan(bytes, from, to).run();
+        if (result == null)
+            result = sniffXmlDeclaration(bytes, from, to);
+        return result;
+    }
+
+    private static CharsetSniffer sniffBom(byte[] bytes, int from, int to) {
+        if (to - from >= 3 && bytes[from] == (byte) 0xEF && bytes[from + 1] == (byte) 0xBB
+                && bytes[from + 2] == (byte) 0xBF)
+            return new CharsetSniffer(Converter.UTF8, BOM, from, from + 3);
+        if (to - from >= 2) {
+            if (bytes[from] == (byte) 0xFE && bytes[from + 1] == (byte) 0xFF)
+                return new CharsetSniffer("UTF-16BE", BOM, from, from + 2);
+            if (bytes[from] == (byte) 0xFF && bytes[from + 1] == (byte) 0xFE)
+                return new CharsetSniffer("UTF-16LE", BOM, from, from + 2);
+        }
+        return null;
+    }
+
+    /**
+     * The encoding of &lt;?xml ... encoding="charset"?&gt; at the beginning.
+     */
+    private static CharsetSniffer sniffXmlDeclaration(byte[] bytes, int from, int to) {
+        if (!startsWith(bytes, from, to, "<?xml"))
+            return null;
+
+        int end = indexOf(bytes, from + 5, to, '>');
+        if (end < 0)
+            return null;
+
+        int i = from + 5;
+        while (true) {
+            i = indexOfIgnoreCase(bytes, i, end, "encoding");
+            if (i < 0)
+                return null;
+            i = skipWhitespace(bytes, i + 8, end);
+            if (i < end && bytes[i] == '=')
+                break;
+        }
+        i = skipWhitespace(bytes, i + 1, end);
+        if (i == end || bytes[i] != '"' && bytes[i] != '\'')
+            return null;
+
+        int valueEnd = indexOf(bytes, i + 1, end, bytes[i]);
+        if (valueEnd < 0)
+            return null;
+        String charset = toCharset(ascii(bytes, i + 1, valueEnd, false));
+        if (charset == null)
+            return null;
+        return new CharsetSniffer(charset, XML, from, end + 1);
+    }
+
+    /**
+     * The prescan of a byte stream to determine its encoding from the HTML5
+     * specification. It stops as soon as a supported charset is found.
+     */
+    private static class Prescan {
+
+        private final byte[] bytes;
+        private final int to;
+        private int pos;
+        // the current attribute
+        private String name;
+        private String value;
+
+        Prescan(byte[] bytes, int from, int to) {
+            this.bytes = bytes;
+            this.pos = from;
+            this.to = to;
+        }
+
+        CharsetSniffer run() {
+            for (; pos < to; pos++) {
+                if (bytes[pos] != '<')
+                    continue;
+
+                int tagStart = pos;
+                if (startsWith(bytes, pos, to, "<!--")) {
+                    // the dashes of <!-- count, so <!--> is a comment too
+                    int end = pos + 4;
+                    while (true) {
+                        end = indexOf(bytes, end, to, '>');
+                        if (end < 0)
+                            return null;
+                        if (bytes[end - 1] == '-' && bytes[end - 2] == '-')
+                            break;
+                        end++;
+                    }
+                    pos = end;
+                } else if (startsWithIgnoreCase(bytes, pos, to, "<meta") && pos + 5 < to
+                        && (isWhitespace(bytes[pos + 5]) || bytes[pos + 5] == '/')) {
+                    pos += 5;
+                    String charset = readMeta();
+                    if (charset == null) {
+                        if (pos >= to)
+                            return null;
+                        continue;
+                    }
+                    return new CharsetSniffer(charset, META, tagStart, pos + 1);
+                } else if (pos + 1 < to && isAsciiLetter(bytes[pos + 1])
+                        || pos + 2 < to && bytes[pos + 1] == '/' && isAsciiLetter(bytes[pos + 2])) {
+                    while (pos < to && !isWhitespace(bytes[pos]) && bytes[pos] != '>') {
+                        pos++;
+                    }
+                    while (readAttribute()) {
+                    }
+                    if (pos >= to)
+                        return null;
+                } else if (pos + 1 < to && (bytes[pos + 1] == '!' || bytes[pos + 1] == '/'
+                        || bytes[pos + 1] == '?')) {
+                    pos = indexOf(bytes, pos + 2, to, '>');
+                    if (pos < 0)
+                        return null;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Reads the attributes of a meta tag, pos is at the closing &gt;
+         * afterwards.
+         *
+         * @return the supported charset of the tag or null
+         */
+        private String readMeta() {
+            StringBuilder names = new StringBuilder(" ");
+            boolean gotPragma = false;
+            // null if the tag has no charset, true if it needs http-equiv
+            Boolean needPragma = null;
+            String charset = null;
+            while (readAttribute()) {
+                if (names.indexOf(" " + name + " ") >= 0)
+                    continue;
+                names.append(name).append(' ');
+
+                if ("http-equiv".equals(name)) {
+                    if ("content-type".equals(value))
+                        gotPragma = true;
+                } else if ("content".equals(name)) {
+                    if (charset == null) {
+                        String label = extractFromContent(value);
+                        if (label != null) {
+                            charset = label;
+                            needPragma = Boolean.TRUE;
+                        }
+                    }
+                } else if ("charset".equals(name)) {
+                    charset = value;
+                    needPragma = Boolean.FALSE;
+                }
+            }
+            if (pos >= to || needPragma == null || needPragma && !gotPragma)
+                return null;
+
+            charset = toCharset(charset);
+            if (charset == null)
+                return null;
+            // ascii bytes can't be utf-16
+            if (charset.toLowerCase().startsWith("utf-16"))
+                return Converter.UTF8;
+            return charset;
+        }
+
+        /**
+         * Reads the next attribute into name and value, the value is lower
+         * cased.
+         *
+         * @return false if the tag ends or is not finished before to
+         */
+        private boolean readAttribute() {
+            while (pos < to && (isWhitespace(bytes[pos]) || bytes[pos] == '/')) {
+                pos++;
+            }
+            if (pos >= to || bytes[pos] == '>')
+                return false;
+
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                if (pos >= to)
+                    return false;
+                byte b = bytes[pos];
+                if (b == '=' && sb.length() > 0) {
+                    pos++;
+                    break;
+                }
+                if (isWhitespace(b)) {
+                    pos = skipWhitespace(bytes, pos, to);
+                    if (pos >= to)
+                        return false;
+                    if (bytes[pos] != '=')
+                        return attribute(sb, "");
+                    pos++;
+                    break;
+                }
+                if (b == '/' || b == '>')
+                    return attribute(sb, "");
+                sb.append(toLowerCase(b));
+                pos++;
+            }
+
+            String attributeName = sb.toString();
+            sb.setLength(0);
+            pos = skipWhitespace(bytes, pos, to);
+            if (pos >= to)
+                return false;
+            byte quote = bytes[pos];
+            if (quote == '"' || quote == '\'') {
+                int end = indexOf(bytes, pos + 1, to, quote);
+                if (end < 0)
+                    return false;
+                name = attributeName;
+                value = ascii(bytes, pos + 1, end, true);
+                pos = end + 1;
+                return true;
+            }
+            if (quote == '>') {
+                name = attributeName;
+                value = "";
+                return true;
+            }
+            while (pos < to && !isWhitespace(bytes[pos]) && bytes[pos] != '>') {
+                sb.append(toLowerCase(bytes[pos]));
+                pos++;
+            }
+            if (pos >= to)
+                return false;
+            name = attributeName;
+            value = sb.toString();
+            return true;
+        }
+
+        private boolean attribute(StringBuilder nameBuilder, String attributeValue) {
+            name = nameBuilder.toString();
+            value = attributeValue;
+            return true;
+        }
+    }
+
+    /**
+     * @return the charset of a content attribute like "text/html;
+     * charset=utf-8" or null
+     */
+    static String extractFromContent(String content) {
+        int i = 0;
+        while (true) {
+            i = content.indexOf("charset", i);
+            if (i < 0)
+                return null;
+            i += 7;
+            while (i < content.length() && isWhitespace(content.charAt(i))) {
+                i++;
+            }
+            if (i < content.length() && content.charAt(i) == '=')
+                break;
+        }
+        i++;
+        while (i < content.length() && isWhitespace(content.charAt(i))) {
+            i++;
+        }
+        if (i == content.length())
+            return null;
+
+        char c = content.charAt(i);
+        if (c == '"' || c == '\'') {
+            int end = content.indexOf(c, i + 1);
+            return end < 0 ? null : content.substring(i + 1, end);
+        }
+        int end = i;
+        while (end < content.length() && !isWhitespace(content.charAt(end)) && content.charAt(end) != ';') {
+            end++;
+        }
+        return content.substring(i, end);
+    }
+
+    /**
+     * @return the cleaned label or null if it is no supported charset
+     */
+    private static String toCharset(String label) {
+        if (label == null)
+            return null;
+        label = SHelper.encodingCleanup(label);
+        if (label.isEmpty())
+            return null;
+        try {
+            return Charset.isSupported(label) ? label : null;
+        } catch (IllegalCharsetNameException ex) {
+            return null;
+        }
+    }
+
+    private static String ascii(byte[] bytes, int from, int to, boolean lowerCase) {
+        StringBuilder sb = new StringBuilder(to - from);
+        for (int i = from; i < to; i++) {
+            sb.append(lowerCase ? toLowerCase(bytes[i]) : (char) (bytes[i] & 0xFF));
+        }
+        return sb.toString();
+    }
+
+    private static boolean startsWith(byte[] bytes, int from, int to, String prefix) {
+        if (to - from < prefix.length())
+            return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (bytes[from + i] != prefix.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean startsWithIgnoreCase(byte[] bytes, int from, int to, String lowerCasePrefix) {
+        if (to - from < lowerCasePrefix.length())
+            return false;
+        for (int i = 0; i < lowerCasePrefix.length(); i++) {
+            if (toLowerCase(bytes[from + i]) != lowerCasePrefix.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private static int indexOfIgnoreCase(byte[] bytes, int from, int to, String lowerCaseStr) {
+        for (int i = from; i + lowerCaseStr.length() <= to; i++) {
+            if (startsWithIgnoreCase(bytes, i, to, lowerCaseStr))
+                return i;
+        }
+        return -1;
+    }
+
+    private static int indexOf(byte[] bytes, int from, int to, int b) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == b)
+                return i;
+        }
+        return -1;
+    }
+
+    private static int skipWhitespace(byte[] bytes, int from, int to) {
+        while (from < to && isWhitespace(bytes[from])) {
+            from++;
+        }
+        return from;
+    }
+
+    private static char toLowerCase(byte b) {
+        if (b >= 'A' && b <= 'Z')
+            return (char) (b + ('a' - 'A'));
+        return (char) (b & 0xFF);
+    }
+
+    private static boolean isAsciiLetter(byte b) {
+        return b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z';
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\f' || c == '\r';
+    }
+}
@@ -17,7 +17,16 @@ package de.jetwick.snacktory;
 
 import java.io.*;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -25,6 +34,12 @@ import org.slf4j.LoggerFactory;
  * This class is not thread safe. Use one new instance every time due to
  * encoding variable.
  *
+ * The bytes are decoded incrementally with a CharsetDecoder. The byte buffer
+ * and the decoder are reused by all instances of a thread. The chars are
+ * decoded into one array sized from the known number of bytes, or into small
+ * chunks if the length of the stream is unknown. Large pages should be
+ * parsed from streamToReader instead of a string.
+ *
  * @author Peter Karich
  */
 public class Converter {
@@ -33,9 +48,25 @@ public class Converter {
     public final static String UTF8 = "UTF-8";
     public final static String ISO = "ISO-8859-1";
     public final static int K2 = 2048;
-    private int maxBytes = 10 * 1024 * 1024;
+    public final static int DEFAULT_MAX_BYTES = 10 * 1024 * 1024;
+    // the chars of a stream with unknown length are collected in chunks of this size
+    private static final int CHUNK_CHARS = 8 * K2;
+    // streamToHead gives up if the body doesn't start within these bytes
+    private static final int MAX_HEAD_BYTES = 256 * K2;
+    private static final ThreadLocal<DecodeBuffers> BUFFERS = new ThreadLocal<DecodeBuffers>() {
+        @Override
+        protected DecodeBuffers initialValue() {
+            return new DecodeBuffers();
+        }
+    };
+    private int maxBytes = DEFAULT_MAX_BYTES;
+    private long contentLength = -1;
+    private CodingErrorAction malformedInputAction = CodingErrorAction.REPLACE;
     private String encoding;
     private String url;
+    // state of streamToHead to read the rest of the stream later
+    private BufferedInputStream headIn;
+    private ByteArray headOutput;
 
     public Converter(String urlOnlyHint) {
         url = urlOnlyHint;
@@ -49,6 +80,26 @@ public class Converter {
         return this;
     }
 
+    /**
+     * @param contentLength the length of the stream from the http header or
+     * -1 if it is unknown. It is only used to size the char array of the
+     * string once.
+     */
+    public Converter setContentLength(long contentLength) {
+        this.contentLength = contentLength;
+        return this;
+    }
+
+    /**
+     * Specifies what happens with malformed or unmappable input: REPLACE (the
+     * default) inserts the replacement character of the charset, IGNORE drops
+     * the bytes and for REPORT the page is treated like an unreadable stream.
+     */
+    public Converter setMalformedInputAction(CodingErrorAction malformedInputAction) {
+        this.malformedInputAction = malformedInputAction;
+        return this;
+    }
+
     public static String extractEncoding(String contentType) {
         String[] values;
         if (contentType != null)
@@ -94,141 +145,492 @@ public class Converter {
      * @return String
      */
     public String streamToString(InputStream is, int maxBytes, String enc) {
-        encoding = enc;
-        // Http 1.1. standard is iso-8859-1 not utf8 :(
-        // but we force utf-8 as youtube assumes it ;)
-        if (encoding == null || encoding.isEmpty())
-            encoding = UTF8;
-
         BufferedInputStream in = null;
         try {
             in = new BufferedInputStream(is, K2);
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
-
-            // detect encoding with the help of meta tag
-            try {
-                in.mark(K2 * 2);
-                String tmpEnc = detectCharset("charset=", output, in, encoding);
-                if (tmpEnc != null)
-                    encoding = tmpEnc;
-                else {
-                    logger.debug("no charset found in first stage");
-                    // detect with the help of xml beginning ala encoding="charset"
-                    tmpEnc = detectCharset("encoding=", output, in, encoding);
-                    if (tmpEnc != null)
-                        encoding = tmpEnc;
-                    else
-                        logger.debug("no charset found in second stage");
-                }
+            // only the bytes read for the encoding detection are buffered
+            ByteArray output = new ByteArray();
+            detectEncoding(in, output, enc);
+            return decode(output, in, maxBytes);
+        } catch (SocketTimeoutException e) {
+            logger.info(e.toString() + " url:" + url);
+        } catch (IOException e) {
+            logger.warn(e.toString() + " url:" + url);
+        } finally {
+            close(in);
+        }
+        return "";
+    }
 
-                if (!Charset.isSupported(encoding))
-                    throw new UnsupportedEncodingException(encoding);
-            } catch (UnsupportedEncodingException e) {
-                logger.warn("Using default encoding:" + UTF8
-                        + " problem:" + e.getMessage() + " encoding:" + encoding + " " + url);
-                encoding = UTF8;
+    /**
+     * Reads the stream only until the body starts and returns the html before
+     * the body tag, or all if there is no body tag. The stream is not closed:
+     * if the head is not enough call streamToString() or streamToReader() to
+     * read the rest.
+     *
+     * @return the head or null if the body doesn't start within the first
+     * 512KB. Then the page should be parsed from streamToReader().
+     * @throws IOException if the stream can't be read, it is closed then
+     */
+    public String streamToHead(InputStream is, String enc) throws IOException {
+        headIn = new BufferedInputStream(is, K2);
+        headOutput = new ByteArray();
+        try {
+            detectEncoding(headIn, headOutput, enc);
+            int maxHeadBytes = Math.min(maxBytes, MAX_HEAD_BYTES);
+            int bodyIndex = readHead(headIn, headOutput, maxHeadBytes);
+            if (bodyIndex < 0 && headOutput.size() >= maxHeadBytes) {
+                if (maxHeadBytes < maxBytes)
+                    return null;
+                logMaxBytesExceeded(maxBytes);
             }
+            if (bodyIndex < 0)
+                return decode(headOutput, null, maxBytes);
+            ByteArray head = new ByteArray();
+            head.write(headOutput.buffer(), 0, bodyIndex);
+            return decode(head, null, maxBytes);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
 
-            // SocketException: Connection reset
-            // IOException: missing CR    => problem on server (probably some xml character thing?)
-            // IOException: Premature EOF => socket unexpectly closed from server
-            int bytesRead = output.size();
-            byte[] arr = new byte[K2];
-            while (true) {
-                if (bytesRead >= maxBytes) {
-                    logger.warn("Maxbyte of " + maxBytes + " exceeded! Maybe html is now broken but try it nevertheless. Url: " + url);
-                    break;
-                }
-
-                int n = in.read(arr);
-                if (n < 0)
-                    break;
-                bytesRead += n;
-                output.write(arr, 0, n);
-            }
+    /**
+     * Reads the rest of the stream after streamToHead and returns the whole
+     * html. The stream is closed afterwards.
+     *
+     * @return the whole html or an empty string if the rest can't be read
+     */
+    public String streamToString() {
+        if (headIn == null)
+            return "";
 
-            return output.toString(encoding);
+        try {
+            return decode(headOutput, headIn, maxBytes);
         } catch (SocketTimeoutException e) {
             logger.info(e.toString() + " url:" + url);
         } catch (IOException e) {
             logger.warn(e.toString() + " url:" + url);
         } finally {
-            if (in != null) {
-                try {
-                    in.close();
-                } catch (Exception e) {
-                }
-            }
+            close(headIn);
+            headIn = null;
         }
         return "";
     }
 
     /**
-     * This method detects the charset even if the first call only returns some
-     * bytes. It will read until 4K bytes are reached and then try to determine
-     * the encoding
+     * Detects the encoding like streamToString, but instead of the whole html
+     * it returns a reader which decodes the stream while it is consumed, e.g.
+     * by Parser.parseInput. The reader throws the read errors and closes the
+     * stream when it is closed.
+     */
+    public Reader streamToReader(InputStream is, String enc) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(is, K2);
+        try {
+            ByteArray output = new ByteArray();
+            detectEncoding(in, output, enc);
+            return reader(output, in);
+        } catch (IOException e) {
+            close(in);
+            throw e;
+        }
+    }
+
+    /**
+     * Same as streamToString() but returns a reader of the whole html like
+     * streamToReader.
+     *
+     * @return the reader or null if streamToHead was not called or the
+     * stream is closed
+     */
+    public Reader streamToReader() {
+        if (headIn == null)
+            return null;
+
+        Reader reader = reader(headOutput, headIn);
+        headIn = null;
+        return reader;
+    }
+
+    /**
+     * @return a reader with mark support like the parser needs it, its buffers
+     * belong to the reader and not to the thread
+     */
+    private Reader reader(ByteArray prefix, InputStream in) {
+        CharsetDecoder decoder = Charset.forName(encoding).newDecoder().
+                onMalformedInput(malformedInputAction).onUnmappableCharacter(malformedInputAction);
+        return new BufferedReader(new DecodingReader(prefix.buffer(), prefix.size(), in, maxBytes, decoder,
+                new byte[2 * K2], url), 16 * K2);
+    }
+
+    /**
+     * Closes the stream of streamToHead if the rest is not needed.
+     */
+    public void close() {
+        close(headIn);
+        headIn = null;
+    }
+
+    private static void close(InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (Exception e) {
+            }
+        }
+    }
+
+    /**
+     * Reads the first K2 bytes into output and sniffs the charset from them.
+     * A charset found in the bytes overrides enc, a byte order mark is
+     * removed from output.
+     */
+    private void detectEncoding(BufferedInputStream in, ByteArray output, String enc)
+            throws IOException {
+        encoding = enc;
+        // Http 1.1. standard is iso-8859-1 not utf8 :(
+        // but we force utf-8 as youtube assumes it ;)
+        if (encoding == null || encoding.isEmpty())
+            encoding = UTF8;
+
+        byte[] arr = new byte[K2];
+        while (output.size() < K2) {
+            int n = in.read(arr, 0, K2 - output.size());
+            if (n < 0)
+                break;
+            output.write(arr, 0, n);
+        }
+
+        CharsetSniffer sniffer = CharsetSniffer.sniff(output.buffer(), 0, output.size());
+        if (sniffer != null) {
+            encoding = sniffer.getCharset();
+            if (sniffer.getSource() == CharsetSniffer.BOM)
+                output.skip(sniffer.getEnd());
+        } else
+            logger.debug("no charset found in the first " + output.size() + " bytes");
+
+        try {
+            if (!Charset.isSupported(encoding))
+                throw new UnsupportedEncodingException(encoding);
+        } catch (UnsupportedEncodingException e) {
+            logger.warn("Using default encoding:" + UTF8
+                    + " problem:" + e.getMessage() + " encoding:" + encoding + " " + url);
+            encoding = UTF8;
+        }
+    }
+
+    /**
+     * Reads the stream into output until a body tag was read or at least
+     * maxBytes are read.
      *
-     * @throws IOException
+     * @return the byte index of the body tag in output or -1
      */
-    protected String detectCharset(String key, ByteArrayOutputStream bos, BufferedInputStream in,
-            String enc) throws IOException {
+    private int readHead(BufferedInputStream in, ByteArray output, int maxBytes) throws IOException {
+        BodyTagFinder finder = new BodyTagFinder();
+        int bodyIndex = finder.find(output.chars(), output.size());
+        if (bodyIndex >= 0)
+            return bodyIndex;
 
-        // Grab better encoding from stream
+        int bytesRead = output.size();
         byte[] arr = new byte[K2];
-        int nSum = 0;
-        while (nSum < K2) {
+        while (true) {
+            if (bytesRead >= maxBytes)
+                break;
+
             int n = in.read(arr);
             if (n < 0)
                 break;
+            bytesRead += n;
+            output.write(arr, 0, n);
+
+            // the finder continues where the previous chunk ended
+            bodyIndex = finder.find(output.chars(), output.size());
+            if (bodyIndex >= 0)
+                return bodyIndex;
+        }
+        return -1;
+    }
+
+    /**
+     * Decodes the bytes already read and then the rest of the stream until
+     * maxBytes are reached. If the number of bytes is known, because there is
+     * no stream or from the content length, the chars are decoded into one
+     * array of the maximum size, otherwise into chunks.
+     *
+     * @param in the rest of the stream or null
+     */
+    private String decode(ByteArray prefix, InputStream in, int maxBytes) throws IOException {
+        DecodeBuffers buffers = BUFFERS.get();
+        CharsetDecoder decoder = buffers.decoder(Charset.forName(encoding), malformedInputAction);
+        Reader reader = new DecodingReader(prefix.buffer(), prefix.size(), in, maxBytes, decoder,
+                buffers.bytes, url);
+        long bytes;
+        if (in == null)
+            bytes = prefix.size();
+        else if (contentLength >= 0)
+            // the last read may exceed maxBytes by a chunk
+            bytes = Math.max(prefix.size(), Math.min(contentLength, (long) maxBytes + K2));
+        else
+            return decodeChunks(reader);
+
+        // one more char to read the end without growing the array
+        long maxChars = (long) Math.ceil(bytes * (double) decoder.maxCharsPerByte()) + 1;
+        char[] chars = new char[(int) Math.min(Integer.MAX_VALUE - 8, maxChars)];
+        int length = 0;
+        while (true) {
+            if (length == chars.length)
+                // only if the stream is longer than its content length
+                chars = Arrays.copyOf(chars, chars.length * 2);
+            int n = reader.read(chars, length, chars.length - length);
+            if (n < 0)
+                break;
+            length += n;
+        }
+        return new String(chars, 0, length);
+    }
 
-            nSum += n;
-            bos.write(arr, 0, n);
-        }
-
-        String str = bos.toString(enc);
-        int encIndex = str.indexOf(key);
-        int clength = key.length();
-        if (encIndex > 0 && encIndex + clength < str.length()) {
-            char startChar = str.charAt(encIndex + clength);
-            int lastEncIndex;
-            if (startChar == '\'')
-                // if we have charset='something'
-                lastEncIndex = str.indexOf("'", ++encIndex + clength);
-            else if (startChar == '\"')
-                // if we have charset="something"
-                lastEncIndex = str.indexOf("\"", ++encIndex + clength);
-            else {
-                // if we have "text/html; charset=utf-8"
-                int first = str.indexOf("\"", encIndex + clength);
-                if (first < 0)
-                    first = Integer.MAX_VALUE;
-
-                // or "text/html; charset=utf-8 "
-                int sec = str.indexOf(" ", encIndex + clength);
-                if (sec < 0)
-                    sec = Integer.MAX_VALUE;
-                lastEncIndex = Math.min(first, sec);
-
-                // or "text/html; charset=utf-8 '
-                int third = str.indexOf("'", encIndex + clength);
-                if (third > 0)
-                    lastEncIndex = Math.min(lastEncIndex, third);
+    /**
+     * Decodes into chunks of fixed size, so the only large allocations are
+     * the builder of the final size and the string.
+     */
+    private static String decodeChunks(Reader reader) throws IOException {
+        List<char[]> chunks = new ArrayList<char[]>();
+        char[] chunk = new char[CHUNK_CHARS];
+        int length = 0;
+        while (true) {
+            if (length == chunk.length) {
+                chunks.add(chunk);
+                chunk = new char[CHUNK_CHARS];
+                length = 0;
             }
+            int n = reader.read(chunk, length, chunk.length - length);
+            if (n < 0)
+                break;
+            length += n;
+        }
+        if (chunks.isEmpty())
+            return new String(chunk, 0, length);
+
+        StringBuilder sb = new StringBuilder(chunks.size() * CHUNK_CHARS + length);
+        for (int i = 0; i < chunks.size(); i++) {
+            sb.append(chunks.get(i));
+            chunks.set(i, null);
+        }
+        sb.append(chunk, 0, length);
+        return sb.toString();
+    }
+
+    private void logMaxBytesExceeded(int maxBytes) {
+        logMaxBytesExceeded(maxBytes, url);
+    }
+
+    private static void logMaxBytesExceeded(int maxBytes, String url) {
+        logger.warn("Maxbyte of " + maxBytes + " exceeded! Maybe html is now broken but try it nevertheless. Url: " + url);
+    }
 
-            // re-read byte array with different encoding
-            // assume that the encoding string cannot be greater than 40 chars
-            if (lastEncIndex > encIndex + clength && lastEncIndex < encIndex + clength + 40) {
-                String tmpEnc = SHelper.encodingCleanup(str.substring(encIndex + clength, lastEncIndex));
-                try {
-                    in.reset();
-                    bos.reset();
-                    return tmpEnc;
-                } catch (IOException ex) {
-                    logger.warn("Couldn't reset stream to re-read with new encoding " + tmpEnc + " "
-                            + ex.toString());
+    /**
+     * A ByteArrayOutputStream which gives access to its buffer to avoid the
+     * copy of toByteArray.
+     */
+    private static final class ByteArray extends ByteArrayOutputStream {
+
+        byte[] buffer() {
+            return buf;
+        }
+
+        /**
+         * @return the bytes as chars, only the ascii chars are meaningful
+         */
+        CharSequence chars() {
+            return new AsciiChars(buf, count);
+        }
+
+        /**
+         * Removes the first n bytes.
+         */
+        void skip(int n) {
+            System.arraycopy(buf, n, buf, 0, count - n);
+            count -= n;
+        }
+    }
+
+    /**
+     * A view of bytes as latin1 chars, which is enough to find ascii markup
+     * in an ascii compatible encoding.
+     */
+    private static final class AsciiChars implements CharSequence {
+
+        private final byte[] bytes;
+        private final int length;
+
+        AsciiChars(byte[] bytes, int length) {
+            this.bytes = bytes;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (bytes[index] & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    /**
+     * The byte buffer and the last decoder of a thread.
+     */
+    private static final class DecodeBuffers {
+
+        // a chunk of K2 bytes plus the rest of an incomplete character
+        final byte[] bytes = new byte[2 * K2];
+        private CharsetDecoder decoder;
+
+        CharsetDecoder decoder(Charset charset, CodingErrorAction action) {
+            if (decoder == null || !decoder.charset().equals(charset))
+                decoder = charset.newDecoder();
+            decoder.reset();
+            decoder.onMalformedInput(action);
+            decoder.onUnmappableCharacter(action);
+            return decoder;
+        }
+    }
+
+    /**
+     * Decodes the prefix and then the stream incrementally. Like before at
+     * most K2 bytes are read at once until maxBytes are exceeded.
+     */
+    static final class DecodingReader extends Reader {
+
+        private final byte[] prefix;
+        private final int prefixLength;
+        private int prefixPos = 0;
+        private final InputStream in;
+        private final int maxBytes;
+        private int bytesRead;
+        private final CharsetDecoder decoder;
+        // in read mode between the calls
+        private final ByteBuffer bytes;
+        private final String url;
+        private boolean eof = false;
+        private boolean flushed = false;
+        // the second char of a surrogate pair which did not fit into cbuf
+        private final CharBuffer pending = CharBuffer.allocate(2);
+
+        /**
+         * @param in the rest of the stream or null
+         * @param buffer must hold K2 bytes plus an incomplete character
+         */
+        DecodingReader(byte[] prefix, int prefixLength, InputStream in, int maxBytes,
+                CharsetDecoder decoder, byte[] buffer, String url) {
+            this.prefix = prefix;
+            this.prefixLength = prefixLength;
+            this.in = in;
+            this.maxBytes = maxBytes;
+            this.bytesRead = prefixLength;
+            this.decoder = decoder;
+            this.bytes = ByteBuffer.wrap(buffer);
+            this.bytes.limit(0);
+            this.url = url;
+            this.pending.limit(0);
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+
+            CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+            while (pending.hasRemaining() && out.hasRemaining()) {
+                out.put(pending.get());
+            }
+
+            while (out.position() == off) {
+                if (out.remaining() < 2) {
+                    // a surrogate pair needs two chars
+                    pending.clear();
+                    int n = decode(pending);
+                    pending.flip();
+                    if (n < 0)
+                        return -1;
+                    out.put(pending.get());
+                    break;
                 }
+                if (decode(out) < 0)
+                    return -1;
             }
+            return out.position() - off;
+        }
+
+        /**
+         * Decodes until some chars are written to out, out is full or the end
+         * is reached.
+         *
+         * @return -1 at the end
+         */
+        private int decode(CharBuffer out) throws IOException {
+            int start = out.position();
+            while (out.position() == start && !flushed) {
+                CoderResult result = decoder.decode(bytes, out, eof);
+                if (result.isError())
+                    result.throwException();
+                if (result.isOverflow())
+                    break;
+
+                if (eof) {
+                    if (decoder.flush(out).isOverflow())
+                        break;
+                    flushed = true;
+                } else {
+                    fill();
+                }
+            }
+            int n = out.position() - start;
+            return n == 0 && flushed ? -1 : n;
+        }
+
+        private void fill() throws IOException {
+            bytes.compact();
+            if (prefixPos < prefixLength) {
+                int n = Math.min(bytes.remaining(), prefixLength - prefixPos);
+                bytes.put(prefix, prefixPos, n);
+                prefixPos += n;
+            } else if (in == null) {
+                eof = true;
+            } else if (bytesRead >= maxBytes) {
+                logMaxBytesExceeded(maxBytes, url);
+                eof = true;
+            } else {
+                // SocketException: Connection reset
+                // IOException: missing CR    => problem on server (probably some xml character thing?)
+                // IOException: Premature EOF => socket unexpectly closed from server
+                int n = in.read(bytes.array(), bytes.position(), Math.min(K2, bytes.remaining()));
+                if (n < 0) {
+                    eof = true;
+                } else {
+                    bytes.position(bytes.position() + n);
+                    bytesRead += n;
+                }
+            }
+            bytes.flip();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null)
+                in.close();
         }
-        return null;
     }
 }
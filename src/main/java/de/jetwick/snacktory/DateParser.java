@@ -0,0 +1,188 @@
+package de.jetwick.snacktory;
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Parses a date string with a list of patterns. Returns the same date as
+ * DateUtils.parseDateStrictly(str, patterns) but without compiling every
+ * pattern on every call: the formatters are created once per thread and
+ * only the patterns whose literal characters (separators like - / : , and
+ * quoted text) all occur in the string are tried. Patterns with text fields
+ * like month or day names are skipped if the string has no letters.
+ *
+ * This class is thread safe.
+ */
+public class DateParser {
+
+    private final String[] patterns;
+    // the literal characters of all patterns and how often each pattern needs them
+    private final char[] literals;
+    private final int[][] literalCounts;
+    private final boolean[] needsLetter;
+    private final ThreadLocal<Formats> formats = new ThreadLocal<Formats>();
+
+    public DateParser(String... patterns) {
+        this.patterns = patterns.clone();
+        StringBuilder chars = new StringBuilder();
+        for (String pattern : patterns) {
+            for (char c : literals(pattern).toCharArray()) {
+                if (chars.indexOf(String.valueOf(c)) < 0)
+                    chars.append(c);
+            }
+        }
+        literals = chars.toString().toCharArray();
+        literalCounts = new int[patterns.length][];
+        needsLetter = new boolean[patterns.length];
+        for (int i = 0; i < patterns.length; i++) {
+            literalCounts[i] = countLiterals(literals(patterns[i]));
+            needsLetter[i] = hasTextField(patterns[i]);
+        }
+    }
+
+    /**
+     * @return the parsed date or null if no pattern matches the whole string
+     */
+    public Date parse(String str) {
+        if (str == null)
+            return null;
+
+        // classify the string once: literal characters, letters and digits
+        int[] counts = countLiterals(str);
+        boolean hasLetter = false;
+        boolean hasDigit = false;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (Character.isLetter(c))
+                hasLetter = true;
+            else if (Character.isDigit(c))
+                hasDigit = true;
+        }
+        // every pattern has at least one number
+        if (!hasDigit)
+            return null;
+
+        SimpleDateFormat[] parsers = null;
+        TimeZone zone = null;
+        ParsePosition pos = new ParsePosition(0);
+        for (int i = 0; i < patterns.length; i++) {
+            if (needsLetter[i] && !hasLetter || !contains(counts, literalCounts[i]))
+                continue;
+
+            if (parsers == null) {
+                parsers = getParsers();
+                zone = TimeZone.getDefault();
+            }
+
+            // DateUtils uses one formatter for all patterns and a parsed time
+            // zone name changes its time zone for the following patterns
+            SimpleDateFormat parser = parsers[i];
+            parser.setTimeZone(zone);
+            pos.setIndex(0);
+            Date date = parser.parse(str, pos);
+            if (date != null && pos.getIndex() == str.length())
+                return date;
+            zone = parser.getTimeZone();
+        }
+        return null;
+    }
+
+    private SimpleDateFormat[] getParsers() {
+        // same locale as new SimpleDateFormat() in DateUtils
+        Locale locale = Locale.getDefault(Locale.Category.FORMAT);
+        Formats f = formats.get();
+        if (f == null || !f.locale.equals(locale)) {
+            SimpleDateFormat[] parsers = new SimpleDateFormat[patterns.length];
+            for (int i = 0; i < patterns.length; i++) {
+                parsers[i] = new SimpleDateFormat(patterns[i], locale);
+                parsers[i].setLenient(false);
+            }
+            f = new Formats(locale, parsers);
+            formats.set(f);
+        }
+        return f.parsers;
+    }
+
+    private int[] countLiterals(String str) {
+        int[] counts = new int[literals.length];
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            for (int j = 0; j < literals.length; j++) {
+                if (literals[j] == c) {
+                    counts[j]++;
+                    break;
+                }
+            }
+        }
+        return counts;
+    }
+
+    private static boolean contains(int[] counts, int[] required) {
+        for (int j = 0; j < required.length; j++) {
+            if (counts[j] < required[j])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the characters of the pattern which have to occur as they are
+     * in the parsed string
+     */
+    static String literals(String pattern) {
+        StringBuilder sb = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '\'') {
+                if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '\'') {
+                    sb.append(c);
+                    i++;
+                } else
+                    quoted = !quoted;
+            } else if (quoted || !(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z'))
+                sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return true if the pattern has a field which is parsed from names
+     * (day of week, month with three or more letters, am/pm)
+     */
+    static boolean hasTextField(String pattern) {
+        boolean quoted = false;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '\'')
+                quoted = !quoted;
+            else if (!quoted) {
+                if (c == 'E' || c == 'a')
+                    return true;
+                if (c == 'M' && pattern.startsWith("MMM", i))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(patterns);
+    }
+
+    private static class Formats {
+
+        final Locale locale;
+        final SimpleDateFormat[] parsers;
+
+        Formats(Locale locale, SimpleDateFormat[] parsers) {
+            this.locale = locale;
+            this.parsers = parsers;
+        }
+    }
+}
@@ -0,0 +1,501 @@
+package de.jetwick.snacktory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import org.jsoup.internal.StringUtil;
+import org.jsoup.nodes.CDataNode;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.select.Elements;
+import org.jsoup.select.NodeFilter;
+import org.jsoup.select.NodeTraversor;
+
+/**
+ * Holds everything one extraction would otherwise write into the document,
+ * so that the parsed Document is never modified and can be reused by the
+ * caller or by a second extraction pass. The gravity score, the paragraph
+ * index and the removed flag of an element are kept in a side table keyed
+ * by element identity.
+ *
+ * Scripts, styles and noscript nodes are not removed but skipped if
+ * ignoreScripts is true. Nodes removed by the OutputFormatter are skipped
+ * the same way.
+ *
+ * The text statistics (text length, letter count and own text length) are
+ * computed for all elements below an element in one traversal and cached,
+ * the text itself is only created if it is requested. Removing an element
+ * invalidates the statistics of its ancestors only.
+ *
+ * This class is not thread safe. Use one new instance per extraction.
+ */
+public class ExtractionContext {
+
+    private final boolean ignoreScripts;
+    private final Map<Element, NodeState> states = new IdentityHashMap<Element, NodeState>();
+    private int removedCount = 0;
+
+    public ExtractionContext(boolean ignoreScripts) {
+        this.ignoreScripts = ignoreScripts;
+    }
+
+    public boolean isIgnoreScripts() {
+        return ignoreScripts;
+    }
+
+    /**
+     * @return true if the node has to be treated as if it would not exist:
+     * script (except schema.org ld+json), noscript and style elements.
+     */
+    public boolean isIgnored(Node node) {
+        if (!ignoreScripts || !(node instanceof Element))
+            return false;
+
+        String tagName = ((Element) node).tagName();
+        if (tagName.equals("script"))
+            return !"application/ld+json".equals(node.attr("type"));
+        return tagName.equals("noscript") || tagName.equals("style");
+    }
+
+    /**
+     * @return true if the node or one of its ancestors up to but excluding
+     * root is ignored
+     */
+    public boolean isIgnored(Node node, Node root) {
+        if (!ignoreScripts)
+            return false;
+
+        while (node != null && node != root) {
+            if (isIgnored(node))
+                return true;
+            node = node.parent();
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the node was removed by the formatter
+     */
+    public boolean isRemoved(Node node) {
+        if (removedCount == 0 || !(node instanceof Element))
+            return false;
+
+        NodeState state = states.get(node);
+        return state != null && state.removed;
+    }
+
+    /**
+     * Removes the element and its children from the output without
+     * modifying the document.
+     */
+    public void remove(Element el) {
+        NodeState state = state(el);
+        if (!state.removed) {
+            state.removed = true;
+            removedCount++;
+            // only the texts of the ancestors contain the removed element
+            for (Element parent = el.parent(); parent != null; parent = parent.parent()) {
+                NodeState parentState = states.get(parent);
+                if (parentState != null)
+                    parentState.textStats = null;
+            }
+        }
+    }
+
+    /**
+     * @return true if the node is ignored or removed
+     */
+    public boolean isSkipped(Node node) {
+        return isIgnored(node) || isRemoved(node);
+    }
+
+    /**
+     * @return true if the node or one of its ancestors up to but excluding
+     * root is ignored or removed
+     */
+    public boolean isSkipped(Node node, Node root) {
+        if (!ignoreScripts && removedCount == 0)
+            return false;
+
+        while (node != null && node != root) {
+            if (isSkipped(node))
+                return true;
+            node = node.parent();
+        }
+        return false;
+    }
+
+    /**
+     * @return true if nodes below root (excluding root) are ignored or removed
+     */
+    public boolean hasSkipped(final Element root) {
+        if (!ignoreScripts && removedCount == 0)
+            return false;
+
+        return NodeTraversor.filter(new NodeFilter() {
+            @Override
+            public FilterResult head(Node node, int depth) {
+                if (node != root && isSkipped(node))
+                    return FilterResult.STOP;
+                return FilterResult.CONTINUE;
+            }
+
+            @Override
+            public FilterResult tail(Node node, int depth) {
+                return FilterResult.CONTINUE;
+            }
+        }, root) == NodeFilter.FilterResult.STOP;
+    }
+
+    /**
+     * Same as root.select(query) but without the skipped elements.
+     */
+    public Elements select(Element root, String query) {
+        Elements els = root.select(query);
+        if (ignoreScripts || removedCount > 0) {
+            for (int i = els.size() - 1; i >= 0; i--) {
+                if (isSkipped(els.get(i), root))
+                    els.remove(i);
+            }
+        }
+        return els;
+    }
+
+    /**
+     * @return the child elements which are not skipped
+     */
+    public List<Element> children(Element el) {
+        Elements children = el.children();
+        if (!ignoreScripts && removedCount == 0)
+            return children;
+
+        List<Element> res = new ArrayList<Element>(children.size());
+        for (Element child : children) {
+            if (!isSkipped(child))
+                res.add(child);
+        }
+        return res;
+    }
+
+    public boolean hasScore(Element el) {
+        NodeState state = states.get(el);
+        return state != null && state.hasScore;
+    }
+
+    public int getScore(Element el) {
+        NodeState state = states.get(el);
+        if (state == null)
+            return 0;
+        return state.score;
+    }
+
+    public void setScore(Element el, int score) {
+        NodeState state = state(el);
+        state.score = score;
+        state.hasScore = true;
+    }
+
+    public void addScore(Element el, int score) {
+        NodeState state = state(el);
+        state.score += score;
+        state.hasScore = true;
+    }
+
+    /**
+     * @return the index of the element within the nodes to keep of the
+     * formatter or -1
+     */
+    public int getParagraphIndex(Element el) {
+        NodeState state = states.get(el);
+        if (state == null)
+            return -1;
+        return state.paragraphIndex;
+    }
+
+    public void setParagraphIndex(Element el, int paragraphIndex) {
+        state(el).paragraphIndex = paragraphIndex;
+    }
+
+    private NodeState state(Element el) {
+        NodeState state = states.get(el);
+        if (state == null) {
+            state = new NodeState();
+            states.put(el, state);
+        }
+        return state;
+    }
+
+    /**
+     * Same as Element.hasText() but skips ignored and removed nodes.
+     */
+    public boolean hasText(Element el) {
+        if (!ignoreScripts && removedCount == 0)
+            return el.hasText();
+
+        for (Node child : el.childNodes()) {
+            if (child instanceof TextNode) {
+                if (!((TextNode) child).isBlank())
+                    return true;
+            } else if (child instanceof Element && !isSkipped(child)) {
+                if (hasText((Element) child))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Same as Element.text() but as if the ignored and removed nodes would
+     * not exist.
+     */
+    public String text(Element el) {
+        TextStats stats = textStats(el);
+        if (stats.text == null)
+            stats.text = stats.buffer.substring(stats.start, stats.end);
+        return stats.text;
+    }
+
+    /**
+     * @return the length of text(el) without creating the text
+     */
+    public int textLength(Element el) {
+        TextStats stats = textStats(el);
+        return stats.end - stats.start;
+    }
+
+    /**
+     * @return the index of text(el) in text(root), without creating any
+     * text, or -1 if el is not below root or its text was not computed
+     * together with the text of root
+     */
+    public int textIndex(Element root, Element el) {
+        TextStats rootStats = textStats(root);
+        NodeState state = states.get(el);
+        if (state == null || state.textStats == null)
+            return -1;
+
+        TextStats stats = state.textStats;
+        if (stats.buffer != rootStats.buffer || stats.start < rootStats.start || stats.end > rootStats.end)
+            return -1;
+        return stats.start - rootStats.start;
+    }
+
+    /**
+     * @return the number of letters in text(el)
+     */
+    public int letterCount(Element el) {
+        return textStats(el).letterCount;
+    }
+
+    /**
+     * @return the length of el.ownText(), which includes the br elements even
+     * if they are skipped
+     */
+    public int ownTextLength(Element el) {
+        NodeState state = states.get(el);
+        if (state != null && state.textStats != null)
+            return state.textStats.ownTextLength();
+
+        // only the direct children are needed, no traversal of the subtree
+        TextStats stats = new TextStats(null, 0, 0);
+        for (Node child : el.childNodes()) {
+            if (child instanceof TextNode)
+                stats.appendOwnText((TextNode) child);
+            else if (child instanceof Element && ((Element) child).tagName().equals("br"))
+                stats.appendOwnBr();
+        }
+        return stats.ownTextLength();
+    }
+
+    private TextStats textStats(Element el) {
+        NodeState state = states.get(el);
+        if (state == null || state.textStats == null) {
+            computeTextStats(el);
+            state = states.get(el);
+        }
+        return state.textStats;
+    }
+
+    /**
+     * Computes the statistics of root and all elements below it with a single
+     * traversal like Element.text(). The text of every element is a range
+     * of the text of root, only the leading whitespace can differ which is
+     * trimmed anyway.
+     */
+    private void computeTextStats(final Element root) {
+        final StringBuilder accum = new StringBuilder();
+        NodeTraversor.filter(new NodeFilter() {
+            private TextStats[] stack = new TextStats[32];
+            private int letters = 0;
+
+            @Override
+            public FilterResult head(Node node, int depth) {
+                // br elements are part of the own text even if skipped
+                if (depth > 0 && node instanceof Element && ((Element) node).tagName().equals("br"))
+                    stack[depth - 1].appendOwnBr();
+
+                if (node != root && isSkipped(node))
+                    return FilterResult.SKIP_ENTIRELY;
+
+                if (node instanceof TextNode) {
+                    TextNode textNode = (TextNode) node;
+                    int from = accum.length();
+                    appendNormalisedText(accum, textNode);
+                    for (int i = from; i < accum.length(); i++) {
+                        if (Character.isLetter(accum.charAt(i)))
+                            letters++;
+                    }
+                    stack[depth - 1].appendOwnText(textNode);
+                } else if (node instanceof Element) {
+                    Element element = (Element) node;
+                    if (accum.length() > 0
+                            && (element.isBlock() || element.tagName().equals("br"))
+                            && !lastCharIsWhitespace(accum))
+                        accum.append(' ');
+
+                    if (depth >= stack.length)
+                        stack = Arrays.copyOf(stack, stack.length * 2);
+                    TextStats stats = new TextStats(accum, accum.length(), letters);
+                    stack[depth] = stats;
+                    state(element).textStats = stats;
+                }
+                return FilterResult.CONTINUE;
+            }
+
+            @Override
+            public FilterResult tail(Node node, int depth) {
+                if (node instanceof Element) {
+                    stack[depth].finish(accum.length(), letters);
+                    stack[depth] = null;
+                    // make sure there is a space between block tags and immediately following text nodes
+                    if (((Element) node).isBlock() && nextSibling(node) instanceof TextNode
+                            && !lastCharIsWhitespace(accum))
+                        accum.append(' ');
+                }
+                return FilterResult.CONTINUE;
+            }
+        }, root);
+    }
+
+    private Node nextSibling(Node node) {
+        Node next = node.nextSibling();
+        while (next != null && isSkipped(next)) {
+            next = next.nextSibling();
+        }
+        return next;
+    }
+
+    private static void appendNormalisedText(StringBuilder accum, TextNode textNode) {
+        String text = textNode.getWholeText();
+        if (preserveWhitespace(textNode.parentNode()) || textNode instanceof CDataNode)
+            accum.append(text);
+        else
+            StringUtil.appendNormalisedWhitespace(accum, text, lastCharIsWhitespace(accum));
+    }
+
+    private static boolean preserveWhitespace(Node node) {
+        // like jsoup look only at this element and five levels up
+        if (node instanceof Element) {
+            Element el = (Element) node;
+            int i = 0;
+            do {
+                if (el.tag().preserveWhitespace())
+                    return true;
+                el = el.parent();
+                i++;
+            } while (i < 6 && el != null);
+        }
+        return false;
+    }
+
+    private static boolean lastCharIsWhitespace(StringBuilder sb) {
+        return sb.length() != 0 && sb.charAt(sb.length() - 1) == ' ';
+    }
+
+    private static class NodeState {
+
+        int score;
+        boolean hasScore;
+        int paragraphIndex = -1;
+        boolean removed;
+        TextStats textStats;
+    }
+
+    /**
+     * The text of an element as a range of the buffer of the traversal, its
+     * letters and the trimmed length of the own text which is counted
+     * without creating it.
+     */
+    private static class TextStats {
+
+        final StringBuilder buffer;
+        int start;
+        int end;
+        int letterCount;
+        String text;
+        private int ownLength;
+        private int ownTrimStart = -1;
+        private int ownTrimEnd;
+        private boolean ownEndsWithSpace;
+
+        TextStats(StringBuilder buffer, int start, int letters) {
+            this.buffer = buffer;
+            this.start = start;
+            this.letterCount = letters;
+        }
+
+        void finish(int end, int letters) {
+            letterCount = letters - letterCount;
+            // trimmed characters are never letters
+            while (start < end && buffer.charAt(start) <= ' ') {
+                start++;
+            }
+            while (end > start && buffer.charAt(end - 1) <= ' ') {
+                end--;
+            }
+            this.end = end;
+        }
+
+        /**
+         * Same as appendNormalisedText, but only counts the characters.
+         */
+        void appendOwnText(TextNode textNode) {
+            String str = textNode.getWholeText();
+            boolean preserve = preserveWhitespace(textNode.parentNode()) || textNode instanceof CDataNode;
+            for (int i = 0; i < str.length(); i++) {
+                char c = str.charAt(i);
+                if (!preserve) {
+                    if (StringUtil.isActuallyWhitespace(c)) {
+                        if (ownEndsWithSpace)
+                            continue;
+                        c = ' ';
+                    } else if (StringUtil.isInvisibleChar(c))
+                        continue;
+                }
+                appendOwn(c);
+            }
+        }
+
+        void appendOwnBr() {
+            if (!ownEndsWithSpace)
+                appendOwn(' ');
+        }
+
+        private void appendOwn(char c) {
+            if (c > ' ') {
+                if (ownTrimStart < 0)
+                    ownTrimStart = ownLength;
+                ownTrimEnd = ownLength + 1;
+            }
+            ownEndsWithSpace = c == ' ';
+            ownLength++;
+        }
+
+        int ownTextLength() {
+            return ownTrimStart < 0 ? 0 : ownTrimEnd - ownTrimStart;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package de.jetwick.snacktory;
+
+/**
+ * Immutable set of the optional parts of a JResult which the extractor
+ * should compute. Title, text, description and the other cheap head
+ * metadata are always extracted. Everything not requested is skipped
+ * entirely, e.g. a text-only indexer can use ExtractionOptions.TEXT_ONLY to
+ * avoid the work for links, images and the text list.
+ *
+ * This class is thread safe.
+ */
+public final class ExtractionOptions {
+
+    /** image url and the images of the best element */
+    public static final int IMAGES = 1;
+    /** author name and description */
+    public static final int AUTHOR = 1 << 1;
+    public static final int DATE = 1 << 2;
+    /** links of the best element with their offsets */
+    public static final int LINKS = 1 << 3;
+    public static final int TEXT_LIST = 1 << 4;
+    public static final int KEYWORDS = 1 << 5;
+    public static final int RSS = 1 << 6;
+    public static final int VIDEO = 1 << 7;
+    public static final int FAVICON = 1 << 8;
+    public static final int ALL = IMAGES | AUTHOR | DATE | LINKS | TEXT_LIST | KEYWORDS | RSS | VIDEO | FAVICON;
+    /** everything, the default of extractContent */
+    public static final ExtractionOptions DEFAULT = new ExtractionOptions(ALL, 0);
+    /** title, text and the head metadata only */
+    public static final ExtractionOptions TEXT_ONLY = new ExtractionOptions(0, 0);
+    private final int fields;
+    private final int maxContentSize;
+
+    private ExtractionOptions(int fields, int maxContentSize) {
+        if ((fields & ~ALL) != 0)
+            throw new IllegalArgumentException("unknown fields " + Integer.toBinaryString(fields & ~ALL));
+        this.fields = fields;
+        this.maxContentSize = maxContentSize;
+    }
+
+    /**
+     * @param fields the fields to extract, e.g. IMAGES | LINKS
+     */
+    public static ExtractionOptions of(int fields) {
+        return new ExtractionOptions(fields, 0);
+    }
+
+    /**
+     * The options of the extractContent methods with the boolean parameters:
+     * the flags enable images, author and date, all other fields are enabled.
+     */
+    public static ExtractionOptions of(boolean extractImages, boolean extractAuthor, boolean extractDate,
+            int maxContentSize) {
+        int fields = ALL;
+        if (!extractImages)
+            fields &= ~IMAGES;
+        if (!extractAuthor)
+            fields &= ~AUTHOR;
+        if (!extractDate)
+            fields &= ~DATE;
+        return new ExtractionOptions(fields, maxContentSize);
+    }
+
+    /**
+     * @return a copy with the specified fields enabled
+     */
+    public ExtractionOptions with(int fields) {
+        return new ExtractionOptions(this.fields | fields, maxContentSize);
+    }
+
+    /**
+     * @return a copy with the specified fields disabled
+     */
+    public ExtractionOptions without(int fields) {
+        return new ExtractionOptions(this.fields & ~fields, maxContentSize);
+    }
+
+    /**
+     * @return a copy where the text is truncated to maxContentSize bytes (utf8),
+     * 0 means no limit
+     */
+    public ExtractionOptions withMaxContentSize(int maxContentSize) {
+        return new ExtractionOptions(fields, maxContentSize);
+    }
+
+    /**
+     * @return true if all of the specified fields are enabled
+     */
+    public boolean has(int fields) {
+        return (this.fields & fields) == fields;
+    }
+
+    public int getFields() {
+        return fields;
+    }
+
+    public int getMaxContentSize() {
+        return maxContentSize;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof ExtractionOptions))
+            return false;
+        ExtractionOptions other = (ExtractionOptions) obj;
+        return fields == other.fields && maxContentSize == other.maxContentSize;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * fields + maxContentSize;
+    }
+
+    @Override
+    public String toString() {
+        return "fields:" + Integer.toBinaryString(fields) + " maxContentSize:" + maxContentSize;
+    }
+}
@@ -0,0 +1,399 @@
+package de.jetwick.snacktory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queues the requests for an HtmlFetcher per host to be polite: every host
+ * gets at most maxActivePerHost parallel requests and a token bucket limits
+ * its request rate. The hosts take turns, so a slow host only delays its
+ * own requests while all other hosts keep the total limit busy.
+ *
+ * The host is SHelper.extractDomain(url, true), so www.example.com and
+ * example.com share one queue. An idle host is forgotten when there are more
+ * than maxIdleHosts idle hosts and its tokens are refilled, so the limits
+ * stay the same. This class is thread safe.
+ */
+public class FetchScheduler {
+
+    private final HtmlFetcher fetcher;
+    private final Object lock = new Object();
+    // the hosts with requests and the idle hosts which are not forgotten yet
+    private final Map<String, HostQueue> hosts = new LinkedHashMap<String, HostQueue>();
+    // the hosts without requests, the longest idle first
+    private final Map<String, HostQueue> idle = new LinkedHashMap<String, HostQueue>();
+    // the hosts with queued requests in round-robin order
+    private final ArrayDeque<HostQueue> ring = new ArrayDeque<HostQueue>();
+    private final ScheduledExecutorService timer;
+    // set while the thread dispatches
+    private final ThreadLocal<boolean[]> redispatch = new ThreadLocal<boolean[]>();
+    private int maxActive = 64;
+    private int maxActivePerHost = 2;
+    private double requestsPerSecond = 1;
+    private int burst = 1;
+    private int maxIdleHosts = 1024;
+    private int active = 0;
+    private boolean shutdown = false;
+    // when the timer runs the next time, to wait for the tokens
+    private long wakeupNanos = Long.MAX_VALUE;
+
+    public FetchScheduler(HtmlFetcher fetcher) {
+        this.fetcher = fetcher;
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "snacktory-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param maxActive the maximum number of parallel requests of all hosts
+     */
+    public FetchScheduler setMaxActive(int maxActive) {
+        synchronized (lock) {
+            this.maxActive = maxActive;
+        }
+        dispatch();
+        return this;
+    }
+
+    public FetchScheduler setMaxActivePerHost(int maxActivePerHost) {
+        synchronized (lock) {
+            this.maxActivePerHost = maxActivePerHost;
+        }
+        dispatch();
+        return this;
+    }
+
+    /**
+     * @param maxIdleHosts how many hosts without requests are kept at least,
+     * e.g. for the stats
+     */
+    public FetchScheduler setMaxIdleHosts(int maxIdleHosts) {
+        synchronized (lock) {
+            this.maxIdleHosts = maxIdleHosts;
+            forgetIdleHosts(System.nanoTime());
+        }
+        return this;
+    }
+
+    /**
+     * @param requestsPerSecond the rate of requests per host, 0 for no limit
+     * @param burst how many requests can be sent at once after a pause
+     */
+    public FetchScheduler setRate(double requestsPerSecond, int burst) {
+        if (burst < 1)
+            throw new IllegalArgumentException("burst must be at least 1 but was " + burst);
+        synchronized (lock) {
+            this.requestsPerSecond = requestsPerSecond;
+            this.burst = burst;
+        }
+        dispatch();
+        return this;
+    }
+
+    /**
+     * Queues the request. It is sent with HtmlFetcher.fetchAndExtractAsync
+     * as soon as the limits of its host allow it.
+     *
+     * @throws RejectedExecutionException after shutdown
+     */
+    public CompletableFuture<JResult> submit(String url, int timeout, boolean resolve) {
+        Request request = new Request(url, timeout, resolve);
+        String key = SHelper.extractDomain(url, true);
+        synchronized (lock) {
+            if (shutdown)
+                throw new RejectedExecutionException("The scheduler is shut down, cannot fetch " + url);
+            idle.remove(key);
+            HostQueue host = hosts.get(key);
+            if (host == null) {
+                host = new HostQueue(key, burst, System.nanoTime());
+                hosts.put(key, host);
+            }
+            host.queue.add(request);
+            if (!host.inRing) {
+                host.inRing = true;
+                ring.add(host);
+            }
+        }
+        dispatch();
+        return request.future;
+    }
+
+    /**
+     * @return the stats of the host or null if it has no requests yet or was
+     * forgotten
+     */
+    public HostStats getStats(String host) {
+        synchronized (lock) {
+            HostQueue queue = hosts.get(host);
+            return queue == null ? null : queue.stats();
+        }
+    }
+
+    /**
+     * @return the stats of all hosts which are not forgotten in the order of
+     * their first request
+     */
+    public Map<String, HostStats> getStats() {
+        synchronized (lock) {
+            Map<String, HostStats> stats = new LinkedHashMap<String, HostStats>();
+            for (HostQueue queue : hosts.values()) {
+                stats.put(queue.host, queue.stats());
+            }
+            return stats;
+        }
+    }
+
+    /**
+     * @return the number of requests which are queued for all hosts
+     */
+    public int getQueued() {
+        synchronized (lock) {
+            int queued = 0;
+            for (HostQueue host : ring) {
+                queued += host.queue.size();
+            }
+            return queued;
+        }
+    }
+
+    /**
+     * Stops the timer and cancels the queued requests, their futures complete
+     * with a CancellationException. The requests which were already sent
+     * complete normally.
+     */
+    public void shutdown() {
+        List<Request> cancelled = new ArrayList<Request>();
+        synchronized (lock) {
+            shutdown = true;
+            for (HostQueue host : ring) {
+                cancelled.addAll(host.queue);
+                host.queue.clear();
+                host.inRing = false;
+            }
+            ring.clear();
+        }
+        timer.shutdownNow();
+        for (Request request : cancelled) {
+            request.future.completeExceptionally(new CancellationException("The scheduler was shut down"));
+        }
+    }
+
+    /**
+     * Sends the requests the limits allow. A request which completes while
+     * sending, e.g. from the cache, doesn't recurse but lets the loop take the
+     * next requests.
+     */
+    private void dispatch() {
+        boolean[] again = redispatch.get();
+        if (again != null) {
+            again[0] = true;
+            return;
+        }
+
+        again = new boolean[]{true};
+        redispatch.set(again);
+        try {
+            while (again[0]) {
+                again[0] = false;
+                for (Request request : take()) {
+                    send(request);
+                }
+            }
+        } finally {
+            redispatch.remove();
+        }
+    }
+
+    /**
+     * @return the requests the limits allow, every turn takes one request of
+     * every host in the ring
+     */
+    private List<Request> take() {
+        List<Request> requests = new ArrayList<Request>();
+        synchronized (lock) {
+            long now = System.nanoTime();
+            long minWait = Long.MAX_VALUE;
+            boolean progress = true;
+            while (progress && active < maxActive) {
+                progress = false;
+                for (int i = ring.size(); i > 0 && active < maxActive; i--) {
+                    HostQueue host = ring.poll();
+                    if (host.queue.isEmpty()) {
+                        host.inRing = false;
+                        continue;
+                    }
+                    ring.add(host);
+                    if (host.active >= maxActivePerHost)
+                        continue;
+
+                    long wait = host.acquire(now, requestsPerSecond, burst);
+                    if (wait > 0) {
+                        minWait = Math.min(minWait, wait);
+                        continue;
+                    }
+
+                    Request request = host.queue.poll();
+                    request.host = host;
+                    host.started(now - request.queuedNanos);
+                    active++;
+                    requests.add(request);
+                    progress = true;
+                }
+            }
+
+            if (minWait != Long.MAX_VALUE && now + minWait < wakeupNanos && !timer.isShutdown()) {
+                wakeupNanos = now + minWait;
+                timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (lock) {
+                            wakeupNanos = Long.MAX_VALUE;
+                        }
+                        dispatch();
+                    }
+                }, minWait, TimeUnit.NANOSECONDS);
+            }
+        }
+        return requests;
+    }
+
+    private void send(final Request request) {
+        CompletableFuture<JResult> future;
+        try {
+            future = fetcher.fetchAndExtractAsync(request.url, request.timeout, request.resolve);
+        } catch (RuntimeException ex) {
+            future = new CompletableFuture<JResult>();
+            future.completeExceptionally(ex);
+        }
+        future.whenComplete((res, ex) -> {
+            synchronized (lock) {
+                active--;
+                HostQueue host = request.host;
+                host.completed(ex != null);
+                if (host.active == 0 && host.queue.isEmpty()) {
+                    idle.put(host.host, host);
+                    forgetIdleHosts(System.nanoTime());
+                }
+            }
+            dispatch();
+            if (ex != null)
+                request.future.completeExceptionally(ex);
+            else
+                request.future.complete(res);
+        });
+    }
+
+    /**
+     * Removes the longest idle hosts while there are too many and their
+     * tokens are refilled, so a new queue of the host starts with the same
+     * tokens.
+     */
+    private void forgetIdleHosts(long now) {
+        Iterator<HostQueue> iter = idle.values().iterator();
+        while (idle.size() > maxIdleHosts && iter.hasNext()) {
+            HostQueue host = iter.next();
+            if (!host.isRefilled(now, requestsPerSecond, burst))
+                break;
+            iter.remove();
+            hosts.remove(host.host);
+        }
+    }
+
+    private static class Request {
+
+        final String url;
+        final int timeout;
+        final boolean resolve;
+        final CompletableFuture<JResult> future = new CompletableFuture<JResult>();
+        final long queuedNanos = System.nanoTime();
+        HostQueue host;
+
+        Request(String url, int timeout, boolean resolve) {
+            this.url = url;
+            this.timeout = timeout;
+            this.resolve = resolve;
+        }
+    }
+
+    /**
+     * The queue, token bucket and counters of a host, guarded by the lock of
+     * the scheduler.
+     */
+    private static class HostQueue {
+
+        final String host;
+        final ArrayDeque<Request> queue = new ArrayDeque<Request>();
+        boolean inRing;
+        int active;
+        double tokens;
+        long refillNanos;
+        long started;
+        long completed;
+        long failed;
+        long totalWaitNanos;
+        long maxWaitNanos;
+
+        HostQueue(String host, int tokens, long now) {
+            this.host = host;
+            this.tokens = tokens;
+            this.refillNanos = now;
+        }
+
+        /**
+         * Takes a token if there is one.
+         *
+         * @return 0 if the token was taken or the nanos until the next token
+         */
+        long acquire(long now, double requestsPerSecond, int burst) {
+            if (requestsPerSecond <= 0)
+                return 0;
+
+            tokens = Math.min(burst, tokens + (now - refillNanos) * requestsPerSecond / 1e9);
+            refillNanos = now;
+            if (tokens >= 1) {
+                tokens--;
+                return 0;
+            }
+            return Math.max(1, (long) Math.ceil((1 - tokens) * 1e9 / requestsPerSecond));
+        }
+
+        boolean isRefilled(long now, double requestsPerSecond, int burst) {
+            return requestsPerSecond <= 0 || tokens + (now - refillNanos) * requestsPerSecond / 1e9 >= burst;
+        }
+
+        void started(long waitNanos) {
+            active++;
+            started++;
+            totalWaitNanos += waitNanos;
+            maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+        }
+
+        void completed(boolean error) {
+            active--;
+            completed++;
+            if (error)
+                failed++;
+        }
+
+        HostStats stats() {
+            return new HostStats(host, queue.size(), active, started, completed, failed,
+                    TimeUnit.NANOSECONDS.toMillis(totalWaitNanos), TimeUnit.NANOSECONDS.toMillis(maxWaitNanos));
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package de.jetwick.snacktory;
+
+/**
+ * A snapshot of the queue of one host in a FetchScheduler. The wait time is
+ * the time a request was queued before it was sent.
+ */
+public final class HostStats {
+
+    private final String host;
+    private final int queued;
+    private final int active;
+    private final long started;
+    private final long completed;
+    private final long failed;
+    private final long totalWaitMillis;
+    private final long maxWaitMillis;
+
+    HostStats(String host, int queued, int active, long started, long completed, long failed,
+            long totalWaitMillis, long maxWaitMillis) {
+        this.host = host;
+        this.queued = queued;
+        this.active = active;
+        this.started = started;
+        this.completed = completed;
+        this.failed = failed;
+        this.totalWaitMillis = totalWaitMillis;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return the number of requests which wait in the queue
+     */
+    public int getQueued() {
+        return queued;
+    }
+
+    /**
+     * @return the number of requests which are sent but not finished
+     */
+    public int getActive() {
+        return active;
+    }
+
+    public long getStarted() {
+        return started;
+    }
+
+    /**
+     * @return the number of finished requests including the failed ones
+     */
+    public long getCompleted() {
+        return completed;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public long getTotalWaitMillis() {
+        return totalWaitMillis;
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    /**
+     * @return the average wait time of the started requests
+     */
+    public double getAverageWaitMillis() {
+        return started == 0 ? 0 : (double) totalWaitMillis / started;
+    }
+
+    @Override
+    public String toString() {
+        return host + " queued:" + queued + " active:" + active + " started:" + started + " completed:" + completed
+                + " failed:" + failed + " avgWait:" + getAverageWaitMillis() + "ms maxWait:" + maxWaitMillis + "ms";
+    }
+}
@@ -0,0 +1,426 @@
+/*
+ *  Copyright 2011 Peter Karich
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetwick.snacktory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fetches a page and extracts its article. The requests are sent
+ * asynchronously with one HttpClient per fetcher, which keeps the
+ * connections of every host alive and reuses them, and with HTTP/2 all
+ * requests to a host share one connection. The response body is not
+ * buffered: the extractor parses the stream while it arrives.
+ *
+ * Redirects are resolved with a UrlResolver: wrappers like google.com/url?q=
+ * are unwrapped without a request, short links are resolved with HEAD
+ * requests and every redirect chain the fetcher follows is remembered, so
+ * the next fetch of a known hop starts at the final url.
+ *
+ * This class is thread safe as long as the setters are not called while
+ * fetching.
+ *
+ * @author Peter Karich
+ */
+public class HtmlFetcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(HtmlFetcher.class);
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+    private final HttpClient client;
+    // the streams are read and parsed with this executor
+    private final Executor executor;
+    private final UrlResolver resolver;
+    private String referrer = "http://jetsli.de/crawler";
+    private String userAgent = "Mozilla/5.0 (compatible; Jetslide; +http://jetsli.de/crawler)";
+    private String cacheControl = "max-age=0";
+    private String language = "en-us";
+    private String accept = "application/xml,application/xhtml+xml,text/html;q=0.9,text/plain;q=0.8,image/png,*/*;q=0.5";
+    private int maxRedirects = 5;
+    // cached results which are older are revalidated
+    private long maxAge = Long.MAX_VALUE;
+    private ArticleTextExtractor extractor = new ArticleTextExtractor();
+    private ExtractionOptions options = ExtractionOptions.DEFAULT;
+    private SCache cache;
+    private final AtomicInteger cacheCounter = new AtomicInteger(0);
+
+    public HtmlFetcher() {
+        this(createExecutor());
+    }
+
+    private HtmlFetcher(ExecutorService executor) {
+        this(HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).
+                followRedirects(HttpClient.Redirect.NEVER).executor(executor).build(), executor);
+    }
+
+    /**
+     * @param client the client to send the requests, redirects are followed
+     * by the fetcher itself if the client doesn't
+     * @param executor to read and parse the response bodies
+     */
+    public HtmlFetcher(HttpClient client, Executor executor) {
+        this.client = client;
+        this.executor = executor;
+        this.resolver = new UrlResolver(client).setMaxRedirects(maxRedirects).setUserAgent(userAgent);
+    }
+
+    private static ExecutorService createExecutor() {
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "snacktory-fetcher-" + THREAD_COUNTER.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public HtmlFetcher setExtractor(ArticleTextExtractor extractor) {
+        this.extractor = extractor;
+        return this;
+    }
+
+    public ArticleTextExtractor getExtractor() {
+        return extractor;
+    }
+
+    public HtmlFetcher setExtractionOptions(ExtractionOptions options) {
+        this.options = options;
+        return this;
+    }
+
+    public HtmlFetcher setCache(SCache cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    public SCache getCache() {
+        return cache;
+    }
+
+    public int getCacheCounter() {
+        return cacheCounter.get();
+    }
+
+    /**
+     * @return the resolver with the cached redirects, e.g. to change its ttl
+     */
+    public UrlResolver getResolver() {
+        return resolver;
+    }
+
+    public HtmlFetcher setReferrer(String referrer) {
+        this.referrer = referrer;
+        return this;
+    }
+
+    public HtmlFetcher setUserAgent(String userAgent) {
+        this.userAgent = userAgent;
+        resolver.setUserAgent(userAgent);
+        return this;
+    }
+
+    public String getUserAgent() {
+        return userAgent;
+    }
+
+    public HtmlFetcher setLanguage(String language) {
+        this.language = language;
+        return this;
+    }
+
+    public HtmlFetcher setAccept(String accept) {
+        this.accept = accept;
+        return this;
+    }
+
+    public HtmlFetcher setCacheControl(String cacheControl) {
+        this.cacheControl = cacheControl;
+        return this;
+    }
+
+    public HtmlFetcher setMaxRedirects(int maxRedirects) {
+        this.maxRedirects = maxRedirects;
+        resolver.setMaxRedirects(maxRedirects);
+        return this;
+    }
+
+    /**
+     * A cached result which was fetched more than maxAge milliseconds ago is
+     * revalidated with a conditional get. If the page is not modified the
+     * cached result is returned without reading or parsing anything. By
+     * default a cached result is always returned without a request.
+     */
+    public HtmlFetcher setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+        return this;
+    }
+
+    /**
+     * Same as fetchAndExtractAsync but waits for the result.
+     */
+    public JResult fetchAndExtract(String url, int timeout, boolean resolve) throws Exception {
+        try {
+            return fetchAndExtractAsync(url, timeout, resolve).join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof Exception)
+                throw (Exception) ex.getCause();
+            throw ex;
+        }
+    }
+
+    /**
+     * Fetches the url and extracts the article. Urls of documents, images,
+     * videos and the like are not fetched, for an image or a video only the
+     * corresponding url of the result is set.
+     *
+     * @param timeout the timeout in milliseconds until the response starts and
+     * then again until the body is read
+     * @param resolve if true the url of the result is the url after the
+     * redirects and known redirects or short links are resolved before the
+     * page is fetched, otherwise the url which was fetched
+     * @return the result, which completes exceptionally if the page can't be
+     * fetched
+     */
+    public CompletableFuture<JResult> fetchAndExtractAsync(String url, final int timeout, final boolean resolve) {
+        final String originalUrl = url;
+        url = UrlResolver.unwrap(SHelper.removeHashbang(url));
+        if (!resolve)
+            return fetch(url, originalUrl, timeout, false);
+
+        String finalUrl = resolver.getCached(url);
+        if (finalUrl != null)
+            return fetch(finalUrl, originalUrl, timeout, true);
+        if (UrlResolver.isShortLink(url))
+            return resolver.resolve(url, timeout).
+                    thenCompose(resolved -> fetch(resolved, originalUrl, timeout, true));
+        return fetch(url, originalUrl, timeout, true);
+    }
+
+    /**
+     * Fetches the url without resolving it first, the cache is checked with
+     * the url and the original url.
+     */
+    private CompletableFuture<JResult> fetch(String url, String originalUrl, int timeout, boolean resolve) {
+        final JResult cached = getFromCache(url, originalUrl);
+        if (cached != null && System.currentTimeMillis() - cached.getFetchTime() <= maxAge)
+            return CompletableFuture.completedFuture(fromCache(cached, url, originalUrl));
+
+        final JResult result = new JResult();
+        result.setUrl(url);
+        result.setOriginalUrl(originalUrl);
+        String lowerUrl = url.toLowerCase(Locale.ROOT);
+        if (SHelper.isDoc(lowerUrl) || SHelper.isApp(lowerUrl) || SHelper.isPackage(lowerUrl)) {
+            // skip
+            return CompletableFuture.completedFuture(result);
+        } else if (SHelper.isVideo(lowerUrl) || SHelper.isAudio(lowerUrl)) {
+            result.setVideoUrl(url);
+            return CompletableFuture.completedFuture(result);
+        } else if (SHelper.isImage(lowerUrl)) {
+            result.setImageUrl(url);
+            return CompletableFuture.completedFuture(result);
+        }
+
+        URI uri;
+        try {
+            uri = URI.create(SHelper.replaceSpaces(url));
+        } catch (IllegalArgumentException ex) {
+            CompletableFuture<JResult> failed = new CompletableFuture<JResult>();
+            failed.completeExceptionally(ex);
+            return failed;
+        }
+
+        final String fetchUrl = url;
+        // the urls which redirected, added while sending and read after it
+        final List<String> hops = new ArrayList<String>();
+        if (cached != null && cached.getEtag() == null && cached.getLastModified() == null)
+            // nothing to revalidate with
+            return send(uri, timeout, maxRedirects, null, hops).
+                    thenApplyAsync(response -> extract(result, response, resolve, hops), executor);
+
+        return send(uri, timeout, maxRedirects, cached, hops).thenApplyAsync(response -> {
+            if (cached == null || response.statusCode() != 304)
+                return extract(result, response, resolve, hops);
+
+            close(response.body());
+            logger.debug("Not modified " + fetchUrl);
+            // a new result, the cached one may be read by other requests
+            JResult revalidated = cached.copy().setFetchTime(System.currentTimeMillis());
+            cache.put(fetchUrl, revalidated);
+            return fromCache(revalidated, fetchUrl, originalUrl);
+        }, executor);
+    }
+
+    /**
+     * Sends the request and follows at most the specified redirects.
+     *
+     * @param cached the result to revalidate or null
+     * @param hops gets every url which redirected
+     */
+    private CompletableFuture<HttpResponse<InputStream>> send(URI uri, int timeout, int redirects,
+            JResult cached, List<String> hops) {
+        return client.sendAsync(createRequest(uri, timeout, cached), BodyInputStream.handler(timeout)).
+                thenCompose(response -> {
+                    int status = response.statusCode();
+                    String location = response.headers().firstValue("Location").orElse(null);
+                    if (status < 300 || status >= 400 || status == 304 || location == null)
+                        return CompletableFuture.completedFuture(response);
+
+                    close(response.body());
+                    if (redirects <= 0)
+                        throw new CompletionException(new IOException("Too many redirects for "
+                                + uri + " -> " + location));
+                    hops.add(uri.toString());
+                    URI next = uri.resolve(SHelper.replaceSpaces(location));
+                    logger.debug("Redirect from " + uri + " to " + next);
+                    return send(next, timeout, redirects - 1, cached, hops);
+                });
+    }
+
+    private HttpRequest createRequest(URI uri, int timeout, JResult cached) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri).
+                timeout(Duration.ofMillis(timeout)).
+                header("User-Agent", userAgent).
+                header("Accept", accept).
+                header("Accept-Encoding", "gzip, deflate").
+                header("Cache-Control", cacheControl);
+        if (referrer != null)
+            builder.header("Referer", referrer);
+        if (language != null)
+            builder.header("Accept-Language", language);
+        if (cached != null && cached.getEtag() != null)
+            builder.header("If-None-Match", cached.getEtag());
+        if (cached != null && cached.getLastModified() != null)
+            builder.header("If-Modified-Since", cached.getLastModified());
+        return builder.GET().build();
+    }
+
+    /**
+     * Parses the body while it is read.
+     */
+    private JResult extract(JResult result, HttpResponse<InputStream> response, boolean resolve,
+            List<String> hops) {
+        InputStream is = response.body();
+        try {
+            int status = response.statusCode();
+            if (status >= 400)
+                throw new IOException("Status " + status + " for " + response.uri());
+
+            String url = response.uri().toString();
+            for (String hop : hops) {
+                resolver.put(hop, url);
+            }
+            if (resolve)
+                result.setUrl(url);
+            result.setEtag(response.headers().firstValue("ETag").orElse(null));
+            result.setLastModified(response.headers().firstValue("Last-Modified").orElse(null));
+            result.setFetchTime(System.currentTimeMillis());
+            is = decompress(response, is);
+            String contentType = response.headers().firstValue("Content-Type").orElse(null);
+            String charset = contentType != null && contentType.toLowerCase(Locale.ROOT).contains("charset=")
+                    ? Converter.extractEncoding(contentType) : null;
+            extractor.extractContent(result, is, charset, url, options);
+
+            if (result.getFaviconUrl().isEmpty())
+                result.setFaviconUrl(SHelper.getDefaultFavicon(url));
+
+            // some links are relative to root and do not include the domain of the url :(
+            result.setFaviconUrl(fixUrl(url, result.getFaviconUrl()));
+            result.setImageUrl(fixUrl(url, result.getImageUrl()));
+            result.setVideoUrl(fixUrl(url, result.getVideoUrl()));
+            result.setRssUrl(fixUrl(url, result.getRssUrl()));
+        } catch (org.jsoup.UncheckedIOException ex) {
+            // e.g. the timeout of the body
+            throw new CompletionException(ex.ioException());
+        } catch (Exception ex) {
+            throw new CompletionException(ex);
+        } finally {
+            close(is);
+        }
+
+        if (cache != null) {
+            cache.put(result.getOriginalUrl(), result);
+            cache.put(result.getUrl(), result);
+        }
+        return result;
+    }
+
+    private static InputStream decompress(HttpResponse<InputStream> response, InputStream is) throws IOException {
+        String encoding = response.headers().firstValue("Content-Encoding").orElse("").toLowerCase(Locale.ROOT);
+        if ("gzip".equals(encoding))
+            return new GZIPInputStream(is);
+        if ("deflate".equals(encoding))
+            return new InflaterInputStream(is);
+        return is;
+    }
+
+    private static String fixUrl(String url, String urlOrPath) {
+        if (urlOrPath.isEmpty())
+            return urlOrPath;
+        return SHelper.useDomainOfFirstArg4Second(url, urlOrPath);
+    }
+
+    private JResult getFromCache(String url, String originalUrl) {
+        if (cache == null)
+            return null;
+
+        JResult res = cache.get(url);
+        if (res == null && !url.equals(originalUrl))
+            res = cache.get(originalUrl);
+        return res;
+    }
+
+    /**
+     * @return a copy of the cached result, which is shared with other requests
+     */
+    private JResult fromCache(JResult res, String url, String originalUrl) {
+        // e.g. the cache returned a shortened url as original url. now we want to store the
+        // current original url! Also it can be that the cache response to url but the JResult
+        // does not contain it so overwrite it:
+        JResult copy = res.copy();
+        copy.setUrl(url);
+        copy.setOriginalUrl(originalUrl);
+        cacheCounter.incrementAndGet();
+        return copy;
+    }
+
+    private static void close(InputStream is) {
+        if (is != null) {
+            try {
+                is.close();
+            } catch (IOException ex) {
+            }
+        }
+    }
+}
@@ -53,6 +53,10 @@ public class JResult implements Serializable {
     private String type;
     private String sitename;
     private String language;
+    // the validators of the response and when it was fetched, for a conditional get
+    private String etag;
+    private String lastModified;
+    private long fetchTime;
 
     public JResult() {
     }
@@ -203,6 +207,8 @@ public class JResult implements Serializable {
     }
 
     public Collection<String> getKeywords() {
+        if (keywords == null)
+            return Collections.emptyList();
         return keywords;
     }
 
@@ -280,6 +286,75 @@ public class JResult implements Serializable {
 		this.language = language;
 	}
 
+    /**
+     * @return the ETag header of the response or null
+     */
+    public String getEtag() {
+        return etag;
+    }
+
+    public JResult setEtag(String etag) {
+        this.etag = etag;
+        return this;
+    }
+
+    /**
+     * @return the Last-Modified header of the response or null
+     */
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public JResult setLastModified(String lastModified) {
+        this.lastModified = lastModified;
+        return this;
+    }
+
+    /**
+     * @return the time in milliseconds when the page was fetched or last
+     * revalidated, 0 if it wasn't fetched
+     */
+    public long getFetchTime() {
+        return fetchTime;
+    }
+
+    public JResult setFetchTime(long fetchTime) {
+        this.fetchTime = fetchTime;
+        return this;
+    }
+
+    /**
+     * @return a copy with the same values, e.g. to change the urls of a
+     * cached result. The lists are shared except the links.
+     */
+    public JResult copy() {
+        JResult res = new JResult();
+        res.title = title;
+        res.url = url;
+        res.originalUrl = originalUrl;
+        res.canonicalUrl = canonicalUrl;
+        res.imageUrl = imageUrl;
+        res.videoUrl = videoUrl;
+        res.rssUrl = rssUrl;
+        res.text = text;
+        res.faviconUrl = faviconUrl;
+        res.description = description;
+        res.textList = textList;
+        res.authorName = authorName;
+        res.authorDescription = authorDescription;
+        res.date = date;
+        res.keywords = keywords;
+        res.images = images;
+        res.links = new ArrayList<Map<String,String>>(links);
+        res.type = type;
+        res.sitename = sitename;
+        res.language = language;
+        res.etag = etag;
+        res.lastModified = lastModified;
+        res.fetchTime = fetchTime;
+        return res;
+    }
+
     @Override
     public String toString() {
         return "title:" + getTitle() + " imageUrl:" + getImageUrl() + " text:" + text;
@@ -0,0 +1,460 @@
+package de.jetwick.snacktory;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-memory SCache which is bounded by the estimated bytes of the cached
+ * results instead of their count.
+ *
+ * The eviction is W-TinyLFU: a new result enters a small LRU window. When
+ * the window is full its oldest result competes with the oldest results of
+ * the main area and is only admitted if it was requested more often than
+ * the results it would replace. The frequencies are counted approximately
+ * in a sketch of 4 bit counters which are halved from time to time, so one
+ * pass over many urls which are fetched once doesn't evict the articles
+ * which are requested again and again. In the main area a result which is
+ * requested a second time is protected from the eviction.
+ *
+ * The urls are spread over segments with one lock each and every segment
+ * gets an equal part of the bytes. A result which is stored under two urls,
+ * like the original url and the url after the redirects, is counted twice.
+ * This class is thread safe.
+ */
+public class MemoryCache implements SCache {
+
+    // the estimated bytes of a result without its strings and lists
+    private static final int RESULT_BYTES = 256;
+    private static final int STRING_BYTES = 40;
+    private final Segment[] segments;
+    private final int shift;
+    private final long maxBytes;
+    private long ttl = Long.MAX_VALUE;
+
+    /**
+     * @param maxBytes the estimated bytes all cached results may retain
+     */
+    public MemoryCache(long maxBytes) {
+        this(maxBytes, 16);
+    }
+
+    /**
+     * @param concurrency the number of segments, rounded up to a power of two
+     */
+    public MemoryCache(long maxBytes, int concurrency) {
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("maxBytes must be positive but was " + maxBytes);
+        int count = 1;
+        while (count < concurrency) {
+            count <<= 1;
+        }
+        this.maxBytes = maxBytes;
+        this.shift = 32 - Integer.numberOfTrailingZeros(count);
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(Math.max(1, maxBytes / count));
+        }
+    }
+
+    /**
+     * @param ttl the time in milliseconds after which a cached result is not
+     * returned anymore
+     */
+    public MemoryCache setTtl(long ttl) {
+        this.ttl = ttl;
+        return this;
+    }
+
+    @Override
+    public JResult get(String url) {
+        int hash = spread(url.hashCode());
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            return segment.get(url, hash, System.currentTimeMillis());
+        }
+    }
+
+    @Override
+    public void put(String url, JResult res) {
+        int hash = spread(url.hashCode());
+        long weight = estimateBytes(url, res);
+        long now = System.currentTimeMillis();
+        long expires = ttl >= Long.MAX_VALUE - now ? Long.MAX_VALUE : now + ttl;
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            segment.put(url, res, hash, weight, expires, now);
+        }
+    }
+
+    @Override
+    public int getSize() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.map.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the counters of all segments, every segment is read at a
+     * different moment
+     */
+    public CacheStats getStats() {
+        long hits = 0, misses = 0, evictions = 0, expirations = 0, evictedBytes = 0, bytes = 0;
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                hits += segment.hits;
+                misses += segment.misses;
+                evictions += segment.evictions;
+                expirations += segment.expirations;
+                evictedBytes += segment.evictedBytes;
+                bytes += segment.weight();
+                size += segment.map.size();
+            }
+        }
+        return new CacheStats(hits, misses, evictions, expirations, evictedBytes, size, bytes, maxBytes);
+    }
+
+    private Segment segmentFor(int hash) {
+        return shift == 32 ? segments[0] : segments[hash >>> shift];
+    }
+
+    private static int spread(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Estimates the bytes the result retains with two bytes per char, like a
+     * string which is not latin1.
+     */
+    static long estimateBytes(String url, JResult res) {
+        long bytes = RESULT_BYTES + bytes(url);
+        bytes += bytes(res.getTitle()) + bytes(res.getUrl()) + bytes(res.getOriginalUrl())
+                + bytes(res.getCanonicalUrl()) + bytes(res.getImageUrl()) + bytes(res.getVideoUrl())
+                + bytes(res.getRssUrl()) + bytes(res.getText()) + bytes(res.getFaviconUrl())
+                + bytes(res.getDescription()) + bytes(res.getAuthorName()) + bytes(res.getAuthorDescription())
+                + bytes(res.getType()) + bytes(res.getSitename()) + bytes(res.getLanguage())
+                + bytes(res.getEtag()) + bytes(res.getLastModified());
+        if (res.getDate() != null)
+            bytes += 24;
+        bytes += bytes(res.getTextList()) + bytes(res.getKeywords());
+        List<ImageResult> images = res.getImages();
+        for (ImageResult image : images) {
+            bytes += 64 + bytes(image.src) + bytes(image.title) + bytes(image.alt);
+        }
+        for (Map<String, String> link : res.getLinks()) {
+            bytes += 160;
+            for (Map.Entry<String, String> e : link.entrySet()) {
+                bytes += 32 + bytes(e.getKey()) + bytes(e.getValue());
+            }
+        }
+        return bytes;
+    }
+
+    private static long bytes(String str) {
+        return str == null ? 0 : STRING_BYTES + 2L * str.length();
+    }
+
+    private static long bytes(Collection<String> strings) {
+        if (strings == null)
+            return 0;
+        long bytes = 24 + 8L * strings.size();
+        for (String str : strings) {
+            bytes += bytes(str);
+        }
+        return bytes;
+    }
+
+    /**
+     * The window and main area of a part of the urls, guarded by its own
+     * monitor.
+     */
+    private static class Segment {
+
+        final Map<String, Node> map = new HashMap<String, Node>();
+        final Queue window = new Queue();
+        // the main area, results which were requested again are protected
+        final Queue probation = new Queue();
+        final Queue protect = new Queue();
+        final FrequencySketch sketch = new FrequencySketch();
+        final long maxWeight;
+        final long maxWindow;
+        final long maxMain;
+        final long maxProtected;
+        long hits;
+        long misses;
+        long evictions;
+        long expirations;
+        long evictedBytes;
+
+        Segment(long maxWeight) {
+            this.maxWeight = maxWeight;
+            this.maxWindow = Math.max(1, maxWeight / 100);
+            this.maxMain = maxWeight - maxWindow;
+            this.maxProtected = maxMain * 4 / 5;
+        }
+
+        long weight() {
+            return window.weight + probation.weight + protect.weight;
+        }
+
+        JResult get(String key, int hash, long now) {
+            sketch.increment(hash);
+            Node node = map.get(key);
+            if (node == null) {
+                misses++;
+                return null;
+            }
+            if (node.expires <= now) {
+                remove(node);
+                expirations++;
+                misses++;
+                return null;
+            }
+            hits++;
+            touch(node);
+            return node.value;
+        }
+
+        void put(String key, JResult value, int hash, long weight, long expires, long now) {
+            sketch.increment(hash);
+            Node node = map.get(key);
+            if (weight > maxWeight) {
+                // never fits, but the old result must not be returned anymore
+                if (node != null)
+                    remove(node);
+                return;
+            }
+
+            if (node == null) {
+                node = new Node(key, hash);
+                node.value = value;
+                node.weight = weight;
+                node.expires = expires;
+                map.put(key, node);
+                window.addLast(node);
+                sketch.ensureCapacity(map.size());
+            } else {
+                node.queue.weight += weight - node.weight;
+                node.value = value;
+                node.weight = weight;
+                node.expires = expires;
+                touch(node);
+            }
+            evict(now);
+        }
+
+        private void touch(Node node) {
+            Queue queue = node.queue;
+            if (queue != probation) {
+                queue.remove(node);
+                queue.addLast(node);
+                return;
+            }
+
+            probation.remove(node);
+            protect.addLast(node);
+            while (protect.weight > maxProtected) {
+                Node demoted = protect.first();
+                protect.remove(demoted);
+                probation.addLast(demoted);
+            }
+        }
+
+        private void evict(long now) {
+            while (window.weight > maxWindow) {
+                Node candidate = window.first();
+                window.remove(candidate);
+                admit(candidate, now);
+            }
+            // if a result in the main area got bigger
+            while (probation.weight + protect.weight > maxMain) {
+                Node victim = probation.isEmpty() ? protect.first() : probation.first();
+                evict(victim, now);
+            }
+        }
+
+        /**
+         * Moves the candidate from the window to the main area if it is
+         * requested more often than all results it replaces, otherwise it
+         * is evicted.
+         */
+        private void admit(Node candidate, long now) {
+            if (candidate.weight > maxMain) {
+                evict(candidate, now);
+                return;
+            }
+
+            long needed = probation.weight + protect.weight + candidate.weight - maxMain;
+            if (needed > 0) {
+                int frequency = sketch.frequency(candidate.hash);
+                long freed = 0;
+                Node victim = probation.isEmpty() ? protect.first() : probation.first();
+                while (freed < needed) {
+                    if (victim.expires > now && sketch.frequency(victim.hash) >= frequency) {
+                        evict(candidate, now);
+                        return;
+                    }
+                    freed += victim.weight;
+                    victim = victim.next.key != null ? victim.next
+                            : victim.queue == probation && !protect.isEmpty() ? protect.first() : null;
+                    if (victim == null)
+                        break;
+                }
+
+                while (probation.weight + protect.weight + candidate.weight > maxMain) {
+                    evict(probation.isEmpty() ? protect.first() : probation.first(), now);
+                }
+            }
+            probation.addLast(candidate);
+        }
+
+        private void evict(Node node, long now) {
+            remove(node);
+            if (node.expires <= now) {
+                expirations++;
+            } else {
+                evictions++;
+                evictedBytes += node.weight;
+            }
+        }
+
+        private void remove(Node node) {
+            if (node.queue != null)
+                node.queue.remove(node);
+            map.remove(node.key);
+        }
+    }
+
+    private static class Node {
+
+        final String key;
+        final int hash;
+        JResult value;
+        long weight;
+        long expires;
+        Queue queue;
+        Node prev;
+        Node next;
+
+        Node(String key, int hash) {
+            this.key = key;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * A doubly linked list with the least recently used node first, the
+     * sentinel has no key.
+     */
+    private static class Queue {
+
+        final Node head = new Node(null, 0);
+        long weight;
+
+        Queue() {
+            head.prev = head;
+            head.next = head;
+        }
+
+        boolean isEmpty() {
+            return head.next == head;
+        }
+
+        Node first() {
+            return head.next;
+        }
+
+        void addLast(Node node) {
+            node.queue = this;
+            node.prev = head.prev;
+            node.next = head;
+            head.prev.next = node;
+            head.prev = node;
+            weight += node.weight;
+        }
+
+        void remove(Node node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+            node.queue = null;
+            weight -= node.weight;
+        }
+    }
+
+    /**
+     * Counts the frequencies of the hashes in 4 bit counters, 16 per long. A
+     * hash uses one counter in four different longs and its frequency is the
+     * minimum of them. After 10 increments per cached url all counters are
+     * halved, so old requests count less.
+     */
+    private static class FrequencySketch {
+
+        private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+            0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        private static final long RESET_MASK = 0x7777777777777777L;
+        private long[] table = new long[16];
+        private int sampleSize = 160;
+        private int additions;
+
+        /**
+         * Grows the table to the number of cached urls, the frequencies are
+         * lost then.
+         */
+        void ensureCapacity(int size) {
+            if (size <= table.length)
+                return;
+            int length = Integer.highestOneBit(size - 1) << 1;
+            table = new long[length];
+            sampleSize = 10 * length;
+            additions = 0;
+        }
+
+        int frequency(int hash) {
+            int start = (hash & 3) << 2;
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < 4; i++) {
+                int offset = (start + i) << 2;
+                int count = (int) ((table[indexOf(hash, i)] >>> offset) & 0xfL);
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+
+        void increment(int hash) {
+            int start = (hash & 3) << 2;
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int offset = (start + i) << 2;
+                if (((table[index] >>> offset) & 0xfL) != 0xfL) {
+                    table[index] += 1L << offset;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize)
+                reset();
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            additions >>>= 1;
+        }
+
+        private int indexOf(int hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            h += h >>> 32;
+            return (int) h & (table.length - 1);
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package de.jetwick.snacktory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import org.jsoup.internal.StringUtil;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.NodeVisitor;
+
+/**
+ * Index of the metadata of a document built with a single traversal. The
+ * meta and link elements (and spans with a property or itemprop attribute)
+ * are keyed by their name, property, itemprop and rel attributes, so the
+ * extract methods become hash lookups instead of one selector query each.
+ *
+ * The lookups return the same as the corresponding jsoup selectors: values
+ * are compared trimmed and case insensitive and the elements are kept in
+ * document order.
+ */
+public class MetadataIndex {
+
+    private static final String[] KEYS = {"name", "property", "itemprop", "rel"};
+    private final Map<String, List<Element>> elements = new HashMap<String, List<Element>>();
+    private final Map<Element, Boolean> inHead = new IdentityHashMap<Element, Boolean>();
+    private final List<Element> metas = new ArrayList<Element>();
+    private final List<Element> links = new ArrayList<Element>();
+    private final List<Element> headTitles = new ArrayList<Element>();
+    // elements with own text in document order and the lazily built word index for them
+    private final List<Element> textElements = new ArrayList<Element>();
+    private TreeMap<String, List<Integer>> words;
+    private Element title;
+    private Element h1;
+    private Element bodyAuthorRel;
+    private Element dateHeader;
+    private Element publishedTime;
+    private String lang = "";
+
+    public MetadataIndex(Document doc) {
+        NodeTraversor.traverse(new NodeVisitor() {
+            int headDepth = 0;
+            int bodyDepth = 0;
+
+            @Override
+            public void head(Node node, int depth) {
+                if (!(node instanceof Element))
+                    return;
+
+                Element el = (Element) node;
+                String tagName = el.tagName();
+                boolean head = headDepth > 0;
+                boolean body = bodyDepth > 0;
+                if (tagName.equals("head"))
+                    headDepth++;
+                else if (tagName.equals("body"))
+                    bodyDepth++;
+
+                index(el, tagName, head, body);
+                if (hasOwnText(el))
+                    textElements.add(el);
+                if (tagName.equals("title")) {
+                    if (title == null)
+                        title = el;
+                    if (head)
+                        headTitles.add(el);
+                } else if (tagName.equals("h1") && h1 == null) {
+                    h1 = el;
+                }
+            }
+
+            @Override
+            public void tail(Node node, int depth) {
+                if (node instanceof Element) {
+                    String tagName = ((Element) node).tagName();
+                    if (tagName.equals("head"))
+                        headDepth--;
+                    else if (tagName.equals("body"))
+                        bodyDepth--;
+                }
+            }
+        }, doc);
+    }
+
+    private void index(Element el, String tagName, boolean head, boolean body) {
+        boolean meta = tagName.equals("meta");
+        boolean link = tagName.equals("link");
+        if (meta || link || tagName.equals("span")) {
+            for (String key : KEYS) {
+                if (!el.hasAttr(key))
+                    continue;
+                if (!meta && !link && !key.equals("property") && !key.equals("itemprop"))
+                    continue;
+
+                String mapKey = key(key, el.attr(key));
+                List<Element> list = elements.get(mapKey);
+                if (list == null) {
+                    list = new ArrayList<Element>(2);
+                    elements.put(mapKey, list);
+                }
+                list.add(el);
+            }
+
+            if (meta)
+                metas.add(el);
+            else if (link)
+                links.add(el);
+            if (head && (meta || link))
+                inHead.put(el, Boolean.TRUE);
+        } else if (tagName.equals("html")) {
+            if (lang.isEmpty() && el.hasAttr("lang"))
+                lang = el.attr("lang");
+        } else if (tagName.equals("time")) {
+            if (publishedTime == null && el.hasAttr("class")
+                    && el.attr("class").trim().equalsIgnoreCase("published"))
+                publishedTime = el;
+        }
+
+        if (body && bodyAuthorRel == null && el.hasAttr("rel")
+                && lowerCase(el.attr("rel")).contains("author"))
+            bodyAuthorRel = el;
+        if (dateHeader == null && el.hasClass("date-header"))
+            dateHeader = el;
+    }
+
+    private static boolean hasOwnText(Element el) {
+        for (int i = 0; i < el.childNodeSize(); i++) {
+            Node child = el.childNode(i);
+            if (child instanceof TextNode && !((TextNode) child).isBlank())
+                return true;
+        }
+        return false;
+    }
+
+    private static String key(String key, String value) {
+        return key + "=" + lowerCase(value.trim());
+    }
+
+    private static String lowerCase(String str) {
+        return str.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * @return the meta, link and span elements with the attribute key=value
+     * in document order
+     */
+    public List<Element> get(String key, String value) {
+        List<Element> list = elements.get(key(key, value));
+        if (list == null)
+            return Collections.emptyList();
+        return list;
+    }
+
+    /**
+     * Same as doc.select("tagName1[key=value], tagName2[key=value]").first()
+     */
+    public Element first(String key, String value, String... tagNames) {
+        for (Element el : get(key, value)) {
+            for (String tagName : tagNames) {
+                if (el.tagName().equals(tagName))
+                    return el;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Same as doc.select("head meta[key=value]").first()
+     */
+    public Element firstHeadMeta(String key, String value) {
+        for (Element el : get(key, value)) {
+            if (el.tagName().equals("meta") && isInHead(el))
+                return el;
+        }
+        return null;
+    }
+
+    /**
+     * Same as doc.select("tagName1[key=value], tagName2[key=value]").attr(attributeKey)
+     */
+    public String attr(String key, String value, String attributeKey, String... tagNames) {
+        for (Element el : get(key, value)) {
+            if (el.hasAttr(attributeKey)) {
+                for (String tagName : tagNames) {
+                    if (el.tagName().equals(tagName))
+                        return el.attr(attributeKey);
+                }
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Same as doc.select("meta[key=value]").attr("content")
+     */
+    public String getMeta(String key, String value) {
+        return attr(key, value, "content", "meta");
+    }
+
+    /**
+     * Same as doc.select("head meta[key=value]").attr("content")
+     */
+    public String getHeadMeta(String key, String value) {
+        return headAttr(get(key, value), "meta", "content");
+    }
+
+    /**
+     * Same as doc.select("link[rel=value]").attr("href")
+     */
+    public String getLink(String rel) {
+        return attr("rel", rel, "href", "link");
+    }
+
+    /**
+     * Same as doc.select("head link[rel=value]").attr("href")
+     */
+    public String getHeadLink(String rel) {
+        return headAttr(get("rel", rel), "link", "href");
+    }
+
+    private String headAttr(List<Element> list, String tagName, String attributeKey) {
+        for (Element el : list) {
+            if (el.tagName().equals(tagName) && isInHead(el) && el.hasAttr(attributeKey))
+                return el.attr(attributeKey);
+        }
+        return "";
+    }
+
+    /**
+     * Like doc.select(":containsOwn(text)") but without parsing a query and
+     * without checking every element: the elements are looked up in a word
+     * index of the own texts, which is built on the first call. Unlike
+     * :containsOwn a text of a single word has to be at the start of a word,
+     * e.g. "doe" is found in "John Doe" but not in "Sandoe".
+     *
+     * @return the elements whose own text contains the text (case
+     * insensitive) in document order
+     */
+    public List<Element> getElementsContainingOwnText(String text) {
+        String searchText = lowerCase(text.trim());
+        if (searchText.isEmpty())
+            return Collections.emptyList();
+
+        List<String> searchWords = words(searchText);
+        if (searchWords.isEmpty())
+            return filterOwnText(textElements, searchText);
+
+        if (words == null)
+            words = createWordIndex();
+
+        // The second word follows a separator, so it has to be the start of a
+        // word in the text, the first one could be the end of a word.
+        String prefix = searchWords.get(searchWords.size() > 1 ? 1 : 0);
+        SortedSet<Integer> positions = new TreeSet<Integer>();
+        for (Map.Entry<String, List<Integer>> e : words.tailMap(prefix).entrySet()) {
+            if (!e.getKey().startsWith(prefix))
+                break;
+            positions.addAll(e.getValue());
+        }
+
+        List<Element> candidates = new ArrayList<Element>(positions.size());
+        for (Integer pos : positions) {
+            candidates.add(textElements.get(pos));
+        }
+        return filterOwnText(candidates, searchText);
+    }
+
+    private static List<Element> filterOwnText(List<Element> elements, String searchText) {
+        List<Element> res = new ArrayList<Element>();
+        for (Element el : elements) {
+            if (lowerCase(el.ownText()).contains(searchText))
+                res.add(el);
+        }
+        return res;
+    }
+
+    private TreeMap<String, List<Integer>> createWordIndex() {
+        TreeMap<String, List<Integer>> index = new TreeMap<String, List<Integer>>();
+        for (int pos = 0; pos < textElements.size(); pos++) {
+            Element el = textElements.get(pos);
+            for (int i = 0; i < el.childNodeSize(); i++) {
+                Node child = el.childNode(i);
+                if (!(child instanceof TextNode))
+                    continue;
+
+                for (String word : words(lowerCase(((TextNode) child).getWholeText()))) {
+                    List<Integer> list = index.get(word);
+                    if (list == null) {
+                        list = new ArrayList<Integer>(2);
+                        index.put(word, list);
+                    }
+                    if (list.isEmpty() || list.get(list.size() - 1) != pos)
+                        list.add(pos);
+                }
+            }
+        }
+        return index;
+    }
+
+    private static List<String> words(String str) {
+        List<String> res = new ArrayList<String>();
+        int start = -1;
+        for (int i = 0; i <= str.length(); i++) {
+            if (i < str.length() && Character.isLetterOrDigit(str.charAt(i))) {
+                if (start < 0)
+                    start = i;
+            } else if (start >= 0) {
+                res.add(str.substring(start, i));
+                start = -1;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return true if the meta or link element is inside the head
+     */
+    public boolean isInHead(Element el) {
+        return inHead.containsKey(el);
+    }
+
+    /**
+     * @return all meta elements in document order
+     */
+    public List<Element> getMetas() {
+        return metas;
+    }
+
+    /**
+     * @return all link elements in document order
+     */
+    public List<Element> getLinks() {
+        return links;
+    }
+
+    /**
+     * Same as doc.title()
+     */
+    public String getTitle() {
+        if (title == null)
+            return "";
+        return StringUtil.normaliseWhitespace(title.text()).trim();
+    }
+
+    /**
+     * Same as doc.select("head title").text()
+     */
+    public String getHeadTitleText() {
+        StringBuilder sb = new StringBuilder();
+        for (Element el : headTitles) {
+            if (sb.length() != 0)
+                sb.append(" ");
+            sb.append(el.text());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Same as doc.select("html").attr("lang")
+     */
+    public String getLang() {
+        return lang;
+    }
+
+    /**
+     * Same as doc.select("h1").first()
+     */
+    public Element getFirstH1() {
+        return h1;
+    }
+
+    /**
+     * Same as doc.select("body [rel*=author]").first()
+     */
+    public Element getFirstBodyAuthorRel() {
+        return bodyAuthorRel;
+    }
+
+    /**
+     * Same as doc.select(".date-header").first()
+     */
+    public Element getFirstDateHeader() {
+        return dateHeader;
+    }
+
+    /**
+     * Same as doc.select("time[class=published]").first()
+     */
+    public Element getFirstPublishedTime() {
+        return publishedTime;
+    }
+}
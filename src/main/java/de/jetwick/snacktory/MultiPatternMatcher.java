@@ -0,0 +1,473 @@
+package de.jetwick.snacktory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Finds several patterns in a string with a single pass. Most of the
+ * heuristic patterns like "com(bx|ment|munity)|(^com-)|nav($|igation)" are
+ * a finite set of keywords, some anchored at the start or the end. Such
+ * patterns are expanded into their keywords and all keywords are matched
+ * with one Aho-Corasick automaton. The anchors are checked for every match.
+ *
+ * Supported are literals, escaped punctuation, groups, alternation, the ?
+ * quantifier, small character classes and the anchors ^ and $ at the start
+ * and end of an alternative. Other patterns are matched with the regex.
+ * Either way the result is the same as Pattern.find.
+ *
+ * This class is thread safe.
+ */
+public class MultiPatternMatcher {
+
+    // markers of the anchors in the expanded keywords
+    private static final char START = '\uFFFE';
+    private static final char END = '\uFFFF';
+    private static final int MAX_KEYWORDS = 5000;
+    private static final int MAX_CLASS_SIZE = 64;
+    private final Pattern[] patterns;
+    // the bits of the patterns which are matched with the automaton
+    private final int automatonMask;
+    // trie: sorted transitions per node, failure links and outputs
+    private char[][] chars;
+    private int[][] targets;
+    private int[] fail;
+    private int[] depth;
+    // the next node on the failure chain which has an output
+    private int[] nextOutput;
+    // the bits of the keywords ending at a node: without anchor, at the start, at the end, at both
+    private int[] any;
+    private int[] atStart;
+    private int[] atEnd;
+    private int[] atBoth;
+
+    public MultiPatternMatcher(Pattern... patterns) {
+        if (patterns.length > 31)
+            throw new IllegalArgumentException("At most 31 patterns are supported but was " + patterns.length);
+
+        this.patterns = patterns.clone();
+        List<Set<String>> keywords = new ArrayList<Set<String>>();
+        int mask = 0;
+        for (int i = 0; i < patterns.length; i++) {
+            Set<String> set = expand(patterns[i]);
+            keywords.add(set);
+            if (set != null)
+                mask |= 1 << i;
+        }
+        automatonMask = mask;
+        build(keywords);
+    }
+
+    /**
+     * @return the bitmask of the patterns which are found in the string
+     */
+    public int find(CharSequence str) {
+        return find(str, (1 << patterns.length) - 1);
+    }
+
+    /**
+     * @param mask only the patterns with these bits are matched
+     * @return the bitmask of the patterns which are found in the string
+     */
+    public int find(CharSequence str, int mask) {
+        int res = 0;
+        int regexMask = mask & ~automatonMask;
+        for (int i = 0; regexMask != 0; i++, regexMask >>>= 1) {
+            if ((regexMask & 1) != 0 && patterns[i].matcher(str).find())
+                res |= 1 << i;
+        }
+
+        int todo = mask & automatonMask;
+        if (todo == 0)
+            return res;
+
+        int len = str.length();
+        int node = 0;
+        for (int i = 0; i < len; i++) {
+            node = next(node, str.charAt(i));
+            int out = any[node] != 0 || atStart[node] != 0 || atEnd[node] != 0 || atBoth[node] != 0
+                    ? node : nextOutput[node];
+            for (; out > 0; out = nextOutput[out]) {
+                int found = any[out];
+                boolean start = i + 1 == depth[out];
+                boolean end = isEnd(str, i + 1);
+                if (start)
+                    found |= atStart[out];
+                if (end)
+                    found |= atEnd[out];
+                if (start && end)
+                    found |= atBoth[out];
+                found &= todo;
+                if (found != 0) {
+                    res |= found;
+                    todo &= ~found;
+                    if (todo == 0)
+                        return res;
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return the bitmask of the patterns which are matched with the automaton
+     */
+    public int getAutomatonMask() {
+        return automatonMask;
+    }
+
+    private int next(int node, char c) {
+        while (true) {
+            int index = Arrays.binarySearch(chars[node], c);
+            if (index >= 0)
+                return targets[node][index];
+            if (node == 0)
+                return 0;
+            node = fail[node];
+        }
+    }
+
+    /**
+     * Same as $ without MULTILINE: the end or before a line terminator at the end
+     */
+    private static boolean isEnd(CharSequence str, int i) {
+        int len = str.length();
+        if (i == len)
+            return true;
+        char c = str.charAt(i);
+        if (i == len - 2)
+            return c == '\r' && str.charAt(i + 1) == '\n';
+        if (i == len - 1) {
+            if (c == '\n')
+                return i == 0 || str.charAt(i - 1) != '\r';
+            return c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+        }
+        return false;
+    }
+
+    private void build(List<Set<String>> keywords) {
+        List<StringBuilder> nodeChars = new ArrayList<StringBuilder>();
+        List<List<Integer>> nodeTargets = new ArrayList<List<Integer>>();
+        List<Integer> depths = new ArrayList<Integer>();
+        List<int[]> outputs = new ArrayList<int[]>();
+        addNode(nodeChars, nodeTargets, depths, outputs, 0);
+
+        for (int i = 0; i < keywords.size(); i++) {
+            if (keywords.get(i) == null)
+                continue;
+
+            for (String keyword : keywords.get(i)) {
+                int type = 0;
+                int from = 0;
+                int to = keyword.length();
+                if (keyword.charAt(0) == START) {
+                    type |= 1;
+                    from++;
+                }
+                if (keyword.charAt(to - 1) == END) {
+                    type |= 2;
+                    to--;
+                }
+
+                int node = 0;
+                for (int j = from; j < to; j++) {
+                    char c = keyword.charAt(j);
+                    int index = nodeChars.get(node).indexOf(String.valueOf(c));
+                    if (index < 0) {
+                        int child = addNode(nodeChars, nodeTargets, depths, outputs, depths.get(node) + 1);
+                        nodeChars.get(node).append(c);
+                        nodeTargets.get(node).add(child);
+                        node = child;
+                    } else
+                        node = nodeTargets.get(node).get(index);
+                }
+                outputs.get(node)[type] |= 1 << i;
+            }
+        }
+
+        int size = depths.size();
+        chars = new char[size][];
+        targets = new int[size][];
+        depth = new int[size];
+        any = new int[size];
+        atStart = new int[size];
+        atEnd = new int[size];
+        atBoth = new int[size];
+        for (int node = 0; node < size; node++) {
+            // sort the transitions for the binary search
+            char[] c = nodeChars.get(node).toString().toCharArray();
+            Integer[] order = new Integer[c.length];
+            for (int j = 0; j < c.length; j++) {
+                order[j] = j;
+            }
+            final char[] unsorted = c;
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer o1, Integer o2) {
+                    return unsorted[o1] - unsorted[o2];
+                }
+            });
+            chars[node] = new char[c.length];
+            targets[node] = new int[c.length];
+            for (int j = 0; j < c.length; j++) {
+                chars[node][j] = c[order[j]];
+                targets[node][j] = nodeTargets.get(node).get(order[j]);
+            }
+            depth[node] = depths.get(node);
+            int[] out = outputs.get(node);
+            any[node] = out[0];
+            atStart[node] = out[1];
+            atEnd[node] = out[2];
+            atBoth[node] = out[3];
+        }
+
+        // breadth first, so the failure link of the parent is known
+        fail = new int[size];
+        nextOutput = new int[size];
+        int[] queue = new int[size];
+        int head = 0;
+        int tail = 0;
+        for (int child : targets[0]) {
+            queue[tail++] = child;
+        }
+        while (head < tail) {
+            int node = queue[head++];
+            for (int j = 0; j < chars[node].length; j++) {
+                int child = targets[node][j];
+                int f = node == 0 ? 0 : fail[node];
+                int failTarget = 0;
+                while (true) {
+                    int index = Arrays.binarySearch(chars[f], chars[node][j]);
+                    if (index >= 0) {
+                        failTarget = targets[f][index];
+                        break;
+                    }
+                    if (f == 0)
+                        break;
+                    f = fail[f];
+                }
+                fail[child] = failTarget;
+                queue[tail++] = child;
+            }
+            int f = fail[node];
+            nextOutput[node] = hasOutput(f) ? f : nextOutput[f];
+        }
+    }
+
+    private boolean hasOutput(int node) {
+        return node > 0 && (any[node] != 0 || atStart[node] != 0 || atEnd[node] != 0 || atBoth[node] != 0);
+    }
+
+    private static int addNode(List<StringBuilder> nodeChars, List<List<Integer>> nodeTargets,
+            List<Integer> depths, List<int[]> outputs, int depth) {
+        nodeChars.add(new StringBuilder());
+        nodeTargets.add(new ArrayList<Integer>());
+        depths.add(depth);
+        outputs.add(new int[4]);
+        return depths.size() - 1;
+    }
+
+    /**
+     * @return the keywords of the pattern with the anchor markers or null if
+     * the pattern cannot be expressed as a finite set of keywords
+     */
+    static Set<String> expand(Pattern pattern) {
+        if (pattern.flags() != 0)
+            return null;
+
+        String regex = pattern.pattern();
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == START || c == END || Character.isSurrogate(c))
+                return null;
+        }
+
+        Parser parser = new Parser(regex);
+        Set<String> set = parser.alternation();
+        if (set == null || parser.pos != regex.length())
+            return null;
+
+        Set<String> res = new LinkedHashSet<String>();
+        for (String str : set) {
+            // anchors are only supported at the start and the end
+            int start = str.lastIndexOf(START);
+            int end = str.indexOf(END);
+            if (start > 0 || end >= 0 && end != str.length() - 1)
+                return null;
+            String keyword = str;
+            if (start == 0)
+                keyword = keyword.substring(1);
+            if (end >= 0)
+                keyword = keyword.substring(0, keyword.length() - 1);
+            // an empty keyword would match everywhere
+            if (keyword.isEmpty())
+                return null;
+            res.add(str);
+        }
+        return res;
+    }
+
+    /**
+     * Recursive descent parser which expands a regex into all strings it
+     * matches or returns null for unsupported syntax.
+     */
+    private static class Parser {
+
+        final String regex;
+        int pos;
+
+        Parser(String regex) {
+            this.regex = regex;
+        }
+
+        Set<String> alternation() {
+            Set<String> res = new LinkedHashSet<String>();
+            while (true) {
+                Set<String> seq = sequence();
+                if (seq == null)
+                    return null;
+                res.addAll(seq);
+                if (res.size() > MAX_KEYWORDS)
+                    return null;
+                if (pos < regex.length() && regex.charAt(pos) == '|')
+                    pos++;
+                else
+                    return res;
+            }
+        }
+
+        Set<String> sequence() {
+            Set<String> res = new LinkedHashSet<String>();
+            res.add("");
+            while (pos < regex.length()) {
+                char c = regex.charAt(pos);
+                if (c == '|' || c == ')')
+                    return res;
+
+                Set<String> atom = atom();
+                if (atom == null)
+                    return null;
+                if (pos < regex.length()) {
+                    char q = regex.charAt(pos);
+                    if (q == '*' || q == '+' || q == '{')
+                        return null;
+                    if (q == '?') {
+                        pos++;
+                        // lazy and possessive quantifiers and optional anchors
+                        if (pos < regex.length() && (regex.charAt(pos) == '?' || regex.charAt(pos) == '+'))
+                            return null;
+                        for (String str : atom) {
+                            if (str.indexOf(START) >= 0 || str.indexOf(END) >= 0)
+                                return null;
+                        }
+                        atom.add("");
+                    }
+                }
+
+                Set<String> next = new LinkedHashSet<String>();
+                for (String prefix : res) {
+                    for (String suffix : atom) {
+                        next.add(prefix + suffix);
+                    }
+                }
+                if (next.size() > MAX_KEYWORDS)
+                    return null;
+                res = next;
+            }
+            return res;
+        }
+
+        Set<String> atom() {
+            Set<String> res = new LinkedHashSet<String>();
+            char c = regex.charAt(pos++);
+            switch (c) {
+                case '(':
+                    if (pos < regex.length() && regex.charAt(pos) == '?') {
+                        if (pos + 1 < regex.length() && regex.charAt(pos + 1) == ':')
+                            pos += 2;
+                        else
+                            return null;
+                    }
+                    Set<String> group = alternation();
+                    if (group == null || pos >= regex.length() || regex.charAt(pos) != ')')
+                        return null;
+                    pos++;
+                    return group;
+                case '[':
+                    return characterClass();
+                case '\\':
+                    Character escaped = escaped();
+                    if (escaped == null)
+                        return null;
+                    res.add(String.valueOf(escaped));
+                    return res;
+                case '^':
+                    res.add(String.valueOf(START));
+                    return res;
+                case '$':
+                    res.add(String.valueOf(END));
+                    return res;
+                case '.':
+                case '*':
+                case '+':
+                case '?':
+                case '{':
+                case '}':
+                case ']':
+                    return null;
+                default:
+                    res.add(String.valueOf(c));
+                    return res;
+            }
+        }
+
+        /**
+         * @return the escaped punctuation character or null
+         */
+        Character escaped() {
+            if (pos >= regex.length())
+                return null;
+            char c = regex.charAt(pos++);
+            if (c >= 128 || Character.isLetterOrDigit(c))
+                return null;
+            return c;
+        }
+
+        Set<String> characterClass() {
+            Set<String> res = new LinkedHashSet<String>();
+            if (pos < regex.length() && (regex.charAt(pos) == '^' || regex.charAt(pos) == ']'))
+                return null;
+
+            while (pos < regex.length()) {
+                char c = regex.charAt(pos++);
+                if (c == ']')
+                    return res.isEmpty() ? null : res;
+                if (c == '[' || c == '&')
+                    return null;
+                if (c == '\\') {
+                    Character escaped = escaped();
+                    // ranges with escaped characters are not supported
+                    if (escaped == null || pos < regex.length() && regex.charAt(pos) == '-')
+                        return null;
+                    c = escaped;
+                } else if (pos + 1 < regex.length() && regex.charAt(pos) == '-'
+                        && regex.charAt(pos + 1) != ']') {
+                    char to = regex.charAt(pos + 1);
+                    if (to == '\\' || to == '[' || to < c || to - c >= MAX_CLASS_SIZE)
+                        return null;
+                    pos += 2;
+                    for (char r = c; r <= to; r++) {
+                        res.add(String.valueOf(r));
+                    }
+                    continue;
+                }
+                res.add(String.valueOf(c));
+            }
+            return null;
+        }
+    }
+}
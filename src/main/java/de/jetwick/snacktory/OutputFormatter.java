@@ -1,8 +1,10 @@
 package de.jetwick.snacktory;
 
-import org.jsoup.Jsoup;
 import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
+import org.jsoup.select.Evaluator;
+import org.jsoup.select.NodeFilter;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.QueryParser;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -23,10 +25,13 @@ public class OutputFormatter {
     public static final int MIN_FIRST_PARAGRAPH_TEXT = 50; // Min size of first paragraph
     public static final int MIN_PARAGRAPH_TEXT = 30;       // Min size of any other paragraphs
     private Pattern unlikelyPattern = Pattern.compile("display\\:none|visibility\\:hidden");
+    private TokenClassifier unlikelyClassifier = new TokenClassifier(unlikelyPattern);
     private final int minFirstParagraphText;
     private final int minParagraphText;
     private String nodesToKeepCssSelector = "p, ol, small, blockquote";
+    private Evaluator nodesToKeepEvaluator = QueryParser.parse(nodesToKeepCssSelector);
     private static final String textListNodesSelector = "div, p, ol, small, blockquote";
+    private static final Evaluator textListNodesEvaluator = QueryParser.parse(textListNodesSelector);
 
     public OutputFormatter() {
         this(MIN_FIRST_PARAGRAPH_TEXT, MIN_PARAGRAPH_TEXT);
@@ -46,19 +51,44 @@ public class OutputFormatter {
      */
     public void setNodesToKeepCssSelector(String nodesToKeepCssSelector) {
         this.nodesToKeepCssSelector = nodesToKeepCssSelector;
+        this.nodesToKeepEvaluator = QueryParser.parse(nodesToKeepCssSelector);
     }
 
     /**
      * takes an element and turns the P tags into \n\n
      */
     public String getFormattedText(Element topNode) {
-        setParagraphIndex(topNode, nodesToKeepCssSelector);
-        removeNodesWithNegativeScores(topNode);
-        StringBuilder sb = new StringBuilder();
-        int countOfP = append(topNode, sb, nodesToKeepCssSelector);
-        String str = SHelper.innerTrim(sb.toString());
+        return getFormattedText(topNode, new ExtractionContext(false));
+    }
 
-        int topNodeLength = topNode.text().length();
+    /**
+     * takes an element and turns the P tags into \n\n. The scores and the
+     * skipped nodes are taken from the context, removed nodes are only
+     * marked in the context.
+     */
+    public String getFormattedText(Element topNode, ExtractionContext context) {
+        return getFormattedText(topNode, context, null);
+    }
+
+    /**
+     * Same as getFormattedText followed by getTextList, but the elements of
+     * the text list are collected in the same traversal as the paragraphs
+     * and its entries are stored as ranges of the text of the top node.
+     *
+     * @param res receives the text list, if null no text list is created
+     */
+    public String getFormattedText(Element topNode, ExtractionContext context, JResult res) {
+        setParagraphIndex(topNode, nodesToKeepCssSelector, context);
+        removeNodesWithNegativeScores(topNode, context);
+        StringBuilder sb = new StringBuilder();
+        List<Element> textListElements = res == null ? null : new ArrayList<Element>();
+        int countOfP = append(topNode, sb, nodesToKeepCssSelector, context, textListElements);
+        String str = SHelper.innerTrim(sb);
+
+        String topNodeText = context.text(topNode);
+        if (res != null)
+            res.setTextList(createTextList(topNode, topNodeText, textListElements, context));
+        int topNodeLength = topNodeText.length();
         if (topNodeLength == 0) {
             topNodeLength = 1;
         }
@@ -69,47 +99,83 @@ public class OutputFormatter {
             return str;
 
         // no subelements
-        if (str.isEmpty() || (!topNode.text().isEmpty()
-            && str.length() <= topNode.ownText().length())
+        if (str.isEmpty() || (!topNodeText.isEmpty()
+            && str.length() <= context.ownTextLength(topNode))
             || countOfP == 0 || lowTextRatio){
-            str = topNode.text();
+            str = topNodeText;
         }
 
-        // if jsoup failed to parse the whole html now parse this smaller
-        // snippet again to avoid html tags disturbing our text:
-        return Jsoup.parse(str).text();
+        // if jsoup failed to parse the whole html remove the tags of this
+        // smaller snippet to avoid html tags disturbing our text:
+        return TextSanitizer.text(str);
     }
 
     /**
      * If there are elements inside our top node that have a negative gravity
-     * score remove them
+     * score remove them. They are only marked as removed in the context.
      */
-    protected void removeNodesWithNegativeScores(Element topNode) {
-        Elements gravityItems = topNode.select("*[gravityScore]");
-        for (Element item : gravityItems) {
-            int score = getScore(item);
-            int paragraphIndex = getParagraphIndex(item);
-            if (score < 0 || item.text().length() < getMinParagraph(paragraphIndex)){
-                item.remove();
+    protected void removeNodesWithNegativeScores(final Element topNode, final ExtractionContext context) {
+        // pre-order, so the text of an element is measured before any of its
+        // children is removed
+        NodeTraversor.filter(new NodeFilter() {
+            @Override
+            public FilterResult head(Node node, int depth) {
+                if (!(node instanceof Element))
+                    return FilterResult.SKIP_ENTIRELY;
+                if (context.isIgnored(node))
+                    return FilterResult.SKIP_ENTIRELY;
+
+                Element item = (Element) node;
+                if (!context.hasScore(item))
+                    return FilterResult.CONTINUE;
+
+                int score = context.getScore(item);
+                int paragraphIndex = context.getParagraphIndex(item);
+                // removing the top node itself has no effect on the output
+                if (item != topNode && (score < 0
+                        || context.textLength(item) < getMinParagraph(paragraphIndex))) {
+                    context.remove(item);
+                    return FilterResult.SKIP_ENTIRELY;
+                }
+                return FilterResult.CONTINUE;
             }
-        }
+
+            @Override
+            public FilterResult tail(Node node, int depth) {
+                return FilterResult.CONTINUE;
+            }
+        }, topNode);
     }
 
     protected int append(Element node, StringBuilder sb, String tagName) {
+        return append(node, sb, tagName, new ExtractionContext(false));
+    }
+
+    /**
+     * Appends the text of the elements matching tagName (a css selector) which
+     * are not hidden. The hidden state and the texts are computed in a single
+     * traversal of node instead of checking the ancestors of every element
+     * and traversing every element again for its text.
+     */
+    protected int append(Element node, StringBuilder sb, String tagName, ExtractionContext context) {
+        return append(node, sb, tagName, context, null);
+    }
+
+    /**
+     * @param textListElements receives the candidates for the text list in
+     * document order, can be null
+     */
+    private int append(Element node, StringBuilder sb, String tagName, ExtractionContext context,
+            List<Element> textListElements) {
         int countOfP = 0; // Number of P elements in the article
         int paragraphWithTextIndex = 0;
-        // is select more costly then getElementsByTag?
-        MAIN:
-        for (Element e : node.select(tagName)) {
-            Element tmpEl = e;
-            // check all elements until 'node'
-            while (tmpEl != null && !tmpEl.equals(node)) {
-                if (unlikely(tmpEl))
-                    continue MAIN;
-                tmpEl = tmpEl.parent();
-            }
-
-            String text = node2Text(e);
+        Evaluator evaluator = tagName.equals(nodesToKeepCssSelector)
+                ? nodesToKeepEvaluator : QueryParser.parse(tagName);
+        ParagraphCollector collector = new ParagraphCollector(node, evaluator, context, textListElements);
+        NodeTraversor.filter(collector, node);
+        for (int i = 0; i < collector.elements.size(); i++) {
+            Element e = collector.elements.get(i);
+            String text = collector.texts.get(i);
             if (text.isEmpty() || text.length() < getMinParagraph(paragraphWithTextIndex)
                 || text.length() > SHelper.countLetters(text) * 2){
                 continue;
@@ -127,10 +193,95 @@ public class OutputFormatter {
         return countOfP;
     }
 
-    protected void setParagraphIndex(Element node, String tagName) {
+    /**
+     * Collects the texts of the matching elements in document order. A hidden
+     * element (skipped or unlikely) is skipped with all its children, this is
+     * the same as checking all ancestors up to the top node. The text of every
+     * open element is built like appendTextSkipHidden does.
+     *
+     * The elements of the text list are collected as well if textListElements
+     * is not null. Only the skipped elements are excluded from the text list,
+     * so for an unlikely element they are selected separately.
+     */
+    private class ParagraphCollector implements NodeFilter {
+
+        private final Element topNode;
+        private final Evaluator evaluator;
+        private final ExtractionContext context;
+        private final List<Element> textListElements;
+        final List<Element> elements = new ArrayList<Element>();
+        final List<String> texts = new ArrayList<String>();
+        // the matching elements which are not finished yet and their text
+        private final List<StringBuilder> open = new ArrayList<StringBuilder>();
+        private final List<Integer> openIndex = new ArrayList<Integer>();
+        private final List<Element> openElements = new ArrayList<Element>();
+
+        ParagraphCollector(Element topNode, Evaluator evaluator, ExtractionContext context,
+                List<Element> textListElements) {
+            this.topNode = topNode;
+            this.evaluator = evaluator;
+            this.context = context;
+            this.textListElements = textListElements;
+        }
+
+        @Override
+        public FilterResult head(Node node, int depth) {
+            if (node instanceof TextNode) {
+                String txt = ((TextNode) node).text();
+                for (StringBuilder accum : open) {
+                    accum.append(txt);
+                }
+                return FilterResult.CONTINUE;
+            }
+            if (!(node instanceof Element))
+                return FilterResult.CONTINUE;
+
+            Element el = (Element) node;
+            if (el != topNode) {
+                if (context.isSkipped(el))
+                    return FilterResult.SKIP_ENTIRELY;
+                if (unlikely(el)) {
+                    if (textListElements != null)
+                        textListElements.addAll(context.select(el, textListNodesSelector));
+                    return FilterResult.SKIP_ENTIRELY;
+                }
+
+                for (StringBuilder accum : open) {
+                    if (accum.length() > 0 && el.isBlock() && !lastCharIsWhitespace(accum))
+                        accum.append(" ");
+                    else if (el.tagName().equals("br"))
+                        accum.append(" ");
+                }
+            }
+
+            if (textListElements != null && textListNodesEvaluator.matches(topNode, el))
+                textListElements.add(el);
+
+            if (evaluator.matches(topNode, el)) {
+                openIndex.add(elements.size());
+                openElements.add(el);
+                open.add(new StringBuilder(200));
+                elements.add(el);
+                texts.add(null);
+            }
+            return FilterResult.CONTINUE;
+        }
+
+        @Override
+        public FilterResult tail(Node node, int depth) {
+            int last = openElements.size() - 1;
+            if (last >= 0 && openElements.get(last) == node) {
+                texts.set(openIndex.remove(last), open.remove(last).toString().trim());
+                openElements.remove(last);
+            }
+            return FilterResult.CONTINUE;
+        }
+    }
+
+    protected void setParagraphIndex(Element node, String tagName, ExtractionContext context) {
         int paragraphIndex = 0;
-        for (Element e : node.select(tagName)) {
-            e.attr("paragraphIndex", Integer.toString(paragraphIndex++));
+        for (Element e : context.select(node, tagName)) {
+            context.setParagraphIndex(e, paragraphIndex++);
         }
     }
 
@@ -142,34 +293,22 @@ public class OutputFormatter {
         }
     }
 
-    protected int getParagraphIndex(Element el){
-        try {
-            return Integer.parseInt(el.attr("paragraphIndex"));
-        } catch(NumberFormatException ex) {
-            return -1;
-        }
-    }
-
-    protected int getScore(Element el) {
-        try {
-            return Integer.parseInt(el.attr("gravityScore"));
-        } catch (Exception ex) {
-            return 0;
-        }
-    }
-
     boolean unlikely(Node e) {
         if (e.attr("class") != null && e.attr("class").toLowerCase().contains("caption"))
             return true;
 
         String style = e.attr("style");
         String clazz = e.attr("class");
-        return (unlikelyPattern.matcher(style).find() || unlikelyPattern.matcher(clazz).find());
+        return unlikelyClassifier.classify(style) != 0 || unlikelyClassifier.classify(clazz) != 0;
     }
 
     void appendTextSkipHidden(Element e, StringBuilder accum, int indent) {
+        appendTextSkipHidden(e, accum, indent, new ExtractionContext(false));
+    }
+
+    void appendTextSkipHidden(Element e, StringBuilder accum, int indent, ExtractionContext context) {
         for (Node child : e.childNodes()) {
-            if (unlikely(child)){
+            if (context.isSkipped(child) || unlikely(child)){
                 continue;
             }
             if (child instanceof TextNode) {
@@ -183,7 +322,7 @@ public class OutputFormatter {
                     accum.append(" ");
                 else if (element.tagName().equals("br"))
                     accum.append(" ");
-                appendTextSkipHidden(element, accum, indent + 1);
+                appendTextSkipHidden(element, accum, indent + 1, context);
             }
         }
     }
@@ -207,8 +346,12 @@ public class OutputFormatter {
     }
 
     protected String node2Text(Element el) {
+        return node2Text(el, new ExtractionContext(false));
+    }
+
+    protected String node2Text(Element el, ExtractionContext context) {
         StringBuilder sb = new StringBuilder(200);
-        appendTextSkipHidden(el, sb, 0);
+        appendTextSkipHidden(el, sb, 0, context);
         return sb.toString().trim();
     }
 
@@ -216,21 +359,53 @@ public class OutputFormatter {
      * Takes an element and returns a list of texts extracted from the P tags
      */
     public List<String> getTextList(Element topNode) {
+        return getTextList(topNode, new ExtractionContext(false));
+    }
+
+    /**
+     * Takes an element and returns a list of texts extracted from the P tags
+     * without the nodes skipped by the context
+     */
+    public List<String> getTextList(Element topNode, ExtractionContext context) {
         List<String> texts = new ArrayList<String>();
-        for(Element element : topNode.select(textListNodesSelector)) {
-            if("div".equals(element.tagName())) {
-                if(element.children().isEmpty() && element.hasText()) {
-                    texts.add(SHelper.trimAll(element.text()));
-                }
-            } else if(element.hasText()) {
-                texts.add(SHelper.trimAll(element.text()));
-            }
+        for(Element element : context.select(topNode, textListNodesSelector)) {
+            if (isTextListElement(element, context))
+                texts.add(SHelper.trimAll(context.text(element)));
         }
         return texts;
     }
 
+    private boolean isTextListElement(Element element, ExtractionContext context) {
+        // a div only if it is not just a container
+        if ("div".equals(element.tagName()) && !context.children(element).isEmpty())
+            return false;
+        return context.hasText(element);
+    }
+
+    /**
+     * @return the text list of the elements as ranges of the text of the top
+     * node
+     */
+    private List<String> createTextList(Element topNode, String topNodeText, List<Element> elements,
+            ExtractionContext context) {
+        int[] bounds = new int[elements.size() * 2];
+        int size = 0;
+        for (Element element : elements) {
+            if (!isTextListElement(element, context))
+                continue;
+
+            int start = context.textIndex(topNode, element);
+            if (start < 0)
+                return getTextList(topNode, context);
+            bounds[size++] = start;
+            bounds[size++] = start + context.textLength(element);
+        }
+        return new TextList(topNodeText, Arrays.copyOf(bounds, size));
+    }
+
     public OutputFormatter setUnlikelyPattern(String unlikelyPattern) {
         this.unlikelyPattern = Pattern.compile(unlikelyPattern);
+        this.unlikelyClassifier = new TokenClassifier(this.unlikelyPattern);
         return this;
     }
 
@@ -27,8 +27,6 @@ import java.security.SecureRandom;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.text.SimpleDateFormat;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.SSLContext;
@@ -36,7 +34,6 @@ import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 import org.jsoup.nodes.Element;
 
-import org.apache.commons.lang.StringUtils;
 
 /**
  *
@@ -45,9 +42,8 @@ import org.apache.commons.lang.StringUtils;
 public class SHelper {
 
     private static final String UTF8 = "UTF-8";
-    private static final Pattern SPACE = Pattern.compile(" ");
     // &nbsp;
-    private static final Pattern NON_BREAKING_SPACE = Pattern.compile(String.valueOf((char) 160));
+    private static final char NON_BREAKING_SPACE = 160;
 
     /**
      * Remove control characters [\r\n\t] from the specified url and replace spaces with %20
@@ -55,50 +51,210 @@ public class SHelper {
      * @return cleaned url
      */
     public static String replaceSpaces(String url) {
-        if (!url.isEmpty()) {
-            url = url.trim().replaceAll("([\r\n\t])", "");
-            if (url.contains(" ")) {
-                final Matcher spaces = SPACE.matcher(url);
-                url = spaces.replaceAll("%20");
-            }
+        int start = trimStart(url);
+        int end = trimEnd(url, start);
+        if (start == 0 && end == url.length() && !containsSpaceOrControl(url))
+            return url;
+
+        StringBuilder sb = new StringBuilder(end - start + 16);
+        appendReplacedSpaces(url, start, end, sb);
+        return sb.toString();
+    }
+
+    /**
+     * Appends the url like replaceSpaces(url) without creating a string.
+     */
+    public static void appendReplacedSpaces(CharSequence url, StringBuilder sb) {
+        int start = trimStart(url);
+        appendReplacedSpaces(url, start, trimEnd(url, start), sb);
+    }
+
+    private static void appendReplacedSpaces(CharSequence url, int start, int end, StringBuilder sb) {
+        for (int i = start; i < end; i++) {
+            char c = url.charAt(i);
+            if (c == ' ')
+                sb.append("%20");
+            else if (c != '\r' && c != '\n' && c != '\t')
+                sb.append(c);
         }
-        return url;
+    }
+
+    private static boolean containsSpaceOrControl(CharSequence str) {
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c == ' ' || c == '\r' || c == '\n' || c == '\t')
+                return true;
+        }
+        return false;
+    }
+
+    // the bounds of String.trim()
+    private static int trimStart(CharSequence str) {
+        int start = 0;
+        while (start < str.length() && str.charAt(start) <= ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    private static int trimEnd(CharSequence str, int start) {
+        int end = str.length();
+        while (end > start && str.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return end;
     }
 
     public static int count(String str, String substring) {
+        return count((CharSequence) str, substring);
+    }
+
+    /**
+     * @return the number of non overlapping occurrences of the substring
+     */
+    public static int count(CharSequence str, CharSequence substring) {
+        int len = substring.length();
+        if (len == 0)
+            return 0;
+
         int c = 0;
-        int index1 = str.indexOf(substring);
-        if (index1 >= 0) {
-            c++;
-            c += count(str.substring(index1 + substring.length()), substring);
+        int max = str.length() - len;
+        char first = substring.charAt(0);
+        for (int i = 0; i <= max; i++) {
+            if (str.charAt(i) == first && regionMatches(str, i, substring)) {
+                c++;
+                i += len - 1;
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Counts the occurrences of all substrings with a single pass. Same as
+     * the sum of count(str, substring) for every substring.
+     */
+    public static int countAll(CharSequence str, String... substrings) {
+        int[] next = new int[substrings.length];
+        int c = 0;
+        int len = str.length();
+        for (int i = 0; i < len; i++) {
+            char ch = str.charAt(i);
+            for (int j = 0; j < substrings.length; j++) {
+                String substring = substrings[j];
+                if (i >= next[j] && !substring.isEmpty() && substring.charAt(0) == ch
+                        && i + substring.length() <= len && regionMatches(str, i, substring)) {
+                    c++;
+                    next[j] = i + substring.length();
+                }
+            }
         }
         return c;
     }
 
+    private static boolean regionMatches(CharSequence str, int offset, CharSequence substring) {
+        for (int j = 1; j < substring.length(); j++) {
+            if (str.charAt(offset + j) != substring.charAt(j))
+                return false;
+        }
+        return true;
+    }
+
     /**
      * trim all whitespace characters (&bnsp; included) for the given string.
      */
     public static String trimAll(final String str) {
-        if (str == null) {
+        if (str == null)
             return null;
-        } else {
-            return StringUtils.trim(
-                  NON_BREAKING_SPACE.matcher(str).replaceAll(" "));
+
+        return trimAll(str, 0, str.length());
+    }
+
+    /**
+     * Same as trimAll(str.substring(from, to)) without creating the substring.
+     */
+    public static String trimAll(String str, int from, int to) {
+        int start = from;
+        while (start < to && isTrimmed(str.charAt(start))) {
+            start++;
+        }
+        int end = to;
+        while (end > start && isTrimmed(str.charAt(end - 1))) {
+            end--;
+        }
+        int nbsp = str.indexOf(NON_BREAKING_SPACE, start);
+        if (nbsp < 0 || nbsp >= end)
+            return str.substring(start, end);
+
+        StringBuilder sb = new StringBuilder(end - start);
+        appendTrimAll(str, start, end, sb);
+        return sb.toString();
+    }
+
+    /**
+     * Appends the string like trimAll(str) without creating a string.
+     */
+    public static void appendTrimAll(CharSequence str, StringBuilder sb) {
+        int start = trimAllStart(str);
+        appendTrimAll(str, start, trimAllEnd(str, start), sb);
+    }
+
+    private static void appendTrimAll(CharSequence str, int start, int end, StringBuilder sb) {
+        for (int i = start; i < end; i++) {
+            char c = str.charAt(i);
+            sb.append(c == NON_BREAKING_SPACE ? ' ' : c);
         }
     }
 
+    private static int trimAllStart(CharSequence str) {
+        int start = 0;
+        while (start < str.length() && isTrimmed(str.charAt(start))) {
+            start++;
+        }
+        return start;
+    }
+
+    private static int trimAllEnd(CharSequence str, int start) {
+        int end = str.length();
+        while (end > start && isTrimmed(str.charAt(end - 1))) {
+            end--;
+        }
+        return end;
+    }
+
+    private static boolean isTrimmed(char c) {
+        return c <= ' ' || c == NON_BREAKING_SPACE;
+    }
+
     /**
      * remove more than two spaces or newlines
      */
     public static String innerTrim(String str) {
-        if (str.isEmpty())
-            return "";
+        if (isInnerTrimmed(str))
+            return str;
 
-        final StringBuilder sb = new StringBuilder();
+        StringBuilder sb = new StringBuilder(str.length());
+        appendInnerTrim(str, sb);
+        return sb.toString();
+    }
+
+    /**
+     * Same as innerTrim(str.toString()) without copying a StringBuilder first.
+     */
+    public static String innerTrim(CharSequence str) {
+        StringBuilder sb = new StringBuilder(str.length());
+        appendInnerTrim(str, sb);
+        return sb.toString();
+    }
+
+    /**
+     * Appends the string like innerTrim(str) without creating a string.
+     */
+    public static void appendInnerTrim(CharSequence str, StringBuilder sb) {
+        int start = sb.length();
         boolean previousSpace = false;
         for (int i = 0; i < str.length(); i++) {
             final char c = str.charAt(i);
-            if (c == ' ' || c == 9 || c == '\n' || c == 160) {
+            if (isInnerSpace(c)) {
                 previousSpace = true;
                 continue;
             }
@@ -109,7 +265,45 @@ public class SHelper {
             previousSpace = false;
             sb.append(c);
         }
-        return sb.toString().trim();
+
+        // same as String.trim() on the appended part
+        int end = sb.length();
+        while (end > start && sb.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        sb.setLength(end);
+        int first = start;
+        while (first < end && sb.charAt(first) <= ' ') {
+            first++;
+        }
+        if (first > start)
+            sb.delete(start, first);
+    }
+
+    private static boolean isInnerSpace(char c) {
+        return c == ' ' || c == 9 || c == '\n' || c == NON_BREAKING_SPACE;
+    }
+
+    /**
+     * @return true if innerTrim would return the same string
+     */
+    private static boolean isInnerTrimmed(String str) {
+        int len = str.length();
+        if (len == 0)
+            return true;
+        if (str.charAt(0) <= ' ' || str.charAt(len - 1) <= ' '
+                || str.charAt(0) == NON_BREAKING_SPACE || str.charAt(len - 1) == NON_BREAKING_SPACE)
+            return false;
+
+        for (int i = 1; i < len - 1; i++) {
+            char c = str.charAt(i);
+            if (c == ' ') {
+                if (isInnerSpace(str.charAt(i + 1)))
+                    return false;
+            } else if (isInnerSpace(c))
+                return false;
+        }
+        return true;
     }
 
     /**
@@ -145,32 +339,49 @@ public class SHelper {
     }
 
     public static int[] longestSubstring(String str1, String str2) {
+        return longestSubstring(str1, str2, Long.MAX_VALUE);
+    }
+
+    /**
+     * Same as longestSubstring(str1, str2) but gives up if the strings are
+     * too long: the time is proportional to str1.length() * str2.length().
+     *
+     * @param maxCells the maximum of str1.length() * str2.length()
+     * @return the begin and end index of the longest substring in str1 or
+     * null if a string is empty or the product of the lengths exceeds maxCells
+     */
+    public static int[] longestSubstring(String str1, String str2, long maxCells) {
         if (str1 == null || str1.isEmpty() || str2 == null || str2.isEmpty())
             return null;
+        if ((long) str1.length() * str2.length() > maxCells)
+            return null;
 
         // dynamic programming => save already identical length into array
-        // to understand this algo simply print identical length in every entry of the array
-        // i+1, j+1 then reuses information from i,j
+        // num[j] is the length of the common suffix of str1[0..i] and str2[0..j].
+        // Only the previous row is needed, so one row is updated from right to
+        // left to read num[j - 1] of the previous row before it is overwritten.
         // java initializes them already with 0
-        int[][] num = new int[str1.length()][str2.length()];
+        int len2 = str2.length();
+        int[] num = new int[len2];
         int maxlen = 0;
         int lastSubstrBegin = 0;
         int endIndex = 0;
         for (int i = 0; i < str1.length(); i++) {
-            for (int j = 0; j < str2.length(); j++) {
-                if (str1.charAt(i) == str2.charAt(j)) {
-                    if ((i == 0) || (j == 0))
-                        num[i][j] = 1;
-                    else
-                        num[i][j] = 1 + num[i - 1][j - 1];
-
-                    if (num[i][j] > maxlen) {
-                        maxlen = num[i][j];
+            char c = str1.charAt(i);
+            for (int j = len2 - 1; j >= 0; j--) {
+                if (c == str2.charAt(j)) {
+                    int len = j == 0 ? 1 : 1 + num[j - 1];
+                    num[j] = len;
+                    // the result only depends on i and the length, so the
+                    // order of j does not matter
+                    if (len > maxlen) {
+                        maxlen = len;
                         // generate substring from str1 => i
-                        lastSubstrBegin = i - num[i][j] + 1;
+                        lastSubstrBegin = i - len + 1;
                         endIndex = i + 1;
                     }
-                }
+                } else
+                    num[j] = 0;
             }
         }
         return new int[]{lastSubstrBegin, endIndex};
@@ -463,7 +674,19 @@ public class SHelper {
         }
     }
 
+    /**
+     * @return the index of the body start tag (case insensitive) or -1. A body
+     * tag in a comment, an attribute or a script and the like is skipped.
+     */
+    public static int indexOfBody(String html) {
+        return new BodyTagFinder().find(html, html.length());
+    }
+
     public static int countLetters(String str) {
+        return countLetters((CharSequence) str);
+    }
+
+    public static int countLetters(CharSequence str) {
         int len = str.length();
         int chars = 0;
         for (int i = 0; i < len; i++) {
@@ -0,0 +1,53 @@
+package de.jetwick.snacktory;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * An unmodifiable list of texts which are stored as ranges of one text,
+ * e.g. the texts of the paragraphs within the text of the article. An entry
+ * is trimmed like SHelper.trimAll and only created when it is requested.
+ */
+public final class TextList extends AbstractList<String> implements RandomAccess, Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private final String text;
+    // start and end of every entry
+    private final int[] bounds;
+
+    /**
+     * @param bounds the start (inclusive) and end (exclusive) index of every
+     * entry in text
+     */
+    public TextList(String text, int[] bounds) {
+        if (bounds.length % 2 != 0)
+            throw new IllegalArgumentException("start and end needed for every entry but was " + bounds.length);
+        for (int i = 0; i < bounds.length; i += 2) {
+            if (bounds[i] < 0 || bounds[i] > bounds[i + 1] || bounds[i + 1] > text.length())
+                throw new IllegalArgumentException("invalid range " + bounds[i] + "-" + bounds[i + 1]
+                        + " for text length " + text.length());
+        }
+        this.text = text;
+        this.bounds = bounds.clone();
+    }
+
+    @Override
+    public String get(int index) {
+        if (index < 0 || index >= size())
+            throw new IndexOutOfBoundsException("index " + index + " size " + size());
+        return SHelper.trimAll(text, bounds[2 * index], bounds[2 * index + 1]);
+    }
+
+    @Override
+    public int size() {
+        return bounds.length / 2;
+    }
+
+    /**
+     * @return the text all entries are taken from
+     */
+    public String getText() {
+        return text;
+    }
+}
@@ -0,0 +1,357 @@
+package de.jetwick.snacktory;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import org.jsoup.Jsoup;
+import org.jsoup.parser.Parser;
+import org.jsoup.parser.Tag;
+
+/**
+ * Computes the same text as Jsoup.parse(html).text() directly on the
+ * characters: tags and comments are skipped, entities are decoded and the
+ * whitespace is normalized like in Element.text, without building a DOM.
+ *
+ * The tags are tokenized like jsoup does it, but only tags which can't
+ * change the order or the spacing of the text are supported: br, the inline
+ * phrasing tags like span or b and unknown tags. For everything else, e.g.
+ * block tags, head elements, script, doctype or cdata, the string is parsed
+ * with jsoup instead.
+ *
+ * This class is thread safe.
+ */
+public final class TextSanitizer {
+
+    // inline tags without a special treatment in the tree builder (besides the adoption agency)
+    private static final Set<String> INLINE_TAGS = new HashSet<String>(Arrays.asList("a", "abbr", "acronym",
+            "b", "bdi", "bdo", "big", "cite", "code", "data", "dfn", "em", "font", "i", "kbd", "label", "mark",
+            "q", "s", "samp", "small", "span", "strike", "strong", "sub", "sup", "time", "tt", "u", "var"));
+    // unknown to jsoup's Tag but treated specially by the tree builder
+    private static final Set<String> SPECIAL_UNKNOWN_TAGS = new HashSet<String>(Arrays.asList("action",
+            "applet", "dir", "hidden", "href", "image", "isindex", "listing", "marquee", "name", "nobr",
+            "noembed", "prompt", "sarcasm", "type", "xmp"));
+    // states of the attribute tokenizer
+    private static final int BEFORE_NAME = 0;
+    private static final int NAME = 1;
+    private static final int AFTER_NAME = 2;
+    private static final int BEFORE_VALUE = 3;
+    private static final int DOUBLE_QUOTED = 4;
+    private static final int SINGLE_QUOTED = 5;
+    private static final int UNQUOTED = 6;
+    private static final int AFTER_QUOTED = 7;
+    private static final int SELF_CLOSING = 8;
+    // states of the comment tokenizer
+    private static final int COMMENT_START = 0;
+    private static final int COMMENT_START_DASH = 1;
+    private static final int COMMENT = 2;
+    private static final int COMMENT_END_DASH = 3;
+    private static final int COMMENT_END = 4;
+    private static final int COMMENT_END_BANG = 5;
+
+    private TextSanitizer() {
+    }
+
+    /**
+     * @return the text of the html, the same as Jsoup.parse(html).text()
+     */
+    public static String text(String html) {
+        StringBuilder sb = new StringBuilder(html.length());
+        if (!appendText(html, sb))
+            return Jsoup.parse(html).text();
+
+        int start = 0;
+        int end = sb.length();
+        while (start < end && sb.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && sb.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return sb.substring(start, end);
+    }
+
+    /**
+     * Appends the normalized but untrimmed text of the html.
+     *
+     * @return false if the html contains something which is not supported,
+     * then sb is in an undefined state
+     */
+    static boolean appendText(String html, StringBuilder sb) {
+        // jsoup stops at a U+FFFF (its eof character) after markup
+        if (html.indexOf('\0') >= 0 || html.indexOf('\uFFFF') >= 0)
+            return false;
+
+        int len = html.length();
+        int runStart = 0;
+        int i = html.indexOf('<');
+        while (i >= 0 && i + 1 < len) {
+            char next = html.charAt(i + 1);
+            int end;
+            if (next == '!') {
+                if (html.startsWith("--", i + 2))
+                    end = skipComment(html, i + 4);
+                else if (html.regionMatches(true, i + 2, "DOCTYPE", 0, 7) || html.startsWith("[CDATA[", i + 2))
+                    return false;
+                else
+                    end = skipBogusComment(html, i + 2);
+            } else if (next == '?') {
+                end = skipBogusComment(html, i + 1);
+            } else if (next == '/') {
+                if (i + 2 == len) {
+                    // a trailing </ is text
+                    break;
+                }
+                char c = html.charAt(i + 2);
+                if (c == '>')
+                    end = i + 3;
+                else if (isLetter(c)) {
+                    end = appendTag(html, i + 2, sb, runStart, i);
+                    if (end < 0)
+                        return false;
+                    runStart = end;
+                    i = html.indexOf('<', end);
+                    continue;
+                } else
+                    end = skipBogusComment(html, i + 2);
+            } else if (isLetter(next)) {
+                end = appendTag(html, i + 1, sb, runStart, i);
+                if (end < 0)
+                    return false;
+                runStart = end;
+                i = html.indexOf('<', end);
+                continue;
+            } else {
+                // a < without a tag is text
+                i = html.indexOf('<', i + 1);
+                continue;
+            }
+
+            appendRun(html, runStart, i, sb);
+            runStart = end;
+            i = html.indexOf('<', end);
+        }
+        appendRun(html, runStart, len, sb);
+        return true;
+    }
+
+    /**
+     * Appends the text before the tag and the effect of the tag itself.
+     *
+     * @return the index after the tag or -1 if the tag is not supported
+     */
+    private static int appendTag(String html, int nameStart, StringBuilder sb, int runStart, int tagStart) {
+        int len = html.length();
+        int nameEnd = nameStart;
+        while (nameEnd < len && !isTagNameEnd(html.charAt(nameEnd))) {
+            nameEnd++;
+        }
+        // control characters at the end are trimmed from the element's tag
+        // but not from the name the tree builder uses
+        if (html.charAt(nameEnd - 1) <= ' ')
+            return -1;
+
+        String name = html.substring(nameStart, nameEnd).toLowerCase(Locale.ENGLISH);
+        boolean br = "br".equals(name);
+        if (!br && !INLINE_TAGS.contains(name) && (Tag.isKnownTag(name) || SPECIAL_UNKNOWN_TAGS.contains(name)))
+            return -1;
+
+        appendRun(html, runStart, tagStart, sb);
+        // a br (even </br>) is the only supported tag which adds a space
+        if (br && sb.length() > 0 && sb.charAt(sb.length() - 1) != ' ')
+            sb.append(' ');
+        return skipAttributes(html, nameEnd);
+    }
+
+    /**
+     * @return the index after the tag, the attributes are tokenized like the
+     * jsoup Tokeniser does it to find the right end of the tag
+     */
+    private static int skipAttributes(String html, int i) {
+        int len = html.length();
+        if (i == len)
+            return len;
+
+        char first = html.charAt(i);
+        if (first == '<')
+            return i;
+        if (first == '>')
+            return i + 1;
+
+        int state = first == '/' ? SELF_CLOSING : BEFORE_NAME;
+        for (i++; i < len; i++) {
+            char c = html.charAt(i);
+            boolean whitespace = isWhitespace(c);
+            switch (state) {
+                case BEFORE_NAME:
+                    if (c == '/')
+                        state = SELF_CLOSING;
+                    else if (c == '<')
+                        return i;
+                    else if (c == '>')
+                        return i + 1;
+                    else if (!whitespace)
+                        state = NAME;
+                    break;
+                case NAME:
+                    if (whitespace)
+                        state = AFTER_NAME;
+                    else if (c == '/')
+                        state = SELF_CLOSING;
+                    else if (c == '=')
+                        state = BEFORE_VALUE;
+                    else if (c == '>')
+                        return i + 1;
+                    break;
+                case AFTER_NAME:
+                    if (c == '/')
+                        state = SELF_CLOSING;
+                    else if (c == '=')
+                        state = BEFORE_VALUE;
+                    else if (c == '>')
+                        return i + 1;
+                    else if (!whitespace)
+                        state = NAME;
+                    break;
+                case BEFORE_VALUE:
+                    if (c == '"')
+                        state = DOUBLE_QUOTED;
+                    else if (c == '\'')
+                        state = SINGLE_QUOTED;
+                    else if (c == '>')
+                        return i + 1;
+                    else if (!whitespace)
+                        state = UNQUOTED;
+                    break;
+                case DOUBLE_QUOTED:
+                    if (c == '"')
+                        state = AFTER_QUOTED;
+                    break;
+                case SINGLE_QUOTED:
+                    if (c == '\'')
+                        state = AFTER_QUOTED;
+                    break;
+                case UNQUOTED:
+                    if (whitespace)
+                        state = BEFORE_NAME;
+                    else if (c == '>')
+                        return i + 1;
+                    break;
+                case AFTER_QUOTED:
+                    if (c == '/')
+                        state = SELF_CLOSING;
+                    else if (c == '>')
+                        return i + 1;
+                    else {
+                        // reconsume the character before the next attribute name
+                        state = BEFORE_NAME;
+                        if (!whitespace)
+                            i--;
+                    }
+                    break;
+                case SELF_CLOSING:
+                    if (c == '>')
+                        return i + 1;
+                    state = BEFORE_NAME;
+                    i--;
+                    break;
+            }
+        }
+        // jsoup drops an unfinished tag and everything after it
+        return len;
+    }
+
+    /**
+     * @param i the index after &lt;!--
+     * @return the index after the comment
+     */
+    private static int skipComment(String html, int i) {
+        int len = html.length();
+        int state = COMMENT_START;
+        for (; i < len; i++) {
+            char c = html.charAt(i);
+            switch (state) {
+                case COMMENT_START:
+                case COMMENT_START_DASH:
+                    if (c == '-')
+                        state = COMMENT_START_DASH;
+                    else if (c == '>')
+                        return i + 1;
+                    else
+                        state = COMMENT;
+                    break;
+                case COMMENT:
+                    if (c == '-')
+                        state = COMMENT_END_DASH;
+                    break;
+                case COMMENT_END_DASH:
+                    state = c == '-' ? COMMENT_END : COMMENT;
+                    break;
+                case COMMENT_END:
+                    if (c == '>')
+                        return i + 1;
+                    else if (c == '!')
+                        state = COMMENT_END_BANG;
+                    else if (c != '-')
+                        state = COMMENT;
+                    break;
+                case COMMENT_END_BANG:
+                    if (c == '>')
+                        return i + 1;
+                    state = c == '-' ? COMMENT_END_DASH : COMMENT;
+                    break;
+            }
+        }
+        return len;
+    }
+
+    private static int skipBogusComment(String html, int i) {
+        int end = html.indexOf('>', i);
+        return end < 0 ? html.length() : end + 1;
+    }
+
+    /**
+     * Decodes the entities of the text between two tags and appends it with
+     * normalized whitespace.
+     */
+    private static void appendRun(String html, int start, int end, StringBuilder sb) {
+        if (start >= end)
+            return;
+
+        int amp = html.indexOf('&', start);
+        if (amp >= 0 && amp < end) {
+            String decoded = Parser.unescapeEntities(html.substring(start, end), false);
+            appendNormalized(decoded, 0, decoded.length(), sb);
+        } else
+            appendNormalized(html, start, end, sb);
+    }
+
+    /**
+     * Same as StringUtil.appendNormalisedWhitespace, where leading whitespace
+     * is stripped if sb already ends with a space
+     */
+    private static void appendNormalized(String str, int start, int end, StringBuilder sb) {
+        for (int i = start; i < end; i++) {
+            char c = str.charAt(i);
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\f' || c == '\r' || c == 160) {
+                if (sb.length() == 0 || sb.charAt(sb.length() - 1) != ' ')
+                    sb.append(' ');
+            } else if (c != 8203 && c != 173) {
+                // zero width space and soft hyphen are invisible
+                sb.append(c);
+            }
+        }
+    }
+
+    private static boolean isTagNameEnd(char c) {
+        return isWhitespace(c) || c == '/' || c == '>' || c == '<';
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\f' || c == '\r';
+    }
+
+    private static boolean isLetter(char c) {
+        return c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || Character.isLetter(c);
+    }
+}
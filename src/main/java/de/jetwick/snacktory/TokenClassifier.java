@@ -0,0 +1,249 @@
+package de.jetwick.snacktory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Classifies attribute values like class names and ids against a list of
+ * patterns. The result is a bitmask where bit i is set if
+ * patterns[i].matcher(str).find() is true. The patterns are matched with a
+ * MultiPatternMatcher, so all of them need only one pass.
+ *
+ * The value is split at whitespace and the flags of every token are cached,
+ * so classifying an element is mostly a few hash lookups. This is only
+ * exact if a pattern can never match whitespace, so the source of each
+ * pattern is checked: patterns with e.g. '.', '\s', negated classes or
+ * lookarounds are matched against the whole value instead, which is cached
+ * as well. A token is classified in the four positions it can have in the
+ * value (first, last, both or in between) because of the anchors ^ and $.
+ * Values with the line terminators U+0085, U+2028 or U+2029 are matched as
+ * a whole too, because $ matches before them only if they end the value.
+ *
+ * This class is thread safe.
+ */
+public class TokenClassifier {
+
+    public static final int DEFAULT_CACHE_SIZE = 10000;
+    // token positions, ^ can only match at the start and $ only at the end of the value
+    private static final int INNER = 0;
+    private static final int FIRST = 1;
+    private static final int LAST = 2;
+    private static final int ONLY = 3;
+    private static final int MAX_TOKEN_LENGTH = 256;
+    private final Pattern[] patterns;
+    private final MultiPatternMatcher matcher;
+    // the bits of the patterns which can be applied to every token on its own
+    private final int tokenMask;
+    private final int maxCacheSize;
+    // per token: bit 4 * i + position is set if pattern i matches the token at that position
+    private final Map<String, Integer> tokens = new ConcurrentHashMap<String, Integer>();
+    // per value: the result of the patterns which are not in tokenMask, or of all
+    // patterns if the value has a line terminator which is no separator
+    private final Map<String, Integer> values = new ConcurrentHashMap<String, Integer>();
+
+    public TokenClassifier(Pattern... patterns) {
+        this(DEFAULT_CACHE_SIZE, patterns);
+    }
+
+    public TokenClassifier(int maxCacheSize, Pattern... patterns) {
+        if (patterns.length > 8)
+            throw new IllegalArgumentException("At most 8 patterns are supported but was " + patterns.length);
+
+        this.patterns = patterns.clone();
+        this.matcher = new MultiPatternMatcher(patterns);
+        this.maxCacheSize = maxCacheSize;
+        int mask = 0;
+        for (int i = 0; i < patterns.length; i++) {
+            if (isTokenPattern(patterns[i]))
+                mask |= 1 << i;
+        }
+        tokenMask = mask;
+    }
+
+    /**
+     * @return the bitmask of the patterns which are found in the string
+     */
+    public int classify(String str) {
+        int all = (1 << patterns.length) - 1;
+        if (hasUnicodeLineTerminator(str))
+            return classifyValue(str, all);
+
+        int res = 0;
+        if (tokenMask != all)
+            res = classifyValue(str, ~tokenMask & all);
+
+        if (tokenMask == 0)
+            return res;
+
+        int len = str.length();
+        int start = 0;
+        while (start < len && isSeparator(str.charAt(start))) {
+            start++;
+        }
+        while (start < len) {
+            int end = start + 1;
+            while (end < len && !isSeparator(str.charAt(end))) {
+                end++;
+            }
+            int next = end;
+            while (next < len && isSeparator(str.charAt(next))) {
+                next++;
+            }
+
+            int position = INNER;
+            if (start == 0)
+                position |= FIRST;
+            if (end == len || isFinalLineTerminator(str, end))
+                position |= LAST;
+
+            String token = start == 0 && end == len ? str : str.substring(start, end);
+            int flags = getTokenFlags(token);
+            for (int i = 0; i < patterns.length; i++) {
+                if ((flags >>> (4 * i + position) & 1) != 0)
+                    res |= 1 << i;
+            }
+            start = next;
+        }
+        return res;
+    }
+
+    /**
+     * @return true if pattern i is found in the string
+     */
+    public boolean find(int i, String str) {
+        return (classify(str) & 1 << i) != 0;
+    }
+
+    /**
+     * @param mask the patterns to match, always the same for the same value
+     */
+    private int classifyValue(String str, int mask) {
+        Integer cached = values.get(str);
+        if (cached != null)
+            return cached;
+
+        int res = matcher.find(str, mask);
+        put(values, str, res);
+        return res;
+    }
+
+    private int getTokenFlags(String token) {
+        Integer cached = tokens.get(token);
+        if (cached != null)
+            return cached;
+
+        int flags = 0;
+        String inner = " " + token + " ";
+        String[] contexts = {inner, token + " ", " " + token, token};
+        for (int position = INNER; position <= ONLY; position++) {
+            int found = matcher.find(contexts[position], tokenMask);
+            for (int i = 0; i < patterns.length; i++) {
+                if ((found & 1 << i) != 0)
+                    flags |= 1 << (4 * i + position);
+            }
+        }
+        put(tokens, token, flags);
+        return flags;
+    }
+
+    private void put(Map<String, Integer> cache, String key, int value) {
+        if (key.length() > MAX_TOKEN_LENGTH)
+            return;
+        // a simple bound: the cache is refilled with the frequent values quickly
+        if (cache.size() >= maxCacheSize)
+            cache.clear();
+        cache.put(key, value);
+    }
+
+    int getCacheSize() {
+        return tokens.size() + values.size();
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == ' ' || c >= '\t' && c <= '\r';
+    }
+
+    /**
+     * @return true if the string contains a line terminator which is no
+     * separator, a token which ends with it is no token at the end of the value
+     */
+    private static boolean hasUnicodeLineTerminator(String str) {
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c == '\u0085' || c == '\u2028' || c == '\u2029')
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * $ matches at the end and before a line terminator at the end
+     */
+    private static boolean isFinalLineTerminator(String str, int index) {
+        int rest = str.length() - index;
+        if (rest == 1)
+            return str.charAt(index) == '\n' || str.charAt(index) == '\r';
+        return rest == 2 && str.charAt(index) == '\r' && str.charAt(index + 1) == '\n';
+    }
+
+    /**
+     * @return true if the pattern can only match non-whitespace characters,
+     * so every match is inside of a single token
+     */
+    static boolean isTokenPattern(Pattern pattern) {
+        if (pattern.flags() != 0)
+            return false;
+        // an empty match could be between two tokens
+        if (pattern.matcher("").find() || pattern.matcher(" ").find())
+            return false;
+
+        String regex = pattern.pattern();
+        boolean inClass = false;
+        int len = regex.length();
+        for (int i = 0; i < len; i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (++i == len)
+                    return false;
+                char escaped = regex.charAt(i);
+                if (Character.isLetterOrDigit(escaped)) {
+                    // only \d, \w, \S and outside of classes the word boundaries
+                    if ("dwS".indexOf(escaped) < 0 && (inClass || "bB".indexOf(escaped) < 0))
+                        return false;
+                } else if (isSeparator(escaped) || inClass && isRangeStart(regex, i))
+                    return false;
+            } else if (inClass) {
+                if (c == ']')
+                    inClass = false;
+                else if (c == '[' || c == '&')
+                    return false;
+                else if (isSeparator(c))
+                    return false;
+                else if (isRangeStart(regex, i)) {
+                    char to = regex.charAt(i + 2);
+                    if (to == '\\' || to == '[' || c <= ' ' && to >= '\t')
+                        return false;
+                    i += 2;
+                }
+            } else if (c == '[') {
+                if (i + 1 < len && regex.charAt(i + 1) == '^')
+                    return false;
+                inClass = true;
+                // a ] directly after [ is a literal
+                if (i + 1 < len && regex.charAt(i + 1) == ']')
+                    i++;
+            } else if (c == '.' || isSeparator(c)) {
+                return false;
+            } else if (c == '(' && i + 1 < len && regex.charAt(i + 1) == '?') {
+                // lookarounds, flags and comments
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isRangeStart(String regex, int i) {
+        return i + 2 < regex.length() && regex.charAt(i + 1) == '-' && regex.charAt(i + 2) != ']';
+    }
+}
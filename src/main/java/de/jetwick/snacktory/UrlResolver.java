@@ -0,0 +1,266 @@
+package de.jetwick.snacktory;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves redirects and short links to the url of the page:
+ * <ul>
+ * <li>wrappers like google.com/url?q=... or facebook.com/l.php?u=... are
+ * unwrapped without a request</li>
+ * <li>every hop of a redirect chain is cached with the final url until the
+ * ttl expires</li>
+ * <li>other urls are resolved with HEAD requests, concurrent lookups of the
+ * same url share one chain of requests</li>
+ * </ul>
+ *
+ * This class is thread safe.
+ */
+public class UrlResolver {
+
+    private static final Logger logger = LoggerFactory.getLogger(UrlResolver.class);
+    // services which only redirect, without www.
+    private static final Set<String> SHORTENERS = new HashSet<String>(Arrays.asList("t.co", "bit.ly",
+            "bitly.com", "j.mp", "goo.gl", "ow.ly", "tinyurl.com", "buff.ly", "dlvr.it", "fb.me", "is.gd",
+            "lnkd.in", "trib.al", "amzn.to", "wp.me", "tr.im", "su.pr", "t.ly", "rebrand.ly", "shorturl.at",
+            "cutt.ly", "tiny.cc", "v.gd", "bit.do", "ift.tt", "po.st", "feedproxy.google.com"));
+    // host, path and the parameter with the target of the known wrappers
+    private static final String[][] WRAPPERS = {
+        {"google.", "/url", "q", "url"},
+        {"facebook.com", "/l.php", "u"},
+        {"l.facebook.com", "/l.php", "u"},
+        {"lm.facebook.com", "/l.php", "u"},
+        {"youtube.com", "/redirect", "q"},
+        {"l.instagram.com", "/", "u"},
+        {"t.umblr.com", "/redirect", "z"},
+        {"linkedin.com", "/redir/redirect", "url"},
+        {"out.reddit.com", "/", "url"},
+        {"slack-redir.net", "/link", "url"}
+    };
+    private final HttpClient client;
+    private final Map<String, Entry> cache = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > maxEntries;
+        }
+    };
+    private final ConcurrentHashMap<String, CompletableFuture<String>> lookups
+            = new ConcurrentHashMap<String, CompletableFuture<String>>();
+    private long ttl = 24 * 60 * 60 * 1000L;
+    private int maxEntries = 10000;
+    private int maxRedirects = 5;
+    private String userAgent;
+
+    /**
+     * @param client the client for the HEAD requests, it must not follow
+     * redirects
+     */
+    public UrlResolver(HttpClient client) {
+        this.client = client;
+    }
+
+    /**
+     * @param ttl the time in milliseconds a resolved url is cached
+     */
+    public UrlResolver setTtl(long ttl) {
+        this.ttl = ttl;
+        return this;
+    }
+
+    public UrlResolver setMaxEntries(int maxEntries) {
+        synchronized (cache) {
+            this.maxEntries = maxEntries;
+        }
+        return this;
+    }
+
+    public UrlResolver setMaxRedirects(int maxRedirects) {
+        this.maxRedirects = maxRedirects;
+        return this;
+    }
+
+    public UrlResolver setUserAgent(String userAgent) {
+        this.userAgent = userAgent;
+        return this;
+    }
+
+    /**
+     * @return true if the url is from a service which only redirects, e.g.
+     * t.co or bit.ly
+     */
+    public static boolean isShortLink(String url) {
+        return SHORTENERS.contains(SHelper.extractDomain(url, true));
+    }
+
+    /**
+     * Unwraps the url of known redirect wrappers like google.com/url?q=...,
+     * also nested ones, without a request.
+     *
+     * @return the wrapped url or the url itself
+     */
+    public static String unwrap(String url) {
+        for (int i = 0; i < 5; i++) {
+            String target = unwrapOnce(url);
+            if (target == null)
+                break;
+            url = target;
+        }
+        return url;
+    }
+
+    private static String unwrapOnce(String url) {
+        int hostStart = url.indexOf("://");
+        if (hostStart < 0)
+            return null;
+        hostStart += 3;
+        int query = url.indexOf('?', hostStart);
+        if (query < 0)
+            return null;
+        int pathStart = url.indexOf('/', hostStart);
+        if (pathStart < 0 || pathStart > query)
+            pathStart = query;
+
+        String host = url.substring(hostStart, pathStart).toLowerCase();
+        if (host.startsWith("www."))
+            host = host.substring(4);
+        String path = pathStart == query ? "/" : url.substring(pathStart, query);
+        for (String[] wrapper : WRAPPERS) {
+            boolean hostMatches = wrapper[0].endsWith(".") ? host.startsWith(wrapper[0]) : host.equals(wrapper[0]);
+            if (!hostMatches || !path.equals(wrapper[1]))
+                continue;
+
+            for (String param : url.substring(query + 1).split("&")) {
+                for (int i = 2; i < wrapper.length; i++) {
+                    if (param.startsWith(wrapper[i] + "=")) {
+                        String target = SHelper.urlDecode(param.substring(wrapper[i].length() + 1));
+                        if (target.startsWith("http://") || target.startsWith("https://"))
+                            return target;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the cached final url or null if the url is unknown or expired
+     */
+    public String getCached(String url) {
+        synchronized (cache) {
+            Entry entry = cache.get(url);
+            if (entry == null)
+                return null;
+            if (entry.expires < System.currentTimeMillis()) {
+                cache.remove(url);
+                return null;
+            }
+            return entry.url;
+        }
+    }
+
+    /**
+     * Caches that url redirects to finalUrl.
+     */
+    public void put(String url, String finalUrl) {
+        Entry entry = new Entry(finalUrl, System.currentTimeMillis() + ttl);
+        synchronized (cache) {
+            cache.put(url, entry);
+        }
+    }
+
+    public int getSize() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    /**
+     * Unwraps the url and follows its redirects with HEAD requests, if it is
+     * not cached.
+     *
+     * @return the final url, or the unwrapped url if a request fails
+     */
+    public CompletableFuture<String> resolve(String url, int timeout) {
+        url = unwrap(url);
+        String cached = getCached(url);
+        if (cached != null)
+            return CompletableFuture.completedFuture(cached);
+
+        final CompletableFuture<String> future = new CompletableFuture<String>();
+        CompletableFuture<String> existing = lookups.putIfAbsent(url, future);
+        if (existing != null)
+            return existing;
+
+        final String start = url;
+        final List<String> hops = new ArrayList<String>();
+        URI uri;
+        try {
+            uri = URI.create(SHelper.replaceSpaces(url));
+        } catch (IllegalArgumentException ex) {
+            lookups.remove(start, future);
+            future.complete(url);
+            return future;
+        }
+        follow(uri, timeout, maxRedirects, hops).whenComplete((finalUrl, ex) -> {
+            if (ex != null) {
+                logger.info("Cannot resolve " + start + " " + ex);
+                finalUrl = start;
+            } else {
+                for (String hop : hops) {
+                    put(hop, finalUrl);
+                }
+            }
+            lookups.remove(start, future);
+            future.complete(finalUrl);
+        });
+        return future;
+    }
+
+    /**
+     * Adds every url with a redirect to hops.
+     */
+    private CompletableFuture<String> follow(URI uri, int timeout, int redirects, List<String> hops) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri).timeout(Duration.ofMillis(timeout)).
+                method("HEAD", HttpRequest.BodyPublishers.noBody());
+        if (userAgent != null)
+            builder.header("User-Agent", userAgent);
+        return client.sendAsync(builder.build(), HttpResponse.BodyHandlers.discarding()).thenCompose(response -> {
+            int status = response.statusCode();
+            String location = response.headers().firstValue("Location").orElse(null);
+            if (status < 300 || status >= 400 || status == 304 || location == null || redirects <= 0)
+                return CompletableFuture.completedFuture(uri.toString());
+
+            hops.add(uri.toString());
+            String next = unwrap(uri.resolve(SHelper.replaceSpaces(location)).toString());
+            String cached = getCached(next);
+            if (cached != null)
+                return CompletableFuture.completedFuture(cached);
+            return follow(URI.create(next), timeout, redirects - 1, hops);
+        });
+    }
+
+    private static class Entry {
+
+        final String url;
+        final long expires;
+
+        Entry(String url, long expires) {
+            this.url = url;
+            this.expires = expires;
+        }
+    }
+}
@@ -1,14 +1,22 @@
 package de.jetwick.snacktory;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import static org.junit.Assert.*;
 import static org.hamcrest.CoreMatchers.*;
 
 import org.apache.commons.lang.StringUtils;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
 import org.junit.Before;
 import org.junit.Test;
 import org.slf4j.Logger;
@@ -1156,6 +1164,242 @@ public class ArticleTextExtractorTest {
         assertEquals("Coronavirus live updates: New cases surge in Spain; Olympics organizers agree to a delay", res.getTitle());
     }
 
+    @Test
+    public void testDocumentIsNotModified() throws Exception {
+        Document doc = Jsoup.parse(c.streamToString(getClass().getResourceAsStream("cnn.html")));
+        String html = doc.outerHtml();
+        JResult res = extractor.extractContent(doc);
+        assertTrue("cnn:" + res.getText(), res.getText().startsWith("Tripoli, Libya (CNN) -- As rebel and pro-government forces in Libya maneuvered on the battlefield Wedn"));
+        assertEquals(html, doc.outerHtml());
+
+        // the document can be extracted again with the same result
+        assertEquals(res.getText(), extractor.extractContent(doc).getText());
+    }
+
+    @Test
+    public void testFallbackWithScriptsUsesSameDocument() throws Exception {
+        String text = "This text is only available for clients without javascript and "
+                + "therefore only found when the noscript nodes are not skipped.";
+        Document doc = Jsoup.parse("<html><body><div><noscript><p>" + text
+                + "</p></noscript></div></body></html>");
+        String html = doc.outerHtml();
+        JResult res = extractor.extractContent(doc);
+        assertEquals(text, res.getText());
+        assertEquals(html, doc.outerHtml());
+    }
+
+    @Test
+    public void testMetadataIndex() throws Exception {
+        Document doc = Jsoup.parse("<html lang='de-DE'><head><title>Page title</title>"
+                + "<meta property='og:title'><meta property=' OG:Title ' content='Og title'>"
+                + "<link rel='shortcut icon' href='/fav.ico'></head><body>"
+                + "<meta property='og:description' content='not in head'>"
+                + "<meta name='ptime' content='20120214'>"
+                + "<span itemprop='datePublished'>Feb 13, 2012</span></body></html>");
+        MetadataIndex meta = new MetadataIndex(doc);
+        assertEquals(doc.select("head meta[property=og:title]").attr("content"), meta.getHeadMeta("property", "og:title"));
+        assertEquals("Og title", meta.getHeadMeta("property", "og:title"));
+        assertEquals("", meta.getHeadMeta("property", "og:description"));
+        assertEquals("not in head", meta.getMeta("property", "og:description"));
+        assertEquals(doc.select("meta[name=ptime]").first(), meta.first("name", "ptime", "meta"));
+        assertEquals(doc.select("meta[itemprop=datePublished], span[itemprop=datePublished]").first(),
+                meta.first("itemprop", "datePublished", "meta", "span"));
+        assertEquals(doc.title(), meta.getTitle());
+        assertEquals("de", extractor.extractLanguage(meta));
+        assertEquals("/fav.ico", extractor.extractFaviconUrl(meta));
+    }
+
+    @Test
+    public void testAuthorDescriptionWithSelectorCharacters() throws Exception {
+        Document doc = Jsoup.parse("<html><body><p class='author'>John (Doe) [Staff]</p>"
+                + "<div class='bio'>John (Doe) [Staff] writes about science and technology.</div>"
+                + "<p>JOHN (DOE) [STAFF]</p></body></html>");
+        MetadataIndex meta = new MetadataIndex(doc);
+        assertEquals(3, meta.getElementsContainingOwnText("John (Doe) [Staff]").size());
+        assertEquals(3, meta.getElementsContainingOwnText("doe").size());
+        assertEquals(3, meta.getElementsContainingOwnText("Do").size());
+        // a single word is looked up as the start of a word
+        assertEquals(0, meta.getElementsContainingOwnText("oe").size());
+        assertEquals(1, meta.getElementsContainingOwnText("writes").size());
+        assertEquals(0, meta.getElementsContainingOwnText("Doe Staff").size());
+        assertEquals("John (Doe) [Staff] writes about science and technology.",
+                extractor.extractAuthorDescription(doc, "John (Doe) [Staff]"));
+    }
+
+    @Test
+    public void testLinkOffsets() throws Exception {
+        String text = "This article has enough text to be the best element of the page. ";
+        Document doc = Jsoup.parse("<html><body><div class='article'>" + text + text
+                + "<a href='http://a.com'>a</a> and <a href='http://a.com'>a</a> again, "
+                + "<a href='http://b.com'><h3>block</h3></a> and <a href='http://c.com'>c</a>"
+                + "<span title='<a href=&quot;http://c.com&quot;>c</a>'>x</span></div></body></html>");
+        JResult res = extractor.extractContent(doc);
+
+        // same offsets as searching the html of every link in the html of the best element
+        Element best = doc.select("div.article").first();
+        String fullhtml = best.toString();
+        List<Map<String, String>> links = res.getLinks();
+        assertEquals(4, links.size());
+        int lastlinkpos = 0;
+        for (int i = 0; i < links.size(); i++) {
+            int linkpos = fullhtml.indexOf(best.select("a[href]").get(i).toString(), lastlinkpos);
+            assertEquals(String.valueOf(linkpos), links.get(i).get("offset"));
+            lastlinkpos = linkpos;
+        }
+        assertEquals(links.get(0).get("offset"), links.get(1).get("offset"));
+    }
+
+    @Test
+    public void testExtractMetadata() throws Exception {
+        String head = "<html><head><title>Page title</title>"
+                + "<meta property='og:description' content='Description'>"
+                + "<meta property='og:site_name' content='Site'>"
+                + "<link rel='canonical' href='http://example.com/article'>"
+                + "<link rel='icon' href='/fav.ico'>";
+        String body = "<body><div><p>" + StringUtils.repeat("Some text of the article. ", 10)
+                + "</p><img src='/image.jpg' width='400' height='300'></div></body></html>";
+
+        JResult res = extractor.extractMetadata(head
+                + "<meta property='og:image' content='http://example.com/og.jpg'></head>" + body);
+        assertEquals("Page title", res.getTitle());
+        assertEquals("Description", res.getDescription());
+        assertEquals("Site", res.getSitename());
+        assertEquals("http://example.com/article", res.getCanonicalUrl());
+        assertEquals("http://example.com/og.jpg", res.getImageUrl());
+        assertEquals("/fav.ico", res.getFaviconUrl());
+        // the body was not extracted
+        assertEquals("", res.getText());
+
+        // without an image in the head the whole html is extracted
+        res = extractor.extractMetadata(head + "</head>" + body);
+        assertEquals("/image.jpg", res.getImageUrl());
+        assertEquals("Description", res.getDescription());
+        assertTrue(res.getText(), res.getText().startsWith("Some text of the article."));
+
+        // unless no image is requested
+        res = extractor.extractMetadata(new JResult(), head + "</head>" + body,
+                ExtractionOptions.DEFAULT.without(ExtractionOptions.IMAGES));
+        assertEquals("", res.getImageUrl());
+        assertEquals("Description", res.getDescription());
+        assertEquals("", res.getText());
+
+        // a body tag in a comment or script doesn't end the head
+        res = extractor.extractMetadata("<html><head><title>Page title</title><!-- <body class='old'> -->"
+                + "<script>document.write('<body>');</script>"
+                + "<meta property='og:image' content='http://example.com/og.jpg'></head>" + body);
+        assertEquals("http://example.com/og.jpg", res.getImageUrl());
+        assertEquals("", res.getText());
+    }
+
+    @Test
+    public void testExtractionOptions() throws Exception {
+        String html = c.streamToString(getClass().getResourceAsStream("cnn.html"));
+        JResult all = extractor.extractContent(html);
+        JResult res = extractor.extractContent(new JResult(), html, ExtractionOptions.TEXT_ONLY);
+        assertEquals(all.getTitle(), res.getTitle());
+        assertEquals(all.getText(), res.getText());
+        assertFalse(all.getLinks().isEmpty());
+        assertTrue(res.getLinks().isEmpty());
+        assertFalse(all.getTextList().isEmpty());
+        assertTrue(res.getTextList().isEmpty());
+        assertEquals("", res.getImageUrl());
+        assertEquals("", res.getFaviconUrl());
+        assertTrue(res.getKeywords().isEmpty());
+
+        ExtractionOptions options = ExtractionOptions.TEXT_ONLY.with(ExtractionOptions.LINKS);
+        res = extractor.extractContent(new JResult(), html, options);
+        assertEquals(all.getLinks(), res.getLinks());
+        assertTrue(res.getTextList().isEmpty());
+
+        assertEquals(ExtractionOptions.DEFAULT, ExtractionOptions.of(true, true, true, 0));
+        assertEquals(ExtractionOptions.DEFAULT.without(ExtractionOptions.IMAGES | ExtractionOptions.DATE),
+                ExtractionOptions.of(false, true, false, 0));
+        assertFalse(options.has(ExtractionOptions.LINKS | ExtractionOptions.IMAGES));
+    }
+
+    @Test
+    public void testExtractMetadataFromStream() throws Exception {
+        JResult res = extractor.extractMetadata(new JResult(), getClass().getResourceAsStream("spiegel.html"), null);
+        assertEquals("Retro-PC: Commodore reaktiviert den C64 - SPIEGEL ONLINE - Nachrichten - Netzwelt", res.getTitle());
+        assertTrue(res.getDescription(), res.getDescription().startsWith("Da ist er wieder, der C64: Eigentlich längst"));
+        assertEquals("http://www.spiegel.de/images/image-199746-thumb-hpzw.jpg", res.getImageUrl());
+        assertEquals("", res.getText());
+
+        // the fallback resolves the links with the url of the result
+        byte[] bytes = ("<html><head><title>Title</title></head><body><div><p>"
+                + StringUtils.repeat("Some text of the article. ", 10) + "<a href='other.html'>link</a></p>"
+                + "</div></body></html>").getBytes("UTF-8");
+        res = extractor.extractMetadata(new JResult().setUrl("http://example.com/news/"),
+                new ByteArrayInputStream(bytes), null);
+        assertTrue(res.getText(), res.getText().startsWith("Some text of the article."));
+        assertEquals("http://example.com/news/other.html", res.getLinks().get(0).get("url"));
+    }
+
+    @Test
+    public void testExtractMetadataReadError() throws Exception {
+        try {
+            extractor.extractMetadata(new JResult(), failingStream(""), null, ExtractionOptions.DEFAULT);
+            fail("read error in the head");
+        } catch (IOException ex) {
+            assertEquals("connection reset", ex.getMessage());
+        }
+        // no title in the head, so the rest is read for the fallback
+        String html = "<html><head><meta name='description' content='d'></head><body><p>"
+                + StringUtils.repeat("text ", 2000);
+        try {
+            extractor.extractMetadata(new JResult(), failingStream(html), null, ExtractionOptions.DEFAULT);
+            fail("read error in the body");
+        } catch (IOException ex) {
+            assertEquals("connection reset", ex.getMessage());
+        }
+    }
+
+    private static InputStream failingStream(String start) throws Exception {
+        return new SequenceInputStream(new ByteArrayInputStream(start.getBytes("UTF-8")), new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("connection reset");
+            }
+        });
+    }
+
+    @Test
+    public void testExtractContentFromBytes() throws Exception {
+        String html = new Converter().streamToString(getClass().getResourceAsStream("spiegel.html"));
+        JResult expected = extractor.extractContent(new JResult(), html, ExtractionOptions.DEFAULT);
+        JResult res = extractor.extractContent(new JResult(), getClass().getResourceAsStream("spiegel.html"),
+                null, null, ExtractionOptions.DEFAULT);
+        assertEquals(expected.getTitle(), res.getTitle());
+        assertEquals(expected.getText(), res.getText());
+        assertEquals(expected.getTextList(), res.getTextList());
+
+        byte[] bytes = ("<html><head><meta charset='iso-8859-1'><title>T\u00e4st</title></head><body><div><p>"
+                + "Der erste Absatz mit gen\u00fcgend Text f\u00fcr den Artikel und einen <a href='/link'>Link</a>."
+                + "</p></div></body></html>").getBytes("ISO-8859-1");
+        res = extractor.extractContent(new JResult(), bytes, "UTF-8", "http://example.com/a/", ExtractionOptions.DEFAULT);
+        assertEquals("T\u00e4st", res.getTitle());
+        assertTrue(res.getText(), res.getText().startsWith("Der erste Absatz mit gen\u00fcgend Text"));
+        assertEquals("http://example.com/link", res.getLinks().get(0).get("url"));
+    }
+
+    @Test
+    public void testExtractContentFromLargeBytes() throws Exception {
+        StringBuilder sb = new StringBuilder("<html><head><title>Large</title></head><body><!--");
+        char[] padding = new char[Converter.DEFAULT_MAX_BYTES + 1024];
+        Arrays.fill(padding, 'x');
+        sb.append(padding).append("--><div><p>The paragraph after more than the default maxBytes of a stream, "
+                + "which has enough text for the article.</p></div></body></html>");
+        byte[] bytes = sb.toString().getBytes("UTF-8");
+        sb = null;
+
+        // the array is read completely, a stream only up to maxBytes
+        JResult res = extractor.extractContent(new JResult(), bytes, "UTF-8", null, ExtractionOptions.TEXT_ONLY);
+        assertTrue(res.getText(), res.getText().startsWith("The paragraph after more than"));
+        res = extractor.extractContent(new JResult(), new ByteArrayInputStream(bytes), "UTF-8", null,
+                ExtractionOptions.TEXT_ONLY);
+        assertEquals("", res.getText());
+    }
+
     /**
      * @param filePath the name of the file to open. Not sure if it can accept
      * URLs or just filenames. Path handling could be better, and buffer sizes
@@ -0,0 +1,57 @@
+package de.jetwick.snacktory;
+
+import java.io.UnsupportedEncodingException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CharsetSnifferTest {
+
+    private static CharsetSniffer sniff(String html) throws UnsupportedEncodingException {
+        byte[] bytes = html.getBytes("ISO-8859-1");
+        return CharsetSniffer.sniff(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void testMeta() throws Exception {
+        String html = "<html><head><meta charset=\"Shift_JIS\"><title>x</title>";
+        CharsetSniffer sniffer = sniff(html);
+        assertEquals("shift_jis", sniffer.getCharset());
+        assertEquals(CharsetSniffer.META, sniffer.getSource());
+        assertEquals(12, sniffer.getStart());
+        assertEquals(html.indexOf("<title>"), sniffer.getEnd());
+
+        assertEquals("iso-8859-15", sniff("<META HTTP-EQUIV=Content-Type CONTENT='text/html; Charset=ISO-8859-15'>").getCharset());
+        assertEquals("utf-8", sniff("<meta content=\"text/html; charset = 'utf-8'\" http-equiv=\"content-type\"/>").getCharset());
+        // utf-16 can't be declared in ascii
+        assertEquals("UTF-8", sniff("<meta charset=utf-16le>").getCharset());
+        // no http-equiv, in a comment, in an attribute, unknown or not finished
+        assertNull(sniff("<meta content=\"text/html; charset=utf-8\">"));
+        assertNull(sniff("<!-- <meta charset=\"utf-8\"> -->"));
+        assertNull(sniff("<div title='<meta charset=utf-8>'>"));
+        assertNull(sniff("<script charset='utf-8'></script>"));
+        assertNull(sniff("<meta charset=\"x-unknown\">"));
+        assertNull(sniff("<meta charset=\"utf-8\""));
+        // the first occurence of an attribute counts
+        assertEquals("windows-1252", sniff("<meta charset=windows-1252 charset=utf-8>"
+                + "<meta charset=utf-8>").getCharset());
+        assertEquals("utf-8", sniff("<!--> <meta charset=utf-8>").getCharset());
+    }
+
+    @Test
+    public void testBomAndXmlDeclaration() throws Exception {
+        byte[] bytes = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF, '<', 'p', '>'};
+        CharsetSniffer sniffer = CharsetSniffer.sniff(bytes, 0, bytes.length);
+        assertEquals("UTF-8", sniffer.getCharset());
+        assertEquals(CharsetSniffer.BOM, sniffer.getSource());
+        assertEquals(3, sniffer.getEnd());
+        bytes = new byte[]{(byte) 0xFF, (byte) 0xFE, '<', 0};
+        assertEquals("UTF-16LE", CharsetSniffer.sniff(bytes, 0, bytes.length).getCharset());
+
+        sniffer = sniff("<?xml version=\"1.0\" encoding='GB18030'?><html>");
+        assertEquals("GB18030", sniffer.getCharset());
+        assertEquals(CharsetSniffer.XML, sniffer.getSource());
+        assertEquals(40, sniffer.getEnd());
+        // the meta tag wins
+        assertEquals("utf-8", sniff("<?xml version=\"1.0\" encoding=\"GB18030\"?><meta charset=utf-8>").getCharset());
+    }
+}
@@ -15,6 +15,10 @@
  */
 package de.jetwick.snacktory;
 
+import java.io.ByteArrayInputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
 import junit.framework.TestCase;
 import org.jsoup.Jsoup;
 
@@ -79,4 +83,79 @@ public class ConverterTest extends TestCase {
         assertEquals("Im Gespräch: Umweltaktivist Stewart Brand: Ihr Deutschen steht allein da "
                 + "- Atomdebatte - FAZ.NET", Jsoup.parse(str).select("title").text());
     }
+
+    public void testStreamToHead() throws Exception {
+        Converter d = new Converter();
+        String head = d.streamToHead(getClass().getResourceAsStream("spiegel.html"), null);
+        assertEquals("iso-8859-1", d.getEncoding());
+        assertEquals(-1, SHelper.indexOfBody(head));
+        assertTrue(head.contains("<title>Retro-PC: Commodore reaktiviert den C64"));
+
+        String html = d.streamToString();
+        String expected = new Converter().streamToString(getClass().getResourceAsStream("spiegel.html"));
+        assertEquals(expected, html);
+        assertEquals(head.length(), SHelper.indexOfBody(html));
+    }
+
+    public void testMalformedInput() throws Exception {
+        byte[] bytes = {'<', 'p', '>', 'a', (byte) 0xC3, 'b', (byte) 0xFF, '<', '/', 'p', '>'};
+        assertEquals("<p>a\uFFFDb\uFFFD</p>", new Converter().streamToString(new ByteArrayInputStream(bytes), "UTF-8"));
+        assertEquals("<p>ab</p>", new Converter().setMalformedInputAction(CodingErrorAction.IGNORE).
+                streamToString(new ByteArrayInputStream(bytes), "UTF-8"));
+        assertEquals("", new Converter().setMalformedInputAction(CodingErrorAction.REPORT).
+                streamToString(new ByteArrayInputStream(bytes), "UTF-8"));
+    }
+
+    public void testDecodingReader() throws Exception {
+        String str = "\u00e4 \ud83d\ude00 x";
+        byte[] head = "<p>".getBytes("UTF-8");
+        Reader reader = new Converter.DecodingReader(head, head.length, new ByteArrayInputStream(str.getBytes("UTF-8")),
+                100, Charset.forName("UTF-8").newDecoder(), new byte[2 * Converter.K2], null);
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = reader.read()) >= 0) {
+            sb.append((char) c);
+        }
+        assertEquals("<p>" + str, sb.toString());
+    }
+
+    public void testByteOrderMark() throws Exception {
+        byte[] bytes = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF, '<', 'p', '>', (byte) 0xC3, (byte) 0xA4};
+        Converter d = new Converter();
+        assertEquals("<p>\u00e4", d.streamToString(new ByteArrayInputStream(bytes), "ISO-8859-1"));
+        assertEquals("utf-8", d.getEncoding());
+    }
+
+    public void testContentLength() throws Exception {
+        StringBuilder sb = new StringBuilder("<p>");
+        for (int i = 0; i < 5000; i++) {
+            sb.append("\u00e4\u20ac x ");
+        }
+        String html = sb.toString();
+        byte[] bytes = html.getBytes("UTF-8");
+        // unknown, exact and a wrong content length
+        assertEquals(html, new Converter().streamToString(new ByteArrayInputStream(bytes), "UTF-8"));
+        assertEquals(html, new Converter().setContentLength(bytes.length).
+                streamToString(new ByteArrayInputStream(bytes), "UTF-8"));
+        assertEquals(html, new Converter().setContentLength(100).
+                streamToString(new ByteArrayInputStream(bytes), "UTF-8"));
+    }
+
+    public void testLongHead() throws Exception {
+        StringBuilder sb = new StringBuilder("<html><head><title>t</title><script>");
+        while (sb.length() < 600 * 1024) {
+            sb.append("var x = 1;\n");
+        }
+        String html = sb.append("</script></head><body><p>text</p></body></html>").toString();
+        Converter d = new Converter();
+        assertNull(d.streamToHead(new ByteArrayInputStream(html.getBytes("UTF-8")), "UTF-8"));
+        Reader reader = d.streamToReader();
+        StringBuilder read = new StringBuilder();
+        char[] chars = new char[1000];
+        int n;
+        while ((n = reader.read(chars)) >= 0) {
+            read.append(chars, 0, n);
+        }
+        assertEquals(html, read.toString());
+    }
 }
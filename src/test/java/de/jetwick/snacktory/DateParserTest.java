@@ -0,0 +1,47 @@
+package de.jetwick.snacktory;
+
+import java.util.Date;
+import org.apache.commons.lang.time.DateUtils;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class DateParserTest {
+
+    private final DateParser parser = new DateParser(ArticleTextExtractor.DATE_PATTERNS);
+
+    @Test
+    public void testSameAsDateUtils() {
+        String[] dates = {
+            "2012-02-13T19:01:32GMT-05:00", "2012-02-13T19:01:32PST", "2012-02-13T19:01:32-0800",
+            "2012-02-13T19:01:32Z", "2012-02-13T19:01:32PST x", "2012-02-13 19:01:32",
+            "2012/02/13 19:01:32", "2012-02-13 19:01", "2012/02/13 19:01", "2012-02-13",
+            "2012/02/13", " 2012-02-13", "2012-2-3", "02/13/2012 19:01:32", "02-13-2012 19:01:32",
+            "02/13/2012 19:01", "02-13-2012 19:01", "02/13/2012", "02-13-2012", "13-02-2012",
+            "Mon, Feb 13, 2012", "02/13/2012 07:01:32 PM", "02-13-2012 07:01:32 AM",
+            "02/13/2012 07:01 PM", "02-13-2012 07:01 pm", "2012-02-13 07:01:32 PM",
+            "2012/02/13 07:01:32 PM ", "2012-02-13 07:01 AM", "2012/02/13 07:01 ",
+            "13 Feb 2012", "13 February 2012", "201202131901", "20120213 1901",
+            "13-02-2012 19:01:32", "13/02/2012 19:01:32", "13 Feb 2012 19:01:32",
+            "13 February 2012 19:01:32", "13-02-2012 19:01", "13/02/2012 19:01",
+            "13 Feb 2012 19:01", "13 February 2012 19:01", "20120213190132",
+            "20120213 190132", "20120213", "Feb 13, 2012", "February 13, 2012",
+            "2012-02-30", "2012-13-01", "13/13/2012", "Feb 30, 2012", "", " ", "today",
+            "2012", "12-02-13", "2012-02-13 25:00", "2012-02-13T19:01:32", "1329159692",
+            "Monday, February 13, 2012", "2012-02-13 19:01:32.0", "2012/02/13 19:01:32 PM"
+        };
+        for (String str : dates) {
+            assertEquals(str, parseDateStrictly(str), parser.parse(str));
+        }
+        assertNull(parser.parse(null));
+        assertNotNull(parser.parse("13 Feb 2012 19:01"));
+        assertNotNull(parser.parse("2012-02-13T19:01:32PST"));
+    }
+
+    private static Date parseDateStrictly(String str) {
+        try {
+            return DateUtils.parseDateStrictly(str, ArticleTextExtractor.DATE_PATTERNS);
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+}
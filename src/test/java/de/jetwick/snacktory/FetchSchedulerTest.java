@@ -0,0 +1,158 @@
+package de.jetwick.snacktory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FetchSchedulerTest {
+
+    private final List<String> sent = new ArrayList<String>();
+    private final List<CompletableFuture<JResult>> pending = new ArrayList<CompletableFuture<JResult>>();
+    // completes the requests only when the test says so
+    private final HtmlFetcher fetcher = new HtmlFetcher() {
+        @Override
+        public CompletableFuture<JResult> fetchAndExtractAsync(String url, int timeout, boolean resolve) {
+            CompletableFuture<JResult> future = new CompletableFuture<JResult>();
+            synchronized (sent) {
+                sent.add(url);
+                pending.add(future);
+            }
+            return future;
+        }
+    };
+    private FetchScheduler scheduler;
+
+    @After
+    public void tearDown() {
+        if (scheduler != null)
+            scheduler.shutdown();
+    }
+
+    private void completeFirst() {
+        CompletableFuture<JResult> future;
+        synchronized (sent) {
+            future = pending.remove(0);
+        }
+        future.complete(new JResult());
+    }
+
+    @Test
+    public void testRoundRobinAndLimits() throws Exception {
+        scheduler = new FetchScheduler(fetcher).setRate(0, 1).setMaxActivePerHost(2).setMaxActive(3);
+        List<CompletableFuture<JResult>> futures = new ArrayList<CompletableFuture<JResult>>();
+        for (String url : Arrays.asList("http://a.com/1", "http://a.com/2", "http://www.a.com/3", "http://a.com/4",
+                "http://b.com/1", "http://c.com/1")) {
+            futures.add(scheduler.submit(url, 1000, true));
+        }
+        // a.com gets two, then b.com is next in the ring
+        assertEquals(Arrays.asList("http://a.com/1", "http://a.com/2", "http://b.com/1"), sent);
+        assertEquals(2, scheduler.getStats("a.com").getActive());
+        assertEquals(2, scheduler.getStats("a.com").getQueued());
+        assertEquals(3, scheduler.getQueued());
+
+        // the ring continues after b.com
+        completeFirst();
+        assertTrue(futures.get(0).isDone());
+        assertEquals("http://www.a.com/3", sent.get(3));
+        completeFirst();
+        assertEquals("http://c.com/1", sent.get(4));
+        completeFirst();
+        assertEquals("http://a.com/4", sent.get(5));
+        assertEquals(0, scheduler.getQueued());
+        assertEquals(Arrays.asList("a.com", "b.com", "c.com"), new ArrayList<String>(scheduler.getStats().keySet()));
+        assertEquals(4, scheduler.getStats("a.com").getStarted());
+    }
+
+    @Test
+    public void testTokenBucket() throws Exception {
+        scheduler = new FetchScheduler(fetcher).setMaxActivePerHost(10).setRate(20, 2);
+        long start = System.nanoTime();
+        List<CompletableFuture<JResult>> futures = new ArrayList<CompletableFuture<JResult>>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(scheduler.submit("http://a.com/" + i, 1000, true));
+        }
+        futures.add(scheduler.submit("http://b.com/", 1000, true));
+        // the burst of a.com and the independent bucket of b.com
+        assertEquals(Arrays.asList("http://a.com/0", "http://a.com/1", "http://b.com/"), sent);
+
+        while (true) {
+            synchronized (sent) {
+                if (sent.size() == 5)
+                    break;
+            }
+            assertTrue("tokens not refilled", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+            Thread.sleep(5);
+        }
+        // two more tokens at 20 per second
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(90));
+        HostStats stats = scheduler.getStats("a.com");
+        assertEquals(4, stats.getStarted());
+        assertTrue(stats.toString(), stats.getMaxWaitMillis() >= 90);
+    }
+
+    @Test
+    public void testFailedRequest() throws Exception {
+        scheduler = new FetchScheduler(fetcher).setRate(0, 1).setMaxActivePerHost(1);
+        CompletableFuture<JResult> first = scheduler.submit("http://a.com/1", 1000, true);
+        CompletableFuture<JResult> second = scheduler.submit("http://a.com/2", 1000, true);
+        assertEquals(1, sent.size());
+        pending.remove(0).completeExceptionally(new IllegalStateException("down"));
+        assertTrue(first.isCompletedExceptionally());
+        assertEquals(2, sent.size());
+        assertFalse(second.isDone());
+        assertEquals(1, scheduler.getStats("a.com").getFailed());
+    }
+
+    @Test
+    public void testShutdown() throws Exception {
+        scheduler = new FetchScheduler(fetcher).setRate(0, 1).setMaxActivePerHost(1);
+        CompletableFuture<JResult> first = scheduler.submit("http://a.com/1", 1000, true);
+        CompletableFuture<JResult> second = scheduler.submit("http://a.com/2", 1000, true);
+        scheduler.shutdown();
+        assertTrue(second.isCompletedExceptionally());
+        try {
+            second.join();
+            fail("queued request was not cancelled");
+        } catch (CancellationException ex) {
+        }
+        assertEquals(0, scheduler.getQueued());
+
+        // the sent request still completes
+        completeFirst();
+        assertTrue(first.isDone() && !first.isCompletedExceptionally());
+        assertEquals(1, sent.size());
+        try {
+            scheduler.submit("http://b.com/", 1000, true);
+            fail("submit after shutdown");
+        } catch (RejectedExecutionException ex) {
+        }
+    }
+
+    @Test
+    public void testForgetIdleHosts() throws Exception {
+        scheduler = new FetchScheduler(fetcher).setRate(0, 1).setMaxIdleHosts(1);
+        scheduler.submit("http://a.com/", 1000, true);
+        scheduler.submit("http://b.com/", 1000, true);
+        scheduler.submit("http://c.com/", 1000, true);
+        assertEquals(3, scheduler.getStats().size());
+        completeFirst();
+        completeFirst();
+        // a.com was idle the longest, c.com is still active
+        assertNull(scheduler.getStats("a.com"));
+        assertEquals(Arrays.asList("b.com", "c.com"), new ArrayList<String>(scheduler.getStats().keySet()));
+
+        // a host with tokens to refill is kept so it can't get a new burst
+        scheduler.shutdown();
+        scheduler = new FetchScheduler(fetcher).setRate(0.001, 1).setMaxIdleHosts(0);
+        scheduler.submit("http://d.com/", 1000, true);
+        completeFirst();
+        assertNotNull(scheduler.getStats("d.com"));
+    }
+}
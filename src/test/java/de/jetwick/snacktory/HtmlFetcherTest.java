@@ -0,0 +1,269 @@
+package de.jetwick.snacktory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.http.HttpTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class HtmlFetcherTest {
+
+    private static final String ARTICLE = "<html><head><title>Local Täst</title>"
+            + "<link rel='icon' href='/icon.png'></head><body><div class='article'><p>"
+            + "This is the first paragraph of an article which is long enough to be found by the extractor."
+            + "</p><p>And a second one with a <a href='other.html'>relative link</a> to check the base uri.</p>"
+            + "</div></body></html>";
+    private HttpServer server;
+    private String base;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger bodies = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                String path = exchange.getRequestURI().getPath();
+                if (path.equals("/news/article.html")) {
+                    respond(exchange, 200, "text/html; charset=ISO-8859-1", ARTICLE.getBytes("ISO-8859-1"), null);
+                } else if (path.equals("/gzip.html")) {
+                    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                    GZIPOutputStream gzip = new GZIPOutputStream(bos);
+                    gzip.write(ARTICLE.getBytes("UTF-8"));
+                    gzip.close();
+                    exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+                    respond(exchange, 200, "text/html", bos.toByteArray(), null);
+                } else if (path.equals("/etag.html")) {
+                    exchange.getResponseHeaders().add("ETag", "\"v1\"");
+                    if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match")))
+                        respond(exchange, 304, "text/html", new byte[0], null);
+                    else {
+                        bodies.incrementAndGet();
+                        respond(exchange, 200, "text/html", ARTICLE.getBytes("UTF-8"), null);
+                    }
+                } else if (path.equals("/modified.html")) {
+                    String lastModified = "Tue, 15 Nov 1994 12:45:26 GMT";
+                    exchange.getResponseHeaders().add("Last-Modified", lastModified);
+                    if (lastModified.equals(exchange.getRequestHeaders().getFirst("If-Modified-Since")))
+                        respond(exchange, 304, "text/html", new byte[0], null);
+                    else {
+                        bodies.incrementAndGet();
+                        respond(exchange, 200, "text/html", ARTICLE.getBytes("UTF-8"), null);
+                    }
+                } else if (path.equals("/short")) {
+                    respond(exchange, 301, "text/plain", new byte[0], "/redirect");
+                } else if (path.equals("/redirect")) {
+                    respond(exchange, 302, "text/plain", new byte[0], base + "/news/article.html");
+                } else if (path.equals("/slow")) {
+                    // the body starts but doesn't end in time
+                    exchange.getResponseHeaders().add("Content-Type", "text/html");
+                    exchange.sendResponseHeaders(200, 0);
+                    OutputStream os = exchange.getResponseBody();
+                    os.write("<html><head><title>Slow</title></head><body><p>".getBytes("UTF-8"));
+                    os.flush();
+                    try {
+                        Thread.sleep(2000);
+                        os.write("</p></body></html>".getBytes("UTF-8"));
+                        os.close();
+                    } catch (InterruptedException | IOException ex) {
+                    }
+                } else if (path.equals("/loop")) {
+                    respond(exchange, 302, "text/plain", new byte[0], "/loop");
+                } else {
+                    respond(exchange, 404, "text/plain", "not found".getBytes("UTF-8"), null);
+                }
+            }
+        });
+        server.start();
+        base = "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, byte[] body,
+            String location) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", contentType);
+        if (location != null)
+            exchange.getResponseHeaders().add("Location", location);
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(body);
+        os.close();
+    }
+
+    @Test
+    public void testFetchAndExtract() throws Exception {
+        HtmlFetcher fetcher = new HtmlFetcher();
+        JResult res = fetcher.fetchAndExtract(base + "/news/article.html", 10000, true);
+        assertEquals("Local Täst", res.getTitle());
+        assertTrue(res.getText(), res.getText().startsWith("This is the first paragraph"));
+        assertEquals(base + "/icon.png", res.getFaviconUrl());
+        assertEquals(base + "/news/other.html", res.getLinks().get(0).get("url"));
+
+        res = fetcher.fetchAndExtractAsync(base + "/gzip.html", 10000, true).get();
+        assertEquals("Local Täst", res.getTitle());
+    }
+
+    @Test
+    public void testRedirects() throws Exception {
+        HtmlFetcher fetcher = new HtmlFetcher();
+        JResult res = fetcher.fetchAndExtract(base + "/short", 10000, true);
+        assertEquals(base + "/news/article.html", res.getUrl());
+        assertEquals(base + "/short", res.getOriginalUrl());
+        assertEquals("Local Täst", res.getTitle());
+
+        res = fetcher.fetchAndExtract(base + "/short", 10000, false);
+        assertEquals(base + "/short", res.getUrl());
+        assertEquals("Local Täst", res.getTitle());
+
+        try {
+            fetcher.setMaxRedirects(3).fetchAndExtract(base + "/loop", 10000, true);
+            fail("redirect loop");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().startsWith("Too many redirects"));
+        }
+        try {
+            fetcher.fetchAndExtract(base + "/missing", 10000, true);
+            fail("not found");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().startsWith("Status 404"));
+        }
+    }
+
+    @Test
+    public void testResolvedRedirects() throws Exception {
+        HtmlFetcher fetcher = new HtmlFetcher();
+        fetcher.fetchAndExtract(base + "/short", 10000, true);
+        assertEquals(3, requests.get());
+        assertEquals(base + "/news/article.html", fetcher.getResolver().getCached(base + "/short"));
+        assertEquals(base + "/news/article.html", fetcher.getResolver().getCached(base + "/redirect"));
+
+        // the known hops are skipped
+        JResult res = fetcher.fetchAndExtract(base + "/short", 10000, true);
+        assertEquals(4, requests.get());
+        assertEquals(base + "/news/article.html", res.getUrl());
+        assertEquals(base + "/short", res.getOriginalUrl());
+
+        // the wrapper is unwrapped without a request
+        String wrapped = "https://www.google.de/url?sa=t&url=" + SHelper.urlEncode(base + "/redirect");
+        res = fetcher.fetchAndExtract(wrapped, 10000, true);
+        assertEquals(5, requests.get());
+        assertEquals(base + "/news/article.html", res.getUrl());
+        assertEquals(wrapped, res.getOriginalUrl());
+    }
+
+    @Test
+    public void testBodyTimeout() throws Exception {
+        HtmlFetcher fetcher = new HtmlFetcher();
+        long start = System.nanoTime();
+        try {
+            fetcher.fetchAndExtract(base + "/slow", 300, true);
+            fail("slow body");
+        } catch (HttpTimeoutException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().startsWith("Timed out reading the body"));
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1500));
+    }
+
+    private static SCache createCache() {
+        final Map<String, JResult> map = new HashMap<String, JResult>();
+        return new SCache() {
+            @Override
+            public synchronized JResult get(String url) {
+                return map.get(url);
+            }
+
+            @Override
+            public synchronized void put(String url, JResult res) {
+                map.put(url, res);
+            }
+
+            @Override
+            public synchronized int getSize() {
+                return map.size();
+            }
+        };
+    }
+
+    @Test
+    public void testCacheAndSkippedUrls() throws Exception {
+        HtmlFetcher fetcher = new HtmlFetcher().setCache(createCache());
+
+        CompletableFuture<JResult> first = fetcher.fetchAndExtractAsync(base + "/short", 10000, true);
+        JResult res = first.get();
+        assertEquals(3, requests.get());
+        String originalUrl = res.getOriginalUrl();
+        JResult cached = fetcher.fetchAndExtract(base + "/news/article.html", 10000, true);
+        assertEquals(3, requests.get());
+        assertEquals(1, fetcher.getCacheCounter());
+        assertEquals(res.getTitle(), cached.getTitle());
+        assertEquals(res.getText(), cached.getText());
+        assertEquals(base + "/news/article.html", cached.getUrl());
+        assertEquals(base + "/news/article.html", cached.getOriginalUrl());
+        // the result of the first request is not changed by the second one
+        assertEquals(originalUrl, res.getOriginalUrl());
+        assertNotSame(res, cached);
+
+        res = fetcher.fetchAndExtract(base + "/image.jpg", 10000, true);
+        assertEquals(base + "/image.jpg", res.getImageUrl());
+        assertEquals(3, requests.get());
+    }
+
+    @Test
+    public void testRevalidate() throws Exception {
+        HtmlFetcher fetcher = new HtmlFetcher().setCache(createCache());
+        JResult res = fetcher.fetchAndExtract(base + "/etag.html", 10000, true);
+        assertEquals("\"v1\"", res.getEtag());
+        assertNull(res.getLastModified());
+        assertTrue(res.getFetchTime() > 0);
+        // fresh enough
+        JResult cached = fetcher.fetchAndExtract(base + "/etag.html", 10000, true);
+        assertEquals(1, requests.get());
+        assertEquals(res.getTitle(), cached.getTitle());
+        assertEquals(res.getFetchTime(), cached.getFetchTime());
+
+        fetcher.setMaxAge(0);
+        Thread.sleep(2);
+        long fetchTime = res.getFetchTime();
+        JResult revalidated = fetcher.fetchAndExtract(base + "/etag.html", 10000, true);
+        assertEquals(2, requests.get());
+        assertEquals(1, bodies.get());
+        assertEquals(res.getTitle(), revalidated.getTitle());
+        assertEquals("\"v1\"", revalidated.getEtag());
+        assertEquals(base + "/etag.html", revalidated.getUrl());
+        assertTrue(revalidated.getFetchTime() > fetchTime);
+        // the cached result is not changed
+        assertEquals(fetchTime, res.getFetchTime());
+
+        res = fetcher.fetchAndExtract(base + "/modified.html", 10000, true);
+        assertEquals("Tue, 15 Nov 1994 12:45:26 GMT", res.getLastModified());
+        cached = fetcher.fetchAndExtract(base + "/modified.html", 10000, true);
+        assertEquals(res.getTitle(), cached.getTitle());
+        assertEquals(res.getLastModified(), cached.getLastModified());
+        assertEquals(2, bodies.get());
+        assertEquals(3, fetcher.getCacheCounter());
+
+        // without validators the page is fetched again
+        res = fetcher.fetchAndExtract(base + "/news/article.html", 10000, true);
+        assertNotSame(res, fetcher.fetchAndExtract(base + "/news/article.html", 10000, true));
+    }
+}
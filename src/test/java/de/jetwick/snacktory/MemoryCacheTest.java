@@ -0,0 +1,102 @@
+package de.jetwick.snacktory;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MemoryCacheTest {
+
+    private static JResult result(String url) {
+        return new JResult().setUrl(url).setTitle("title of " + url).setText("some text");
+    }
+
+    @Test
+    public void testGetPutAndStats() {
+        MemoryCache cache = new MemoryCache(1000000);
+        JResult res = result("http://a.com/1");
+        cache.put("http://a.com/1", res);
+        cache.put("http://a.com/2", result("http://a.com/2"));
+        assertSame(res, cache.get("http://a.com/1"));
+        assertNull(cache.get("http://a.com/3"));
+
+        JResult other = result("http://a.com/1");
+        cache.put("http://a.com/1", other);
+        assertSame(other, cache.get("http://a.com/1"));
+        assertEquals(2, cache.getSize());
+
+        CacheStats stats = cache.getStats();
+        assertEquals(2, stats.getHits());
+        assertEquals(1, stats.getMisses());
+        assertEquals(2.0 / 3, stats.getHitRate(), 1e-9);
+        assertEquals(0, stats.getEvictions());
+        assertEquals(2 * MemoryCache.estimateBytes("http://a.com/1", res), stats.getBytes());
+    }
+
+    @Test
+    public void testEstimateBytes() {
+        JResult res = result("http://a.com/1");
+        long bytes = MemoryCache.estimateBytes("http://a.com/1", res);
+        res.setText(res.getText() + new String(new char[1000]));
+        assertEquals(bytes + 2000, MemoryCache.estimateBytes("http://a.com/1", res));
+        res.addLink("http://a.com/2", "link", 1);
+        assertTrue(MemoryCache.estimateBytes("http://a.com/1", res) > bytes + 2000);
+    }
+
+    @Test
+    public void testBoundedByBytes() {
+        long bytes = MemoryCache.estimateBytes("http://a.com/10", result("http://a.com/10"));
+        MemoryCache cache = new MemoryCache(bytes * 10, 1);
+        for (int i = 10; i < 100; i++) {
+            String url = "http://a.com/" + i;
+            cache.put(url, result(url));
+            assertTrue(cache.getStats().getBytes() <= bytes * 10);
+        }
+        CacheStats stats = cache.getStats();
+        assertTrue(stats.toString(), stats.getSize() <= 10 && stats.getSize() >= 9);
+        assertEquals(90 - stats.getSize(), stats.getEvictions());
+
+        // too big for the cache, also the old result is removed
+        cache.put("http://a.com/99", result("http://a.com/99").setText(new String(new char[(int) bytes * 10])));
+        assertNull(cache.get("http://a.com/99"));
+    }
+
+    @Test
+    public void testScanResistance() {
+        long bytes = MemoryCache.estimateBytes("http://hot.com/10", result("http://hot.com/10"));
+        MemoryCache cache = new MemoryCache(bytes * 20, 1);
+        List<String> hot = new ArrayList<String>();
+        for (int i = 10; i < 20; i++) {
+            hot.add("http://hot.com/" + i);
+        }
+        for (int round = 0; round < 5; round++) {
+            for (String url : hot) {
+                if (cache.get(url) == null)
+                    cache.put(url, result(url));
+            }
+        }
+
+        // many urls which are fetched only once
+        for (int i = 1000; i < 3000; i++) {
+            String url = "http://cold.com/" + i;
+            if (cache.get(url) == null)
+                cache.put(url, result(url));
+        }
+        for (String url : hot) {
+            assertNotNull(url, cache.get(url));
+        }
+    }
+
+    @Test
+    public void testTtl() throws Exception {
+        MemoryCache cache = new MemoryCache(1000000).setTtl(-1);
+        cache.put("http://a.com/1", result("http://a.com/1"));
+        assertNull(cache.get("http://a.com/1"));
+        assertEquals(1, cache.getStats().getExpirations());
+        assertEquals(0, cache.getSize());
+
+        cache.setTtl(60000);
+        cache.put("http://a.com/1", result("http://a.com/1"));
+        assertNotNull(cache.get("http://a.com/1"));
+    }
+}
@@ -0,0 +1,51 @@
+package de.jetwick.snacktory;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.regex.Pattern;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MultiPatternMatcherTest {
+
+    private static final Pattern[] PATTERNS = {
+        Pattern.compile("(^(body|content|h?entry|main))|arti(cle|kel)"),
+        Pattern.compile("nav($|igation)|(^com-)|e(xtra|[-]?mail)"),
+        Pattern.compile("[a-c]x|(?:y|z)\\:1"),
+        Pattern.compile("\\bside\\b"),
+        Pattern.compile("x.y"),
+        Pattern.compile("a$b")
+    };
+
+    @Test
+    public void testExpand() {
+        assertEquals(new LinkedHashSet<String>(Arrays.asList("navigation", "nav\uFFFF", "\uFFFEcom-")),
+                MultiPatternMatcher.expand(Pattern.compile("nav(igation|$)|^com-")));
+        assertEquals(new LinkedHashSet<String>(Arrays.asList("email", "e-mail", "extra")),
+                MultiPatternMatcher.expand(Pattern.compile("e(-?mail|xtra)")));
+        assertNull(MultiPatternMatcher.expand(Pattern.compile("nav+")));
+        assertNull(MultiPatternMatcher.expand(Pattern.compile("[^a]x")));
+        assertNull(MultiPatternMatcher.expand(Pattern.compile("x?")));
+        assertNull(MultiPatternMatcher.expand(Pattern.compile("nav", Pattern.CASE_INSENSITIVE)));
+
+        MultiPatternMatcher matcher = new MultiPatternMatcher(PATTERNS);
+        assertEquals(7, matcher.getAutomatonMask());
+    }
+
+    @Test
+    public void testSameAsRegex() {
+        String[] strings = {"", "body", "x body", "hentry", "entry-x", "my article", "nav", "nav\n",
+            "nav\r\n", "nav\n\n", "navx", "sub navigation", "com-1", "x com-1", "e-mail", "emai",
+            "ax", "dx", "y:1", "z:2", "side", "sidebar", "x y", "xzy", "a\nb", "a$b"};
+        MultiPatternMatcher matcher = new MultiPatternMatcher(PATTERNS);
+        for (String str : strings) {
+            int expected = 0;
+            for (int i = 0; i < PATTERNS.length; i++) {
+                if (PATTERNS[i].matcher(str).find())
+                    expected |= 1 << i;
+            }
+            assertEquals("'" + str + "'", expected, matcher.find(str));
+        }
+        assertEquals(0, matcher.find("body article", 2));
+    }
+}
@@ -16,9 +16,11 @@
 package de.jetwick.snacktory;
 
 import java.util.Arrays;
+import java.util.List;
 
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
 import org.junit.*;
 import static org.junit.Assert.*;
 
@@ -43,4 +45,71 @@ public class OutputFormatterTest {
         Document doc = Jsoup.parse("<div><p><p>aa</p></p><p>bb</p><p>cc</p><div>dd</div></div>");
         assertEquals(Arrays.asList("aa", "bb", "cc", "dd"), formatter.getTextList(doc));
     }
+
+    @Test
+    public void testAppendSkipsHiddenAncestors() {
+        OutputFormatter formatter = new OutputFormatter(0);
+        Document doc = Jsoup.parse("<div><blockquote>quote text<p>inner para</p></blockquote>"
+                + "<div class='image-caption'><p>caption text</p></div>"
+                + "<div style='display:none'><div><p>hidden text</p></div></div>"
+                + "<p>last<br>line</p></div>");
+        StringBuilder sb = new StringBuilder();
+        int countOfP = formatter.append(doc.select("div").first(), sb, "p, blockquote");
+        assertEquals("quote text inner para\n\ninner para\n\nlast line\n\n", sb.toString());
+        assertEquals(2, countOfP);
+    }
+
+    @Test
+    public void testNegativeScoreFromContext() {
+        OutputFormatter formatter = new OutputFormatter(10);
+        Document doc = Jsoup.parse("<div><p>first paragraph text</p><p>second paragraph text</p></div>");
+        String html = doc.outerHtml();
+        ExtractionContext context = new ExtractionContext(false);
+        context.setScore(doc.select("p").get(1), -10);
+
+        Element topNode = doc.select("div").first();
+        assertEquals("first paragraph text", formatter.getFormattedText(topNode, context));
+        assertEquals(Arrays.asList("first paragraph text"), formatter.getTextList(topNode, context));
+        assertEquals(html, doc.outerHtml());
+    }
+
+    @Test
+    public void testFormattedTextWithTextList() {
+        OutputFormatter formatter = new OutputFormatter(10);
+        String html = "<div><p>first paragraph text</p><div class='x'>a div</div>"
+                + "<div style='display:none'><p>hidden paragraph</p></div><blockquote>quoted <p>inner</p></blockquote></div>";
+        Element topNode = Jsoup.parse(html).select("div").first();
+        List<String> expected = formatter.getTextList(topNode, new ExtractionContext(false));
+
+        topNode = Jsoup.parse(html).select("div").first();
+        JResult res = new JResult();
+        ExtractionContext context = new ExtractionContext(false);
+        assertEquals(formatter.getFormattedText(topNode, new ExtractionContext(false)),
+                formatter.getFormattedText(topNode, context, res));
+        assertTrue(res.getTextList() instanceof TextList);
+        assertEquals(expected, res.getTextList());
+        assertEquals(Arrays.asList("first paragraph text", "a div", "hidden paragraph", "quoted inner", "inner"),
+                res.getTextList());
+    }
+
+    @Test
+    public void testContextTextStats() {
+        Document doc = Jsoup.parse("<div> Own <b>bold</b> text<br><p>first  para</p>"
+                + "<script>var x;</script><p id='second'>second 2</p></div>");
+        Element div = doc.select("div").first();
+        Element second = doc.select("#second").first();
+        ExtractionContext context = new ExtractionContext(true);
+
+        assertEquals(div.text(), context.text(div));
+        assertEquals(div.text().length(), context.textLength(div));
+        assertEquals(SHelper.countLetters(div.text()), context.letterCount(div));
+        assertEquals(div.ownText().length(), context.ownTextLength(div));
+        assertEquals("second 2", context.text(second));
+        assertEquals(6, context.letterCount(second));
+
+        context.remove(second);
+        assertEquals("Own bold text first para", context.text(div));
+        assertEquals(20, context.letterCount(div));
+        assertEquals("second 2", context.text(second));
+    }
 }
@@ -35,6 +35,12 @@ public class SHelperTest {
         assertEquals("t t", SHelper.innerTrim("t    \nt "));
         assertEquals("t peter", SHelper.innerTrim("t  peter "));
         assertEquals("t t", SHelper.innerTrim("t    \n     t "));
+        assertEquals("t t", SHelper.innerTrim(new StringBuilder(" t \n t ")));
+        String str = "t t";
+        assertSame(str, SHelper.innerTrim(str));
+        StringBuilder sb = new StringBuilder("x");
+        SHelper.appendInnerTrim("  a \t b ", sb);
+        assertEquals("xa b", sb.toString());
     }
 
     @Test
@@ -44,6 +50,25 @@ public class SHelperTest {
         assertEquals(2, SHelper.count("&test;&test;", "&test;"));
         assertEquals(2, SHelper.count("&test; &test;", "&test;"));
         assertEquals(3, SHelper.count("&test; test; &test; plu &test;", "&test;"));
+        assertEquals(1, SHelper.count("aaa", "aa"));
+        assertEquals(0, SHelper.count("abc", ""));
+        assertEquals(2, SHelper.count(new StringBuilder("x&test;&test;"), "&test;"));
+    }
+
+    @Test
+    public void testCountAll() {
+        assertEquals(0, SHelper.countAll("", "&quot;", "px"));
+        assertEquals(5, SHelper.countAll("&quot;a&lt;b&gt;12px&quot;", "&quot;", "&lt;", "&gt;", "px"));
+        assertEquals(SHelper.count("ppxpx", "px") + SHelper.count("ppxpx", "p"),
+                SHelper.countAll("ppxpx", "px", "p"));
+    }
+
+    @Test
+    public void testReplaceSpaces() {
+        assertEquals("", SHelper.replaceSpaces(""));
+        assertEquals("http://a.com/b%20c.jpg", SHelper.replaceSpaces(" http://a.com/b c\r\n.jpg\t"));
+        String url = "http://a.com/b.jpg";
+        assertSame(url, SHelper.replaceSpaces(url));
     }
 
     @Test
@@ -53,6 +78,17 @@ public class SHelperTest {
         assertEquals(" people if ", SHelper.getLongestSubstring("x now if people if todo?", "I know people if you"));
         assertEquals("", SHelper.getLongestSubstring("?", "people"));
         assertEquals("people", SHelper.getLongestSubstring(" people ", "people"));
+        assertArrayEquals(new int[]{0, 0}, SHelper.longestSubstring("abc", "xyz"));
+        assertArrayEquals(new int[]{3, 12}, SHelper.longestSubstring("hi hello how are you?", "hello how", 1000));
+        assertNull(SHelper.longestSubstring("hi hello how are you?", "hello how", 100));
+
+        // a long text needs only one row
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            sb.append("some text ").append(i).append(' ');
+        }
+        sb.append("The title of the article");
+        assertEquals("The title of the article", SHelper.getLongestSubstring(sb.toString(), "The title of the article"));
     }
 
     @Test
@@ -119,6 +155,17 @@ public class SHelperTest {
         assertEquals("test-8", SHelper.encodingCleanup(" test-8 &amp;"));
     }
 
+    @Test
+    public void testIndexOfBody() {
+        assertEquals(13, SHelper.indexOfBody("<head></head><BODY class='a'>"));
+        assertEquals(-1, SHelper.indexOfBody("<head><bodyx></head>"));
+        assertEquals(47, SHelper.indexOfBody("<head><!--[if IE]><body class='ie'><![endif]--><body>"));
+        assertEquals(70, SHelper.indexOfBody("<head><script>var s = '<body>';</script><meta content='<body>'></head><body>"));
+        assertEquals(40, SHelper.indexOfBody("<head><noscript><body></noscript></head><body>"));
+        // no end of the comment
+        assertEquals(-1, SHelper.indexOfBody("<head><!-- <body>"));
+    }
+
     @Test
     public void testUglyFacebook() {
         assertEquals("http://www.bet.com/collegemarketingreps&h=42263",
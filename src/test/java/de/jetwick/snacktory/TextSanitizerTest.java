@@ -0,0 +1,31 @@
+package de.jetwick.snacktory;
+
+import org.jsoup.Jsoup;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TextSanitizerTest {
+
+    @Test
+    public void testText() {
+        assertEquals("", TextSanitizer.text(""));
+        assertEquals("a b", TextSanitizer.text("  a \n\t b  "));
+        assertEquals("Tom & Jerry \u00ac x", TextSanitizer.text("Tom &amp; Jerry &not x"));
+        assertEquals("bold text", TextSanitizer.text("<b class=\"a>b\">bold</b> te<!-- x -->xt"));
+        assertEquals("line one line two", TextSanitizer.text("line one<br/>line two"));
+        assertEquals("a<3 </", TextSanitizer.text("a<3 </"));
+        assertEquals("mail:", TextSanitizer.text("mail: <foo@bar.com>"));
+    }
+
+    @Test
+    public void testSameAsJsoup() {
+        String[] strings = {"a<p>b</p>c", "<div>One</div><span>Two</span>", "x <script>var a = '<b>';</script> y",
+            "<title>t</title>text", "<!DOCTYPE html>a", "<![CDATA[x]]>y", "a</p>b", "<b><i>x</b>y</i>",
+            "a &lt;b&gt; c", "<!-->a", "<!--->b", "<!-- a --!> b", "<?xml x?>c", "</ x>d", "a\u200b \u00adb",
+            "&#128512; &#x41;", "<span a=b c='d' e>f</span>", "<i/>g", "<SCRIPT>x</SCRIPT>", "<pre> a  b </pre>",
+            " a  b ", "<a\u0001>h", "\u0001i\u0001"};
+        for (String str : strings) {
+            assertEquals(str, Jsoup.parse(str).text(), TextSanitizer.text(str));
+        }
+    }
+}
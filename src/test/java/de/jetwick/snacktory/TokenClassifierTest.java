@@ -0,0 +1,61 @@
+package de.jetwick.snacktory;
+
+import java.util.regex.Pattern;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TokenClassifierTest {
+
+    private static final Pattern[] PATTERNS = {
+        Pattern.compile("storybody"),
+        Pattern.compile("(^(body|content|h?entry|main|page|post|text|blog|story|haupt))|arti(cle|kel)"),
+        Pattern.compile("nav($|igation)|(^com-)|me(dia|ta)"),
+        Pattern.compile("\\bside\\b"),
+        Pattern.compile("a b"),
+        Pattern.compile("x.y")
+    };
+
+    @Test
+    public void testIsTokenPattern() {
+        assertTrue(TokenClassifier.isTokenPattern(PATTERNS[1]));
+        assertTrue(TokenClassifier.isTokenPattern(PATTERNS[2]));
+        assertTrue(TokenClassifier.isTokenPattern(PATTERNS[3]));
+        assertTrue(TokenClassifier.isTokenPattern(Pattern.compile("e(xtra|[-]?mail)|[a-z]+_ad")));
+        assertFalse(TokenClassifier.isTokenPattern(PATTERNS[4]));
+        assertFalse(TokenClassifier.isTokenPattern(PATTERNS[5]));
+        assertFalse(TokenClassifier.isTokenPattern(Pattern.compile("nav\\s+bar")));
+        assertFalse(TokenClassifier.isTokenPattern(Pattern.compile("[^a]side")));
+        assertFalse(TokenClassifier.isTokenPattern(Pattern.compile("[ -z]side")));
+        assertFalse(TokenClassifier.isTokenPattern(Pattern.compile("nav(?= )")));
+        assertFalse(TokenClassifier.isTokenPattern(Pattern.compile("x*")));
+    }
+
+    @Test
+    public void testSameAsRegex() {
+        String[] strings = {"", " ", "storybody", "main-storybody x", "x main", "main x", " main",
+            "nav", "nav ", "nav\n", "nav \n", "sub nav", "sub-nav\r\n", "nav x", "navigation x",
+            "com-1", "x com-1", "\tcom-1", "side", "left side", "sidebar", "side_bar", "a b", "a  b",
+            "xzy", "x y", "x\ny", "a\tb nav", "x-meta", "article main", "nav\u0085", "nav\u0085\r",
+            "x nav\u2028\n", "nav\u2029\r\n", "nav\u0085 x"};
+        TokenClassifier classifier = new TokenClassifier(PATTERNS);
+        for (int run = 0; run < 2; run++) {
+            for (String str : strings) {
+                int expected = 0;
+                for (int i = 0; i < PATTERNS.length; i++) {
+                    if (PATTERNS[i].matcher(str).find())
+                        expected |= 1 << i;
+                }
+                assertEquals("'" + str + "'", expected, classifier.classify(str));
+            }
+        }
+    }
+
+    @Test
+    public void testBoundedCache() {
+        TokenClassifier classifier = new TokenClassifier(10, PATTERNS);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, classifier.classify("token" + i + " other" + i) & 1);
+        }
+        assertTrue(classifier.getCacheSize() <= 20);
+    }
+}
@@ -0,0 +1,126 @@
+package de.jetwick.snacktory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class UrlResolverTest {
+
+    private HttpServer server;
+    private String base;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final HttpClient client = HttpClient.newBuilder().followRedirects(HttpClient.Redirect.NEVER).build();
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                assertEquals("HEAD", exchange.getRequestMethod());
+                String path = exchange.getRequestURI().getPath();
+                int status = 200;
+                if (path.equals("/abc")) {
+                    try {
+                        // keeps the lookup in flight
+                        Thread.sleep(200);
+                    } catch (InterruptedException ex) {
+                    }
+                    status = 301;
+                    exchange.getResponseHeaders().add("Location", "/hop");
+                } else if (path.equals("/hop")) {
+                    status = 302;
+                    exchange.getResponseHeaders().add("Location", "http://www.google.com/url?q="
+                            + SHelper.urlEncode(base + "/page.html"));
+                }
+                exchange.sendResponseHeaders(status, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        base = "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testUnwrap() {
+        assertEquals("http://www.bet.com/collegemarketingreps",
+                UrlResolver.unwrap("http://www.facebook.com/l.php?u=http%3A%2F%2Fwww.bet.com%2Fcollegemarketingreps&h=42263"));
+        assertEquals("http://example.com/a?b=c",
+                UrlResolver.unwrap("https://l.facebook.com/l.php?u=http%3A%2F%2Fexample.com%2Fa%3Fb%3Dc&h=AT0"));
+        assertEquals("http://example.com/",
+                UrlResolver.unwrap("https://www.google.co.uk/url?sa=t&rct=j&url=http%3A%2F%2Fexample.com%2F&ved=0"));
+        assertEquals("http://example.com/",
+                UrlResolver.unwrap("http://www.google.com/url?q=http://example.com/&sa=U"));
+        // nested
+        assertEquals("http://example.com/", UrlResolver.unwrap("https://www.youtube.com/redirect?event=x&q="
+                + SHelper.urlEncode("http://www.google.com/url?q=http://example.com/")));
+
+        assertEquals("http://www.google.com/search?q=test", UrlResolver.unwrap("http://www.google.com/search?q=test"));
+        assertEquals("http://www.google.com/url?q=javascript:alert(1)",
+                UrlResolver.unwrap("http://www.google.com/url?q=javascript:alert(1)"));
+        assertEquals("http://example.com/", UrlResolver.unwrap("http://example.com/"));
+    }
+
+    @Test
+    public void testIsShortLink() {
+        assertTrue(UrlResolver.isShortLink("http://t.co/abc"));
+        assertTrue(UrlResolver.isShortLink("https://bit.ly/abc"));
+        assertFalse(UrlResolver.isShortLink("http://example.com/abc"));
+    }
+
+    @Test
+    public void testResolve() throws Exception {
+        UrlResolver resolver = new UrlResolver(client);
+        List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(resolver.resolve(base + "/abc", 10000));
+        }
+        for (CompletableFuture<String> future : futures) {
+            assertEquals(base + "/page.html", future.get());
+        }
+        // one chain of requests for all lookups, the wrapper was unwrapped
+        assertEquals(3, requests.get());
+        assertEquals(base + "/page.html", resolver.getCached(base + "/abc"));
+        assertEquals(base + "/page.html", resolver.getCached(base + "/hop"));
+
+        assertEquals(base + "/page.html", resolver.resolve(base + "/abc", 10000).get());
+        assertEquals(3, requests.get());
+    }
+
+    @Test
+    public void testTtlAndFailure() throws Exception {
+        UrlResolver resolver = new UrlResolver(client).setTtl(-1);
+        assertEquals(base + "/page.html", resolver.resolve(base + "/hop", 10000).get());
+        assertNull(resolver.getCached(base + "/hop"));
+        assertEquals(base + "/page.html", resolver.resolve(base + "/hop", 10000).get());
+        assertEquals(4, requests.get());
+
+        resolver.setTtl(60000).setMaxEntries(1);
+        resolver.put("http://a.com/", "http://a.com/1");
+        resolver.put("http://b.com/", "http://b.com/1");
+        assertEquals(1, resolver.getSize());
+        assertNull(resolver.getCached("http://a.com/"));
+
+        server.stop(0);
+        assertEquals(base + "/abc", resolver.resolve(base + "/abc", 2000).get());
+        assertNull(resolver.getCached(base + "/abc"));
+    }
+}